@@ -0,0 +1,116 @@
+package semeru.odbr;
+
+/**
+ * Decides which artifacts the CaptureDispatcher takes for a gesture, so bursts of rapid taps or scrolls do not spend
+ * the device on screencap and uiautomator instead of the app under test:
+ *  --each artifact type draws from a token bucket, refilled at a steady rate up to a small burst
+ *  --the first gesture after an idle period always gets its artifacts, it usually starts a new interaction
+ *  --when an artifact's average capture turnaround exceeds Globals.degradeTurnaroundFactor times its own baseline
+ *    (the lowest average seen this session), and at least Globals.degradeTurnaroundMillis, the device is overloaded:
+ *    hierarchy dumps are skipped first, and if screenshots are slow as well every screenshot costs two tokens. A dump
+ *    that always takes seconds is slow for the device but not a sign of load
+ *  --degraded dumps are still taken every Globals.degradeRecoveryMillis, the turnaround averages only move with
+ *    captures, so without them dumps would stay degraded until the next idle gesture
+ * Skipped artifacts are recorded on the event with the reason, and the event reuses the last artifact: for
+ * screenshots the report's last screenshot, the settled result of the previous gesture once there is one.
+ *
+ * Only the dispatcher thread uses the policy.
+ */
+public class ArtifactPolicy {
+    public static final String SCREENSHOT = "screenshot";
+    public static final String HIERARCHY = "hierarchy";
+    public static final String REASON_RATE = "rate";
+    public static final String REASON_DEGRADED = "degraded";
+
+    private final ScreenshotManager sm;
+    private final HierarchyDumpManager hdm;
+    private final TokenBucket screenshots;
+    private final TokenBucket dumps;
+    private long lastGestureMillis;
+    private long lastDumpMillis;
+
+    public ArtifactPolicy(ScreenshotManager sm, HierarchyDumpManager hdm) {
+        this.sm = sm;
+        this.hdm = hdm;
+        screenshots = new TokenBucket(Globals.screenshotBurst, Globals.screenshotsPerSecond);
+        dumps = new TokenBucket(Globals.hierarchyBurst, Globals.hierarchyDumpsPerSecond);
+    }
+
+    /**
+     * Decides the artifacts of a gesture starting at the given time
+     */
+    public Decision decide(long timeMillis) {
+        boolean idle = timeMillis - lastGestureMillis >= Globals.idleMillis;
+        lastGestureMillis = timeMillis;
+        boolean screenshotsSlow = degraded(sm.getAverageTurnaround(), sm.getBaselineTurnaround());
+        boolean dumpsSlow = screenshotsSlow || degraded(hdm.getAverageTurnaround(), hdm.getBaselineTurnaround());
+
+        Decision decision = new Decision();
+        if (!screenshots.take(timeMillis, screenshotsSlow ? 2 : 1) && !idle) {
+            decision.screenshotSkipped = screenshotsSlow ? REASON_DEGRADED : REASON_RATE;
+        }
+        boolean recheck = timeMillis - lastDumpMillis >= Globals.degradeRecoveryMillis;
+        if (dumpsSlow && !idle && !recheck) {
+            decision.hierarchySkipped = REASON_DEGRADED;
+        }
+        else if (!dumps.take(timeMillis, 1) && !idle) {
+            decision.hierarchySkipped = REASON_RATE;
+        }
+        if (decision.takeHierarchyDump()) {
+            lastDumpMillis = timeMillis;
+        }
+        return decision;
+    }
+
+    private static boolean degraded(long averageMillis, long baselineMillis) {
+        return averageMillis > Math.max(Globals.degradeTurnaroundMillis, baselineMillis * Globals.degradeTurnaroundFactor);
+    }
+
+
+    /**
+     * Artifacts to take for one gesture, a skipped artifact has the reason it was skipped
+     */
+    public static class Decision {
+        String screenshotSkipped;
+        String hierarchySkipped;
+
+        public boolean takeScreenshot() {
+            return screenshotSkipped == null;
+        }
+
+        public boolean takeHierarchyDump() {
+            return hierarchySkipped == null;
+        }
+    }
+
+    /**
+     * Tokens refilled continuously at perSecond, up to capacity
+     */
+    static class TokenBucket {
+        private final double capacity;
+        private final double perMilli;
+        private double tokens;
+        private long lastMillis;
+
+        TokenBucket(double capacity, double perSecond) {
+            this.capacity = capacity;
+            this.perMilli = perSecond / 1000;
+            tokens = capacity;
+        }
+
+        /**
+         * Takes n tokens if there are as many
+         */
+        boolean take(long nowMillis, double n) {
+            if (lastMillis != 0 && nowMillis > lastMillis) {
+                tokens = Math.min(capacity, tokens + (nowMillis - lastMillis) * perMilli);
+            }
+            lastMillis = Math.max(lastMillis, nowMillis);
+            if (tokens < n) {
+                return false;
+            }
+            tokens -= n;
+            return true;
+        }
+    }
+}
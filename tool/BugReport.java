@@ -1,9 +1,15 @@
 package semeru.odbr;
 
+import java.util.Collections;
+import java.util.Comparator;
+import java.io.File;
+import java.io.IOException;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.annotation.TargetApi;
 import android.hardware.Sensor;
@@ -20,14 +26,25 @@ import android.util.Log;
  * Singleton class containing all information for a specific bug report.
  * The BugReport contains a list of the events, a list for each sensor's data, as well as
  * descriptions useful for the report.
+ *
+ * The events form the session timeline, a skip list ordered by event start time. Every GestureSegmenter and the main
+ * thread add to it concurrently without blocking each other, and readers get an ordered snapshot that is only rebuilt
+ * after the timeline changed.
+ *
+ * While a session is recorded every change is also streamed to a SessionJournal, so the report can be rebuilt with
+ * restoreJournal() if the tool dies before it is submitted.
  */
 public class BugReport {
     public static transient int colors[] = {Color.BLUE, Color.GREEN, Color.RED, Color.CYAN, Color.YELLOW, Color.MAGENTA};
     public static transient String[] orientationStrings = {"portrait", "landscape_left", "reverse", "landscape_right"};
     private transient HashMap<String, Bitmap> sensorGraphs = new HashMap<String, Bitmap>();
+    private transient HashMap<String, InputEventLog> inputLogs = new HashMap<String, InputEventLog>();
+    private transient volatile SessionJournal journal;
 
     private HashMap<String, SensorDataList> sensorData = new HashMap<String, SensorDataList>();
-    private List<ReportEvent> eventList = new ArrayList<ReportEvent>();
+    private ConcurrentSkipListSet<ReportEvent> eventList = new ConcurrentSkipListSet<ReportEvent>(TIMELINE_ORDER);
+    private transient AtomicLong timelineVersion = new AtomicLong();
+    private transient volatile TimelineSnapshot timelineSnapshot;
     private LinkedHashMap<Long, Integer> orientations = new LinkedHashMap<Long, Integer>();
     private int startOrientation;
     private transient int orientation = -1; // current device orientation
@@ -40,9 +57,22 @@ public class BugReport {
     private String title = "";
     private int os_version = android.os.Build.VERSION.SDK_INT;
     private Screenshot startScreenshot;
-    private Screenshot lastScreenshot;
+    private volatile Screenshot lastScreenshot;
     private Screenshot endScreenshot;
 
+    /**
+     * Orders the timeline by start time, events starting in the same millisecond keep their creation order
+     */
+    private static final Comparator<ReportEvent> TIMELINE_ORDER = new Comparator<ReportEvent>() {
+        @Override
+        public int compare(ReportEvent a, ReportEvent b) {
+            if (a.getStartTime() != b.getStartTime()) {
+                return a.getStartTime() < b.getStartTime() ? -1 : 1;
+            }
+            return a.getSequence() < b.getSequence() ? -1 : (a.getSequence() == b.getSequence() ? 0 : 1);
+        }
+    };
+
     private static transient BugReport ourInstance = new BugReport();
 
 
@@ -56,9 +86,19 @@ public class BugReport {
 
     //resets the data, called after report is submitted
     public void clearReport() {
+        if (journal != null) {
+            journal.discard();
+            journal = null;
+        }
         sensorData.clear();
         sensorGraphs.clear();
+        synchronized (inputLogs) {
+            inputLogs.clear();
+        }
         eventList.clear();
+        ScreenshotStore.getInstance().reset();
+        HierarchyIndex.clearCache();
+        timelineVersion.incrementAndGet();
         title = "";
         name = "";
         description_desired_outcome = "";
@@ -66,24 +106,111 @@ public class BugReport {
     }
 
 
-    public void addEvent(int ndx, ReportEvent e) {
-        eventList.add(ndx, e);
+    /**
+     * Starts journaling the session to disk, called when a new recording session begins
+     */
+    public void startJournal() {
+        if (journal != null) {
+            journal.discard();
+        }
+        try {
+            journal = SessionJournal.create(new File(Globals.sessionJournalFile), app_name, package_name);
+        } catch (IOException e) {
+            Log.e("BugReport", "Could not start session journal: " + e.getMessage());
+            journal = null;
+        }
+    }
+
+    /**
+     * Rebuilds the report from the journal left behind by a session that was not submitted, then keeps journaling
+     * to it
+     * @return true if the report was restored
+     */
+    public boolean restoreJournal() {
+        File file = new File(Globals.sessionJournalFile);
+        if (!file.exists()) {
+            return false;
+        }
+        clearReport();
+        HierarchyStore.getInstance().restore();
+        try {
+            SessionJournal.restore(file, this);
+            journal = SessionJournal.resume(file, this);
+            return true;
+        } catch (IOException e) {
+            Log.e("BugReport", "Could not restore session journal: " + e.getMessage());
+            return false;
+        }
     }
 
+    /**
+     * Adds a finished event to the timeline, may be called from any thread
+     */
     public void addEvent(ReportEvent e) {
         eventList.add(e);
-        if (e.type != ReportEvent.TYPE_ORIENTATION) {
-            lastScreenshot = e.getScreenshot();
+        timelineVersion.incrementAndGet();
+        if (journal != null && e.type == ReportEvent.TYPE_USER_EVENT) {
+            journal.event(e);
+        }
+    }
+
+    /**
+     * Journals a screenshot or hierarchy dump that was attached to an event after it was created
+     * @param kind SessionJournal.ARTIFACT_SCREENSHOT or SessionJournal.ARTIFACT_HIERARCHY
+     */
+    public void recordArtifact(ReportEvent e, int kind, String path) {
+        if (journal != null && path != null) {
+            journal.artifact(e, kind, path);
+        }
+    }
+
+    /**
+     * Journals that a screenshot file was deleted because its content is stored by the blob file
+     */
+    public void recordScreenshotAlias(String path, String blobPath) {
+        if (journal != null) {
+            journal.alias(path, blobPath);
         }
     }
 
     //adds a sensor 'event' to a specific sensor
     @TargetApi(Build.VERSION_CODES.CUPCAKE)
     public void addSensorData(Sensor s, SensorEvent e) {
-        if (!sensorData.containsKey(s.getName())) {
-            sensorData.put(s.getName(), new SensorDataList(s.getType()));
+        addSensorData(s.getName(), s.getType(), e.timestamp, e.values.clone());
+    }
+
+    public void addSensorData(String name, int sensorType, long timestamp, float[] values) {
+        if (!sensorData.containsKey(name)) {
+            sensorData.put(name, new SensorDataList(sensorType));
+        }
+        sensorData.get(name).addData(timestamp, values);
+        if (journal != null) {
+            journal.sensor(name, sensorType, timestamp, values);
+        }
+    }
+
+    /**
+     * Returns the log holding the raw getevent lines of the given input device, creating it on first use
+     * @param device input device, e.g. /dev/input/event2
+     */
+    public InputEventLog getInputLog(String device) {
+        synchronized (inputLogs) {
+            InputEventLog log = inputLogs.get(device);
+            if (log == null) {
+                log = new InputEventLog(device);
+                inputLogs.put(device, log);
+            }
+            return log;
+        }
+    }
+
+    /**
+     * @return a copy of the list of input logs of this report
+     */
+    public List<InputEventLog> getInputLogs() {
+        synchronized (inputLogs) {
+            return new ArrayList<InputEventLog>(inputLogs.values());
         }
-        sensorData.get(s.getName()).addData(e.timestamp, e.values.clone());
     }
 
     public void addOrientationChange(long time, int orientation) {
@@ -94,6 +221,9 @@ public class BugReport {
             Log.e("BugReport", "Could not match orientation '" + orientation + "': " + e.getMessage());
             return;
         }
+        if (journal != null) {
+            journal.orientation(time, orientation);
+        }
         if (this.orientation == -1) {
             this.orientation = orientation;
             return;
@@ -155,6 +285,9 @@ public class BugReport {
     public void setStartScreenshot(Screenshot s) {
         startScreenshot = s;
         lastScreenshot = s;
+        if (journal != null && s != null) {
+            journal.screenshot(SessionJournal.SCREENSHOT_START, s.getFilename());
+        }
     }
 
     public void setLastScreenshot(Screenshot s) {
@@ -164,11 +297,17 @@ public class BugReport {
     public void setEndScreenshot(Screenshot s) {
         endScreenshot = s;
         lastScreenshot = s;
+        if (journal != null && s != null) {
+            journal.screenshot(SessionJournal.SCREENSHOT_END, s.getFilename());
+        }
     }
 
     public void setStartOrientation(int orientation) {
         startOrientation = orientation;
         this.orientation = orientation;
+        if (journal != null) {
+            journal.startOrientation(orientation);
+        }
     }
 
     /**
@@ -221,10 +360,11 @@ public class BugReport {
 
     /* Getters */
     public long getStartTime() {
-        if (eventList == null || eventList.isEmpty()) {
+        List<ReportEvent> events = getEventList();
+        if (events.isEmpty()) {
             return 0;
         }
-        return eventList.get(0).getStartTime();
+        return events.get(0).getStartTime();
     }
     public String getName() {
         return name;
@@ -244,14 +384,23 @@ public class BugReport {
     public String getDescription_actual_outcome(){
         return description_actual_outcome;
     }
+    /**
+     * @return the events ordered by start time, an unmodifiable snapshot of the timeline
+     */
     public List<ReportEvent> getEventList() {
-        return eventList;
+        TimelineSnapshot snapshot = timelineSnapshot;
+        long version = timelineVersion.get();
+        if (snapshot == null || snapshot.version != version) {
+            snapshot = new TimelineSnapshot(version, new ArrayList<ReportEvent>(eventList));
+            timelineSnapshot = snapshot;
+        }
+        return snapshot.events;
     }
     public int numEvents() {
-        return eventList.size();
+        return getEventList().size();
     }
     public ReportEvent getEventAtIndex(int ndx) {
-        return eventList.get(ndx);
+        return getEventList().get(ndx);
     }
     public HashMap<String, SensorDataList> getSensorData() {
         return sensorData;
@@ -274,6 +423,20 @@ public class BugReport {
 }
 
 
+/**
+ * Ordered copy of the timeline taken at a given version of the BugReport's event list
+ */
+class TimelineSnapshot {
+    final long version;
+    final List<ReportEvent> events;
+
+    TimelineSnapshot(long version, List<ReportEvent> events) {
+        this.version = version;
+        this.events = Collections.unmodifiableList(events);
+    }
+}
+
+
 /**
  * A SensorDataList contains the values of a particular sensor over time
  */
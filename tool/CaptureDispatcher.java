@@ -0,0 +1,203 @@
+package semeru.odbr;
+
+import android.util.Log;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The CaptureDispatcher separates reading input from capturing artifacts. The GestureSegmenters only publish
+ * "gesture started" and "gesture ended" triggers into a lock-free queue, which never blocks them. A single artifact
+ * thread drains the queue, decides what to capture through the screenshot and hierarchy managers and attaches the
+ * results to the ReportEvent afterwards, so a slow screencap or uiautomator never delays reading /dev/input.
+ */
+public class CaptureDispatcher implements Runnable, GestureSegmenter.Listener {
+    static final int GESTURE_STARTED = 0;
+    static final int GESTURE_ENDED = 1;
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long STOP_TIMEOUT_MILLIS = 5000;
+
+    private final ConcurrentLinkedQueue<CaptureTrigger> triggers = new ConcurrentLinkedQueue<CaptureTrigger>();
+    private final ScreenshotManager sm;
+    private final HierarchyDumpManager hdm;
+    private final SettleDetector settle;
+    private final ArtifactPolicy policy;
+    private final CaptureMetrics.Counter screenshotsSkippedRate =
+            skippedCounter(ArtifactPolicy.SCREENSHOT, ArtifactPolicy.REASON_RATE);
+    private final CaptureMetrics.Counter screenshotsSkippedDegraded =
+            skippedCounter(ArtifactPolicy.SCREENSHOT, ArtifactPolicy.REASON_DEGRADED);
+    private final CaptureMetrics.Counter dumpsSkippedRate =
+            skippedCounter(ArtifactPolicy.HIERARCHY, ArtifactPolicy.REASON_RATE);
+    private final CaptureMetrics.Counter dumpsSkippedDegraded =
+            skippedCounter(ArtifactPolicy.HIERARCHY, ArtifactPolicy.REASON_DEGRADED);
+    private Screenshot lastScreenshot;
+    private HierarchyDump lastDump;
+    private volatile boolean running;
+    private Thread worker;
+
+    public CaptureDispatcher(ScreenshotManager sm, HierarchyDumpManager hdm) {
+        this.sm = sm;
+        this.hdm = hdm;
+        settle = Globals.afterScreenshots ? new SettleDetector(sm) : null;
+        policy = Globals.throttleArtifacts ? new ArtifactPolicy(sm, hdm) : null;
+    }
+
+    public void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        worker = new Thread(this, "CaptureDispatcher");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Stops the artifact thread once the triggers that were already published have been handled. Waits at most
+     * STOP_TIMEOUT_MILLIS, the triggers still queued after that are dropped and the worker is interrupted
+     */
+    public void stop() {
+        running = false;
+        if (worker == null) {
+            return;
+        }
+        LockSupport.unpark(worker);
+        long deadline = System.currentTimeMillis() + STOP_TIMEOUT_MILLIS;
+        try {
+            long remaining;
+            while (worker.isAlive() && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                worker.join(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (worker.isAlive()) {
+            int dropped = 0;
+            while (triggers.poll() != null) {
+                dropped++;
+            }
+            Log.e("CaptureDispatcher", "Artifact thread did not stop in time, dropped " + dropped + " capture triggers");
+            worker.interrupt();
+        }
+        worker = null;
+        if (settle != null) {
+            settle.stop();
+        }
+    }
+
+    @Override
+    public void gestureStarted(ReportEvent event, long timeMillis) {
+        publish(new CaptureTrigger(GESTURE_STARTED, event, timeMillis));
+    }
+
+    @Override
+    public void gestureEnded(ReportEvent event, long timeMillis) {
+        publish(new CaptureTrigger(GESTURE_ENDED, event, timeMillis));
+    }
+
+    private void publish(CaptureTrigger trigger) {
+        triggers.offer(trigger);
+        Thread w = worker;
+        if (w != null) {
+            LockSupport.unpark(w);
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running || !triggers.isEmpty()) {
+            CaptureTrigger trigger = triggers.poll();
+            if (trigger == null) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                continue;
+            }
+            try {
+                handle(trigger);
+            } catch (Exception e) {
+                Log.e("CaptureDispatcher", "Error handling capture trigger: " + e.getMessage());
+            }
+        }
+    }
+
+    /*
+     * The artifact stage: the screenshot and hierarchy dump are requested for the time a gesture starts, the
+     * screenshot from the pre-touch frames if available, and bound to the nearest capture of that time. Artifacts
+     * the ArtifactPolicy skips are replaced by the previous ones. The report's
+     * last screenshot is advanced once the gesture is finished, and again to the result screenshot once the
+     * SettleDetector found the screen the gesture settled to
+     */
+    private void handle(CaptureTrigger trigger) throws Exception {
+        ReportEvent event = trigger.event;
+        if (trigger.kind == GESTURE_STARTED) {
+            if (settle != null) {
+                settle.gestureStarted(trigger.timeMillis);
+            }
+            ArtifactPolicy.Decision decision = policy != null ? policy.decide(trigger.timeMillis) : null;
+            if (decision == null || decision.takeScreenshot() || lastScreenshot == null) {
+                lastScreenshot = sm.takeScreenshot(trigger.timeMillis);
+            }
+            else {
+                //the screen the previous gesture settled to is closer to this gesture's start than its start frame
+                Screenshot last = BugReport.getInstance().getLastScreenshot();
+                if (last != null) {
+                    lastScreenshot = last;
+                }
+                skipped(event, ArtifactPolicy.SCREENSHOT, decision.screenshotSkipped);
+            }
+            event.setScreenshot(lastScreenshot);
+            BugReport.getInstance().recordArtifact(event, SessionJournal.ARTIFACT_SCREENSHOT, lastScreenshot.getFilename());
+            if (decision == null || decision.takeHierarchyDump() || lastDump == null) {
+                lastDump = hdm.takeHierarchyDump(trigger.timeMillis);
+            }
+            else {
+                skipped(event, ArtifactPolicy.HIERARCHY, decision.hierarchySkipped);
+            }
+            event.setHierarchyDump(lastDump);
+            BugReport.getInstance().recordArtifact(event, SessionJournal.ARTIFACT_HIERARCHY, lastDump.getFilename());
+        }
+        else if (trigger.kind == GESTURE_ENDED) {
+            if (event.getScreenshot() != null) {
+                BugReport.getInstance().setLastScreenshot(event.getScreenshot());
+            }
+            if (settle != null) {
+                settle.gestureEnded(event, trigger.timeMillis);
+            }
+        }
+    }
+
+    /*
+     * The event keeps the previous artifact, which is as stale as its staleness says
+     */
+    private void skipped(ReportEvent event, String artifact, String reason) {
+        event.addSkippedArtifact(artifact, reason);
+        boolean rate = ArtifactPolicy.REASON_RATE.equals(reason);
+        if (ArtifactPolicy.SCREENSHOT.equals(artifact)) {
+            (rate ? screenshotsSkippedRate : screenshotsSkippedDegraded).increment();
+        }
+        else {
+            (rate ? dumpsSkippedRate : dumpsSkippedDegraded).increment();
+        }
+    }
+
+    private static CaptureMetrics.Counter skippedCounter(String artifact, String reason) {
+        return CaptureMetrics.getInstance().counter(CaptureMetrics.named(CaptureMetrics.ARTIFACT_SKIPPED, artifact + ":" + reason));
+    }
+
+
+    /**
+     * A gesture boundary published by a capture thread
+     */
+    static class CaptureTrigger {
+        final int kind;
+        final ReportEvent event;
+        final long timeMillis;
+
+        CaptureTrigger(int kind, ReportEvent event, long timeMillis) {
+            this.kind = kind;
+            this.event = event;
+            this.timeMillis = timeMillis;
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package semeru.odbr;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Singleton registry of low overhead metrics describing how the capture path behaves under load: counters, rates
+ * (events per second) and histograms (latencies). Metrics are created on first use by name, and the hot paths keep a
+ * reference to the metric object so recording a value is only a few atomic operations.
+ *
+ * The registry can be dumped as plain text at any time with dump(), or to a file with dumpToFile(), which lets us
+ * compare devices and tool versions without going through logcat.
+ */
+public class CaptureMetrics {
+    /* Names of the metrics recorded by the tool, per device / sensor metrics append [name] */
+    public static final String INPUT_EVENTS = "input.events";
+    public static final String INPUT_SYN_DROPPED = "input.syn_dropped";
+    public static final String READ_TO_ADD_EVENT_US = "input.read_to_add_event_us";
+    public static final String SCREENSHOT_TURNAROUND_MS = "screenshot.turnaround_ms";
+    public static final String SCREENSHOT_COALESCED = "screenshot.coalesced";
+    public static final String SCREENSHOT_RING_AGE_MS = "screenshot.ring_age_ms";
+    public static final String SCREENSHOT_STALENESS_MS = "screenshot.staleness_ms";
+    public static final String SETTLE_MS = "settle.ms";
+    public static final String SETTLE_TIMEOUTS = "settle.timeouts";
+    public static final String HIERARCHY_TURNAROUND_MS = "hierarchy.turnaround_ms";
+    public static final String HIERARCHY_COALESCED = "hierarchy.coalesced";
+    public static final String HIERARCHY_STALENESS_MS = "hierarchy.staleness_ms";
+    public static final String HIERARCHY_REUSED = "hierarchy.reused";
+    public static final String HIERARCHY_REUSE_SAVED_MS = "hierarchy.reuse_saved_ms";
+    public static final String ARTIFACT_SKIPPED = "artifact.skipped";
+    public static final String SENSOR_SAMPLES = "sensor.samples";
+
+    private static CaptureMetrics ourInstance = new CaptureMetrics();
+
+    private final ConcurrentHashMap<String, Metric> metrics = new ConcurrentHashMap<String, Metric>();
+    private volatile long resetTime = System.currentTimeMillis();
+
+    public static CaptureMetrics getInstance() {
+        return ourInstance;
+    }
+
+    private CaptureMetrics() {
+    }
+
+    public static String named(String metric, String qualifier) {
+        return metric + "[" + qualifier + "]";
+    }
+
+    public Counter counter(String name) {
+        Metric m = metrics.get(name);
+        if (m == null) {
+            Metric created = new Counter();
+            m = metrics.putIfAbsent(name, created);
+            m = m == null ? created : m;
+        }
+        return (Counter) m;
+    }
+
+    public Rate rate(String name) {
+        Metric m = metrics.get(name);
+        if (m == null) {
+            Metric created = new Rate();
+            m = metrics.putIfAbsent(name, created);
+            m = m == null ? created : m;
+        }
+        return (Rate) m;
+    }
+
+    public Histogram histogram(String name) {
+        Metric m = metrics.get(name);
+        if (m == null) {
+            Metric created = new Histogram();
+            m = metrics.putIfAbsent(name, created);
+            m = m == null ? created : m;
+        }
+        return (Histogram) m;
+    }
+
+    /**
+     * Zeroes every metric, called when a new recording session starts. Metric objects stay registered, so references
+     * held by the capture threads remain valid
+     */
+    public void reset() {
+        for (Metric m : metrics.values()) {
+            m.reset();
+        }
+        resetTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Writes every metric as one line of text, sorted by name
+     */
+    public void dump(Writer writer) {
+        dump(writer, "device " + android.os.Build.MODEL + ", sdk " + android.os.Build.VERSION.SDK_INT);
+    }
+
+    /**
+     * @param source what the metrics were collected on, e.g. a replayed trace off the device
+     */
+    public void dump(Writer writer, String source) {
+        PrintWriter out = new PrintWriter(writer);
+        out.println("# ODBR capture metrics, " + source);
+        out.println("# collected for " + (System.currentTimeMillis() - resetTime) + " ms");
+        for (Map.Entry<String, Metric> entry : new TreeMap<String, Metric>(metrics).entrySet()) {
+            out.println(entry.getValue().describe(entry.getKey()));
+        }
+        out.flush();
+    }
+
+    public String dump() {
+        StringWriter writer = new StringWriter();
+        dump(writer);
+        return writer.toString();
+    }
+
+    public void dumpToFile(File file) {
+        try {
+            File dir = file.getParentFile();
+            if (dir != null && !dir.exists()) {
+                dir.mkdirs();
+            }
+            FileWriter writer = new FileWriter(file);
+            try {
+                dump(writer);
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            Log.e("CaptureMetrics", "Could not write metrics: " + e.getMessage());
+        }
+    }
+
+
+    abstract static class Metric {
+        abstract void reset();
+        abstract String describe(String name);
+    }
+
+    /**
+     * Monotonic count of occurrences
+     */
+    public static class Counter extends Metric {
+        private final AtomicLong count = new AtomicLong();
+
+        public void increment() {
+            count.incrementAndGet();
+        }
+
+        public void add(long n) {
+            count.addAndGet(n);
+        }
+
+        public long get() {
+            return count.get();
+        }
+
+        @Override
+        void reset() {
+            count.set(0);
+        }
+
+        @Override
+        String describe(String name) {
+            return "counter " + name + " " + count.get();
+        }
+    }
+
+    /**
+     * Count of occurrences and the time span they were seen in, reported as occurrences per second
+     */
+    public static class Rate extends Metric {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong firstNanos = new AtomicLong();
+        private volatile long lastNanos;
+
+        public void mark() {
+            long now = System.nanoTime();
+            if (count.getAndIncrement() == 0) {
+                firstNanos.compareAndSet(0, now);
+            }
+            lastNanos = now;
+        }
+
+        public double perSecond() {
+            long span = lastNanos - firstNanos.get();
+            return span <= 0 ? 0 : count.get() * 1e9 / span;
+        }
+
+        @Override
+        void reset() {
+            count.set(0);
+            firstNanos.set(0);
+            lastNanos = 0;
+        }
+
+        @Override
+        String describe(String name) {
+            return String.format("rate %s count=%d per_second=%.1f", name, count.get(), perSecond());
+        }
+    }
+
+    /**
+     * Distribution of non negative values in power of two buckets, bucket i holds values below 2^i
+     */
+    public static class Histogram extends Metric {
+        private static final int BUCKETS = 64;
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long m;
+            while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+                // retry until the max is updated or a larger value was recorded
+            }
+        }
+
+        /**
+         * @return upper bound of the bucket holding the given quantile, e.g. 0.99
+         */
+        public long quantile(double q) {
+            long total = count.get();
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(q * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return i == 0 ? 0 : Math.min((1L << i) - 1, max.get());
+                }
+            }
+            return max.get();
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public double mean() {
+            long c = count.get();
+            return c == 0 ? 0 : (double) sum.get() / c;
+        }
+
+        @Override
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets.set(i, 0);
+            }
+            count.set(0);
+            sum.set(0);
+            max.set(0);
+        }
+
+        @Override
+        String describe(String name) {
+            return String.format("histogram %s count=%d mean=%.1f p50=%d p90=%d p99=%d max=%d",
+                    name, count.get(), mean(), quantile(0.5), quantile(0.9), quantile(0.99), max.get());
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package semeru.odbr;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Schedules the captures of one artifact kind (screenshots, hierarchy dumps) on a single capture thread. Capturing
+ * takes hundreds of milliseconds, so requests arriving close together share captures instead of queueing up:
+ *  --a request made while a capture runs that started at or after the request's time joins that capture
+ *  --otherwise it joins the capture waiting for the thread, or creates it
+ *  --unless the waiting capture can not start before the request's deadline, then it takes the running capture even
+ *    though that one started earlier
+ * Each request is bound to exactly one capture with its own file, so artifacts are never mislabeled, and the capture
+ * records when it started, from which the staleness of the artifact for the request's time follows.
+ */
+public class CaptureScheduler implements Runnable {
+
+    /**
+     * Captures the artifact into the file, called on the capture thread
+     */
+    public interface Capturer {
+        boolean capture(String file) throws Exception;
+    }
+
+    private final String name;
+    private final String filePrefix;
+    private final String fileSuffix;
+    private final Capturer capturer;
+    private final CaptureMetrics.Histogram turnaround;
+    private final CaptureMetrics.Histogram staleness;
+    private final CaptureMetrics.Counter coalesced;
+    private final AtomicInteger index = new AtomicInteger();
+    private final Object lock = new Object();
+    private Capture pending;
+    private Capture running;
+    private long averageMillis;
+    private long baselineMillis;
+    private volatile boolean stopped;
+    private Thread worker;
+
+    /**
+     * @param filePrefix directory and file name prefix of the captures, an index and the suffix are appended
+     */
+    public CaptureScheduler(String name, String filePrefix, String fileSuffix, Capturer capturer,
+                            String turnaroundMetric, String stalenessMetric, String coalescedMetric) {
+        this.name = name;
+        this.filePrefix = filePrefix;
+        this.fileSuffix = fileSuffix;
+        this.capturer = capturer;
+        CaptureMetrics metrics = CaptureMetrics.getInstance();
+        turnaround = metrics.histogram(turnaroundMetric);
+        staleness = metrics.histogram(stalenessMetric);
+        coalesced = metrics.counter(coalescedMetric);
+    }
+
+    public void start() {
+        worker = new Thread(this, name + "Capture");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Stops the capture thread, a capture that has not started yet is cancelled
+     */
+    public void stop() {
+        synchronized (lock) {
+            stopped = true;
+            if (pending != null) {
+                pending.cancel(false);
+                pending = null;
+            }
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * @return a new, unique file name for an artifact of this kind
+     */
+    public String nextFile() {
+        return filePrefix + index.incrementAndGet() + fileSuffix;
+    }
+
+    /**
+     * @return moving average of the capture duration in milliseconds, 0 before the first capture
+     */
+    public long getAverageMillis() {
+        synchronized (lock) {
+            return averageMillis;
+        }
+    }
+
+    /**
+     * @return lowest moving average of the capture duration seen so far, i.e. what a capture costs on this device when
+     * it is not loaded, 0 before the first capture
+     */
+    public long getBaselineMillis() {
+        synchronized (lock) {
+            return baselineMillis;
+        }
+    }
+
+    /**
+     * Binds a request to a capture
+     * @param timeMillis wall clock time the artifact should show, e.g. of the touch
+     * @param deadlineMillis latest wall clock time the capture should start at
+     * @return the capture the request is bound to
+     */
+    public Capture request(long timeMillis, long deadlineMillis) {
+        synchronized (lock) {
+            Capture bound;
+            if (running != null && running.startMillis >= timeMillis) {
+                bound = running;
+            }
+            else if (running != null && running.startMillis + averageMillis > deadlineMillis) {
+                bound = running;
+            }
+            else if (pending != null) {
+                bound = pending;
+            }
+            else {
+                bound = new Capture(nextFile());
+                if (stopped) {
+                    bound.cancel(false);
+                }
+                else {
+                    pending = bound;
+                    lock.notifyAll();
+                }
+            }
+            if (bound.requestTimes.size() > 0) {
+                coalesced.increment();
+            }
+            bound.requestTimes.add(timeMillis);
+            return bound;
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            Capture next;
+            synchronized (lock) {
+                while (pending == null && !stopped) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (stopped) {
+                    return;
+                }
+                next = pending;
+                pending = null;
+                running = next;
+                next.startMillis = System.currentTimeMillis();
+                for (long time : next.requestTimes) {
+                    staleness.record(next.startMillis - time);
+                }
+            }
+            next.run();
+            long duration = System.currentTimeMillis() - next.startMillis;
+            turnaround.record(duration);
+            synchronized (lock) {
+                running = null;
+                averageMillis = averageMillis == 0 ? duration : (averageMillis * 3 + duration) / 4;
+                baselineMillis = baselineMillis == 0 ? averageMillis : Math.min(baselineMillis, averageMillis);
+            }
+        }
+    }
+
+
+    /**
+     * One capture into one file. It completes with true once the file is written; requests bound to it can wait
+     * on it like on any Future
+     */
+    public class Capture extends FutureTask<Boolean> {
+        private final String file;
+        private final ArrayList<Long> requestTimes = new ArrayList<Long>(2);
+        private volatile long startMillis = Long.MAX_VALUE;
+
+        Capture(final String file) {
+            super(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    try {
+                        return capturer.capture(file);
+                    } catch (Exception e) {
+                        Log.e(name + "Capture", "Error capturing " + file + ": " + e.getMessage());
+                        return false;
+                    }
+                }
+            });
+            this.file = file;
+        }
+
+        public String getFile() {
+            return file;
+        }
+
+        /**
+         * @return wall clock time the capture started at, Long.MAX_VALUE while it waits for the capture thread
+         */
+        public long getStartMillis() {
+            return startMillis;
+        }
+    }
+}
@@ -0,0 +1,368 @@
+package semeru.odbr;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Single pass parser for the output of "getevent -p", which lists every input device with the codes it reports and,
+ * for each ABS axis, its value range:
+ *
+ *   add device 1: /dev/input/event2
+ *     name:     "synaptics_dsx"
+ *     events:
+ *       KEY (0001): 0145  014a
+ *       ABS (0003): 002f  : value 0, min 0, max 9, fuzz 0, flat 0, resolution 0
+ *                   0035  : value 0, min 0, max 1079, fuzz 0, flat 0, resolution 0
+ *     input props:
+ *       INPUT_PROP_DIRECT
+ *
+ * Codes are read as numbers, so one getevent invocation is enough; names come from the kernel's code table below
+ * instead of a second "getevent -l" pass. Lines are scanned character by character, nothing depends on the number of
+ * spaces getevent happens to print. The parser only needs a Reader, so it can be run on captured fixture text.
+ */
+public class DeviceProbe {
+    public static final int EV_KEY = 0x01;
+    public static final int EV_ABS = 0x03;
+    public static final int ABS_X = 0x00;
+    public static final int ABS_Y = 0x01;
+    public static final int ABS_MT_POSITION_X = 0x35;
+    public static final int ABS_MT_POSITION_Y = 0x36;
+    public static final int ABS_MT_TRACKING_ID = 0x39;
+    public static final int BTN_TOUCH = 0x14a;
+
+    /* ABS codes from linux/input-event-codes.h, the index is the code */
+    private static final String[] ABS_NAMES = new String[0x40];
+    private static final Map<String, Integer> KEY_CODES = new HashMap<String, Integer>();
+
+    static {
+        String[][] abs = {
+                {"ABS_X", "00"}, {"ABS_Y", "01"}, {"ABS_Z", "02"}, {"ABS_RX", "03"}, {"ABS_RY", "04"},
+                {"ABS_RZ", "05"}, {"ABS_THROTTLE", "06"}, {"ABS_RUDDER", "07"}, {"ABS_WHEEL", "08"},
+                {"ABS_GAS", "09"}, {"ABS_BRAKE", "0a"}, {"ABS_HAT0X", "10"}, {"ABS_HAT0Y", "11"},
+                {"ABS_HAT1X", "12"}, {"ABS_HAT1Y", "13"}, {"ABS_HAT2X", "14"}, {"ABS_HAT2Y", "15"},
+                {"ABS_HAT3X", "16"}, {"ABS_HAT3Y", "17"}, {"ABS_PRESSURE", "18"}, {"ABS_DISTANCE", "19"},
+                {"ABS_TILT_X", "1a"}, {"ABS_TILT_Y", "1b"}, {"ABS_TOOL_WIDTH", "1c"}, {"ABS_VOLUME", "20"},
+                {"ABS_MISC", "28"}, {"ABS_MT_SLOT", "2f"}, {"ABS_MT_TOUCH_MAJOR", "30"},
+                {"ABS_MT_TOUCH_MINOR", "31"}, {"ABS_MT_WIDTH_MAJOR", "32"}, {"ABS_MT_WIDTH_MINOR", "33"},
+                {"ABS_MT_ORIENTATION", "34"}, {"ABS_MT_POSITION_X", "35"}, {"ABS_MT_POSITION_Y", "36"},
+                {"ABS_MT_TOOL_TYPE", "37"}, {"ABS_MT_BLOB_ID", "38"}, {"ABS_MT_TRACKING_ID", "39"},
+                {"ABS_MT_PRESSURE", "3a"}, {"ABS_MT_DISTANCE", "3b"}, {"ABS_MT_TOOL_X", "3c"},
+                {"ABS_MT_TOOL_Y", "3d"}};
+        for (String[] entry : abs) {
+            ABS_NAMES[Integer.parseInt(entry[1], 16)] = entry[0];
+        }
+        KEY_CODES.put("BTN_TOUCH", BTN_TOUCH);
+        KEY_CODES.put("BTN_TOOL_FINGER", 0x145);
+        KEY_CODES.put("BTN_TOOL_PEN", 0x140);
+    }
+
+    /**
+     * @return the kernel name of an ABS code, or null if the code is not known
+     */
+    public static String absName(int code) {
+        return code >= 0 && code < ABS_NAMES.length ? ABS_NAMES[code] : null;
+    }
+
+    /**
+     * @return the code of a KEY / BTN name the tool uses, or null
+     */
+    public static Integer keyCode(String name) {
+        return KEY_CODES.get(name);
+    }
+
+    /**
+     * Parses the output of "getevent -p"
+     * @return the devices in the order getevent listed them
+     */
+    public static List<InputDevice> parse(Reader input) throws IOException {
+        BufferedReader reader = input instanceof BufferedReader ? (BufferedReader) input : new BufferedReader(input);
+        List<InputDevice> devices = new ArrayList<InputDevice>();
+        InputDevice device = null;
+        boolean inEvents = false;
+        int type = -1;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            LineScanner scanner = new LineScanner(line);
+            scanner.skipSpaces();
+            if (scanner.consume("add device")) {
+                //add device X: /dev/input/eventX
+                scanner.skipPast(':');
+                device = new InputDevice(scanner.rest());
+                devices.add(device);
+                inEvents = false;
+                continue;
+            }
+            if (device == null) {
+                continue;
+            }
+            if (scanner.consume("name:")) {
+                device.setName(scanner.rest().replace("\"", ""));
+            }
+            else if (scanner.consume("events:")) {
+                inEvents = true;
+                type = -1;
+            }
+            else if (scanner.consume("input props:")) {
+                inEvents = false;
+            }
+            else if (inEvents) {
+                //a new event type starts with "XXX (TTTT):", further lines of the same type only hold codes
+                int mark = scanner.position();
+                scanner.skipWord();
+                scanner.skipSpaces();
+                if (scanner.peek() == '(') {
+                    scanner.advance();
+                    type = scanner.readHex();
+                    scanner.skipPast(':');
+                }
+                else {
+                    scanner.reset(mark);
+                }
+                if (type == EV_ABS) {
+                    parseAxis(scanner, device);
+                }
+                else if (type == EV_KEY) {
+                    parseKeys(scanner, device);
+                }
+            }
+        }
+        return devices;
+    }
+
+    /*
+     * "0035  : value 0, min 0, max 1079, fuzz 0, flat 0, resolution 0"
+     */
+    private static void parseAxis(LineScanner scanner, InputDevice device) {
+        scanner.skipSpaces();
+        int code = scanner.readHexToken();
+        if (code < 0) {
+            return;
+        }
+        int min = 0;
+        int max = 0;
+        while (!scanner.atEnd()) {
+            scanner.skipSeparators();
+            String word = scanner.readWord();
+            scanner.skipSpaces();
+            if ("min".equals(word)) {
+                min = scanner.readInt();
+            }
+            else if ("max".equals(word)) {
+                max = scanner.readInt();
+            }
+            else {
+                scanner.skipWord();
+            }
+        }
+        device.addAxis(code, min, max);
+    }
+
+    /*
+     * "0145  014a  ..." possibly wrapped over several lines
+     */
+    private static void parseKeys(LineScanner scanner, InputDevice device) {
+        scanner.skipSpaces();
+        int code;
+        while ((code = scanner.readHexToken()) >= 0) {
+            device.addKey(code);
+            scanner.skipSpaces();
+        }
+    }
+
+
+    /**
+     * What one input device reports: its KEY codes and its ABS axes with their ranges
+     */
+    public static class InputDevice {
+        private final String path;
+        private String name = "";
+        private final BitSet keys = new BitSet();
+        private final BitSet axes = new BitSet();
+        private final int[] axisMin = new int[ABS_NAMES.length];
+        private final int[] axisMax = new int[ABS_NAMES.length];
+
+        public InputDevice(String path) {
+            this.path = path;
+        }
+
+        public void addAxis(int code, int min, int max) {
+            if (code < 0 || code >= ABS_NAMES.length) {
+                return;
+            }
+            axes.set(code);
+            axisMin[code] = min;
+            axisMax[code] = max;
+        }
+
+        public void addKey(int code) {
+            keys.set(code);
+        }
+
+        public String getPath() {
+            return path;
+        }
+        public String getName() {
+            return name;
+        }
+        public void setName(String name) {
+            this.name = name;
+        }
+        public boolean hasAxis(int code) {
+            return axes.get(code);
+        }
+        public boolean hasKey(int code) {
+            return keys.get(code);
+        }
+        public int getAxisMin(int code) {
+            return axisMin[code];
+        }
+        public int getAxisMax(int code) {
+            return axisMax[code];
+        }
+
+        /**
+         * @return the ABS codes reported by the device
+         */
+        public BitSet getAxes() {
+            return (BitSet) axes.clone();
+        }
+
+        /**
+         * @return the KEY codes reported by the device
+         */
+        public BitSet getKeys() {
+            return (BitSet) keys.clone();
+        }
+
+        /**
+         * @return true if the device reports touches: multitouch contacts or BTN_TOUCH
+         */
+        public boolean isTouchDevice() {
+            return hasAxis(ABS_MT_TRACKING_ID) || hasAxis(ABS_MT_POSITION_X) || hasKey(BTN_TOUCH);
+        }
+    }
+
+
+    /**
+     * Minimal cursor over one line of getevent output
+     */
+    static class LineScanner {
+        private final String line;
+        private int pos;
+
+        LineScanner(String line) {
+            this.line = line;
+        }
+
+        int position() {
+            return pos;
+        }
+
+        void reset(int position) {
+            pos = position;
+        }
+
+        boolean atEnd() {
+            return pos >= line.length();
+        }
+
+        char peek() {
+            return atEnd() ? 0 : line.charAt(pos);
+        }
+
+        void advance() {
+            pos++;
+        }
+
+        void skipSpaces() {
+            while (!atEnd() && Character.isWhitespace(line.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        void skipSeparators() {
+            while (!atEnd() && (Character.isWhitespace(line.charAt(pos)) || line.charAt(pos) == ',' || line.charAt(pos) == ':')) {
+                pos++;
+            }
+        }
+
+        void skipWord() {
+            while (!atEnd() && !Character.isWhitespace(line.charAt(pos)) && line.charAt(pos) != ',') {
+                pos++;
+            }
+        }
+
+        void skipPast(char c) {
+            int index = line.indexOf(c, pos);
+            pos = index < 0 ? line.length() : index + 1;
+        }
+
+        /**
+         * Consumes the prefix if the line continues with it
+         */
+        boolean consume(String prefix) {
+            if (line.startsWith(prefix, pos)) {
+                pos += prefix.length();
+                return true;
+            }
+            return false;
+        }
+
+        String readWord() {
+            int start = pos;
+            while (!atEnd() && Character.isLetter(line.charAt(pos))) {
+                pos++;
+            }
+            return line.substring(start, pos);
+        }
+
+        int readHex() {
+            int value = 0;
+            int digit;
+            while (!atEnd() && (digit = Character.digit(line.charAt(pos), 16)) >= 0) {
+                value = (value << 4) | digit;
+                pos++;
+            }
+            return value;
+        }
+
+        /**
+         * Reads a hex number standing on its own, e.g. "014a" but not the start of "could"
+         * @return the number, or -1 without moving if the next token is not one
+         */
+        int readHexToken() {
+            int start = pos;
+            int value = readHex();
+            if (pos == start || !(atEnd() || Character.isWhitespace(peek()) || peek() == ':')) {
+                pos = start;
+                return -1;
+            }
+            return value;
+        }
+
+        int readInt() {
+            boolean negative = peek() == '-';
+            if (negative) {
+                pos++;
+            }
+            int value = 0;
+            while (!atEnd() && Character.isDigit(line.charAt(pos))) {
+                value = value * 10 + (line.charAt(pos) - '0');
+                pos++;
+            }
+            return negative ? -value : value;
+        }
+
+        String rest() {
+            String rest = line.substring(pos).trim();
+            pos = line.length();
+            return rest;
+        }
+    }
+}
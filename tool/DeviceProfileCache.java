@@ -0,0 +1,185 @@
+package semeru.odbr;
+
+import android.os.Build;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Small binary cache of the probed input devices, so a new process does not have to run getevent before it can
+ * record. Each entry is keyed by the build fingerprint and the listing of /dev/input: after an OTA or when an input
+ * device comes or goes the key no longer matches, and GetEventDeviceInfo re-probes.
+ *
+ * File layout: magic, version, key, device count, then per device its path, name, KEY codes and ABS axes with their
+ * min / max. The cache holds the probe results rather than the derived GetEventDeviceInfo state, so a change in how
+ * the state is derived does not invalidate it.
+ */
+public class DeviceProfileCache {
+    private static final int MAGIC = 0x4f444250; //"ODBP"
+    private static final int VERSION = 1;
+    private static final String INPUT_DIRECTORY = "/dev/input";
+    private static final String UNLISTED = "|?";
+    private static final long LIST_TIMEOUT = 2000;
+
+    private final String key;
+    private final List<DeviceProbe.InputDevice> devices;
+
+    private DeviceProfileCache(String key, List<DeviceProbe.InputDevice> devices) {
+        this.key = key;
+        this.devices = devices;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public List<DeviceProbe.InputDevice> getDevices() {
+        return devices;
+    }
+
+    /**
+     * @return true if the cache was written for this build and the input devices currently present
+     */
+    public boolean isCurrent() {
+        String current = currentKey();
+        return !current.endsWith(UNLISTED) && key.equals(current);
+    }
+
+    /**
+     * @return the build fingerprint followed by the sorted names in /dev/input. SELinux keeps most apps from listing
+     * /dev/input, the names are then listed by the root shell. Without any listing the key ends in a marker
+     * isCurrent() never accepts, so the devices are re-probed rather than trusting the fingerprint alone
+     */
+    public static String currentKey() {
+        StringBuilder builder = new StringBuilder(Build.FINGERPRINT);
+        String[] nodes = listInputDevices();
+        if (nodes == null) {
+            return builder.append(UNLISTED).toString();
+        }
+        Arrays.sort(nodes);
+        for (String node : nodes) {
+            builder.append('|').append(node);
+        }
+        return builder.toString();
+    }
+
+    private static String[] listInputDevices() {
+        String[] nodes = new File(INPUT_DIRECTORY).list();
+        if (nodes != null) {
+            return nodes;
+        }
+        try {
+            RootShell.Result result = RootShell.getInstance().run("ls " + INPUT_DIRECTORY, LIST_TIMEOUT);
+            if (result.isSuccess()) {
+                return result.getOutput().trim().split("\\s+");
+            }
+        } catch (IOException e) {
+            Log.v("DeviceProfileCache", "Could not list " + INPUT_DIRECTORY + ": " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * @return the cached probe, or null if there is no readable cache
+     */
+    public static DeviceProfileCache load(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            String key = in.readUTF();
+            int count = in.readInt();
+            List<DeviceProbe.InputDevice> devices = new ArrayList<DeviceProbe.InputDevice>(count);
+            for (int i = 0; i < count; i++) {
+                DeviceProbe.InputDevice device = new DeviceProbe.InputDevice(in.readUTF());
+                device.setName(in.readUTF());
+                int keys = in.readInt();
+                for (int k = 0; k < keys; k++) {
+                    device.addKey(in.readUnsignedShort());
+                }
+                int axes = in.readInt();
+                for (int a = 0; a < axes; a++) {
+                    device.addAxis(in.readUnsignedByte(), in.readInt(), in.readInt());
+                }
+                devices.add(device);
+            }
+            return new DeviceProfileCache(key, devices);
+        } catch (IOException e) {
+            Log.v("DeviceProfileCache", "Could not read the device profile cache: " + e.getMessage());
+            return null;
+        } finally {
+            close(in);
+        }
+    }
+
+    /**
+     * Writes the probe for the current key, replacing the previous cache
+     */
+    public static void store(File file, List<DeviceProbe.InputDevice> devices) {
+        File dir = file.getParentFile();
+        if (dir != null && !dir.exists()) {
+            dir.mkdirs();
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(currentKey());
+            out.writeInt(devices.size());
+            for (DeviceProbe.InputDevice device : devices) {
+                out.writeUTF(device.getPath());
+                out.writeUTF(device.getName());
+                BitSet keys = device.getKeys();
+                out.writeInt(keys.cardinality());
+                for (int k = keys.nextSetBit(0); k >= 0; k = keys.nextSetBit(k + 1)) {
+                    out.writeShort(k);
+                }
+                BitSet axes = device.getAxes();
+                out.writeInt(axes.cardinality());
+                for (int a = axes.nextSetBit(0); a >= 0; a = axes.nextSetBit(a + 1)) {
+                    out.writeByte(a);
+                    out.writeInt(device.getAxisMin(a));
+                    out.writeInt(device.getAxisMax(a));
+                }
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                Log.v("DeviceProfileCache", "Could not replace the device profile cache");
+            }
+        } catch (IOException e) {
+            Log.v("DeviceProfileCache", "Could not write the device profile cache: " + e.getMessage());
+        } finally {
+            close(out);
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // nothing left to do
+            }
+        }
+    }
+}
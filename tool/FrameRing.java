@@ -0,0 +1,166 @@
+package semeru.odbr;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Bounded ring of recent screen frames, kept by a background capture loop. A screenshot requested when a gesture
+ * starts can only show the screen a few hundred milliseconds after the touch, often mid gesture. With the ring running,
+ * the ScreenshotManager instead takes the newest frame grabbed before the touch, which costs the touch no capture
+ * time at all.
+ *
+ * Frames are held in memory in the RawFrame format (deflated raw pixels), the ring keeps at most maxFrames of them and
+ * evicts the oldest whenever their total size exceeds the memory budget. Frame times are wall clock times, like the
+ * input event timestamps they are compared to.
+ */
+public class FrameRing implements Runnable {
+    private static final long CAPTURE_TIMEOUT = 5000;
+    private static final long ERROR_BACKOFF_MILLIS = 1000;
+
+    private final int maxFrames;
+    private final long budgetBytes;
+    private final long intervalMillis;
+    private final ArrayDeque<Frame> frames = new ArrayDeque<Frame>();
+    private final RawFrame.Writer writer = new RawFrame.Writer();
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private long heldBytes;
+    private volatile boolean running;
+    private Thread worker;
+
+    /**
+     * @param maxFrames most frames kept
+     * @param budgetBytes most memory the kept frames may use
+     * @param intervalMillis pause between two captures
+     */
+    public FrameRing(int maxFrames, long budgetBytes, long intervalMillis) {
+        this.maxFrames = maxFrames;
+        this.budgetBytes = budgetBytes;
+        this.intervalMillis = intervalMillis;
+    }
+
+    public void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        worker = new Thread(this, "FrameRing");
+        worker.setDaemon(true);
+        worker.setPriority(Thread.NORM_PRIORITY - 1);
+        worker.start();
+    }
+
+    public void stop() {
+        running = false;
+        if (worker != null) {
+            worker.interrupt();
+            worker = null;
+        }
+        synchronized (frames) {
+            frames.clear();
+            heldBytes = 0;
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running && RawFrame.isSupported()) {
+            try {
+                Frame frame = capture();
+                if (frame != null) {
+                    add(frame);
+                }
+                Thread.sleep(frame != null ? intervalMillis : ERROR_BACKOFF_MILLIS);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    private Frame capture() {
+        buffer.reset();
+        writer.begin(buffer);
+        try {
+            RootShell.Result result = RootShell.getInstance().exec("/system/bin/screencap", writer).await(CAPTURE_TIMEOUT);
+            if (result.isSuccess() && writer.finish()) {
+                return new Frame(writer.getFrameTimeMillis(), buffer.toByteArray());
+            }
+        } catch (IOException e) {
+            Log.v("FrameRing", "Frame capture failed: " + e.getMessage());
+        }
+        if (writer.isRejected()) {
+            RawFrame.markUnsupported("unreadable frame from screencap");
+        }
+        writer.abort();
+        return null;
+    }
+
+    private void add(Frame frame) {
+        synchronized (frames) {
+            frames.addLast(frame);
+            heldBytes += frame.data.length;
+            while (frames.size() > maxFrames || (heldBytes > budgetBytes && frames.size() > 1)) {
+                heldBytes -= frames.removeFirst().data.length;
+            }
+        }
+    }
+
+    /**
+     * @return the newest frame grabbed at or before the given time, or null
+     */
+    public Frame newestBefore(long timeMillis) {
+        synchronized (frames) {
+            Iterator<Frame> newestFirst = frames.descendingIterator();
+            while (newestFirst.hasNext()) {
+                Frame frame = newestFirst.next();
+                if (frame.timeMillis <= timeMillis) {
+                    return frame;
+                }
+            }
+        }
+        return null;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+
+    /**
+     * One frame of the ring, immutable
+     */
+    public static class Frame {
+        final long timeMillis;
+        final byte[] data;
+
+        Frame(long timeMillis, byte[] data) {
+            this.timeMillis = timeMillis;
+            this.data = data;
+        }
+
+        public long getTimeMillis() {
+            return timeMillis;
+        }
+
+        /**
+         * Writes the frame as a RawFrame file
+         */
+        public void writeTo(File file) throws IOException {
+            File tmp = new File(file.getPath() + ".tmp");
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not write " + file);
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package semeru.odbr;
+
+/**
+ * A GestureSegmenter turns the raw input stream of one device into report events. Every input_event is appended to
+ * the device's InputEventLog, a TouchTracker follows the fingers on the screen, and each gesture (first finger down
+ * to last finger up, plus the rest of its frame) becomes one ReportEvent handed to the Sink.
+ *
+ * The segmenter only depends on an InputSource, a TouchProfile, a Sink and an OrientationSource, none of them tied to
+ * Android, so it runs the same on the live device (through ReportSink) and on recorded traces on a plain JVM (see
+ * TraceReplay), including headless without the screenshot and hierarchy managers (the listener may be null).
+ */
+public class GestureSegmenter implements Runnable {
+
+    /**
+     * Notified from the segmenter's thread at the gesture boundaries, implementations must not block
+     */
+    public interface Listener {
+        /**
+         * @param event the ReportEvent being built for the gesture
+         * @param timeMillis timestamp of the input event that started the gesture
+         */
+        void gestureStarted(ReportEvent event, long timeMillis);
+
+        /**
+         * @param event the finished ReportEvent, it is handed to the Sink right after this call
+         * @param timeMillis timestamp of the input event that ended the gesture
+         */
+        void gestureEnded(ReportEvent event, long timeMillis);
+    }
+
+    /**
+     * Receives the input and the events of the segmenter, called from the segmenter's thread
+     */
+    public interface Sink {
+        /**
+         * @return the log the device's input events are appended to
+         */
+        InputEventLog getInputLog(String device);
+
+        /**
+         * Called for every input event read, before it is appended
+         */
+        void onInput();
+
+        /**
+         * @param event a finished ReportEvent
+         */
+        void addEvent(ReportEvent event);
+
+        /**
+         * Called if reading the device stopped on an error, e.g. when its source is closed
+         */
+        void readFailed(String device, Exception e);
+    }
+
+    /**
+     * Supplies the screen orientation a finished gesture is recorded with
+     */
+    public interface OrientationSource {
+        int getCurrentOrientation();
+    }
+
+    private final InputSource source;
+    private final String device;
+    private final TouchTracker tracker;
+    private final Sink sink;
+    private final OrientationSource orientation;
+    private final Listener listener;
+    private final CaptureMetrics.Rate eventsRead;
+    private final CaptureMetrics.Counter synDropped;
+    private final CaptureMetrics.Histogram readToAddEvent;
+    private InputEventReader reader;
+    private volatile long eventCount;
+    private volatile int gestureCount;
+
+    /**
+     * @param source raw input_event stream of one device
+     * @param profile touch profile of the device the stream was taken from
+     * @param sink receives the input log and the finished events
+     * @param orientation orientation of the screen when a gesture ends
+     * @param listener notified of gesture boundaries, may be null
+     */
+    public GestureSegmenter(InputSource source, TouchProfile profile, Sink sink, OrientationSource orientation,
+                            Listener listener) {
+        this.source = source;
+        this.device = source.getDevice();
+        this.tracker = profile.newTracker();
+        this.sink = sink;
+        this.orientation = orientation;
+        this.listener = listener;
+        CaptureMetrics metrics = CaptureMetrics.getInstance();
+        eventsRead = metrics.rate(CaptureMetrics.named(CaptureMetrics.INPUT_EVENTS, device));
+        synDropped = metrics.counter(CaptureMetrics.named(CaptureMetrics.INPUT_SYN_DROPPED, device));
+        readToAddEvent = metrics.histogram(CaptureMetrics.READ_TO_ADD_EVENT_US);
+    }
+
+    @Override
+    public void run() {
+        try {
+            reader = new InputEventReader(source.open());
+            InputEventLog log = sink.getInputLog(device);
+            ReportEvent event = new ReportEvent(device, log);
+            while (reader.next()) {
+                sink.onInput();
+                append(event, log);
+                if (reader.getType() == TouchProfile.EV_SYN && reader.getCode() == TouchProfile.SYN_DROPPED) {
+                    synDropped.increment();
+                }
+
+                //the tracker follows the fingers down and up, the first fingerDown is the start of one report
+                //event, it finishes once a fingerUp leaves 0 fingers on the screen and its frame is complete.
+                //Artifacts are requested through the listener so this thread never waits on them
+                int transition = tracker.onEvent(reader.getType(), reader.getCode(), reader.getValue());
+                if (transition == TouchTracker.GESTURE_STARTED) {
+                    if (listener != null) {
+                        listener.gestureStarted(event, reader.getTimeMillis());
+                    }
+                }
+                else if (transition == TouchTracker.GESTURE_ENDED) {
+                    while (!endOfFrame() && reader.next()) {
+                        append(event, log);
+                    }
+                    event.setOrientation(orientation.getCurrentOrientation());
+                    if (listener != null) {
+                        listener.gestureEnded(event, reader.getTimeMillis());
+                    }
+                    sink.addEvent(event);
+                    readToAddEvent.record((System.nanoTime() - reader.getReadNanos()) / 1000);
+                    ++gestureCount;
+                    event = new ReportEvent(device, log);
+                }
+            }
+        } catch (Exception e) {
+            sink.readFailed(device, e);
+        } finally {
+            source.close();
+        }
+    }
+
+    private void append(ReportEvent event, InputEventLog log) {
+        event.addInput(log.append(reader));
+        eventsRead.mark();
+        ++eventCount;
+    }
+
+    /**
+     * @return true if the reader is positioned on the SYN_REPORT closing a frame of getevent lines
+     */
+    private boolean endOfFrame() {
+        return reader.getType() == TouchProfile.EV_SYN && reader.getCode() == TouchProfile.SYN_REPORT;
+    }
+
+    public String getDevice() {
+        return device;
+    }
+
+    /**
+     * @return number of input events read so far
+     */
+    public long getEventCount() {
+        return eventCount;
+    }
+
+    /**
+     * @return number of report events produced so far
+     */
+    public int getGestureCount() {
+        return gestureCount;
+    }
+}
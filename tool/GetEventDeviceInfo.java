@@ -2,54 +2,76 @@ package semeru.odbr;
 
 import android.util.Log;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Created by Brendan Otten on 5/8/2016.
- * Class is designed to house a hashmap of every ABS and KEY code on the phone / device. The device_info_hashmap
- * is the one with accessible data, the key_info_hashmap contains all the keys, the only one being added to the
- * device_info_hashmap being BTN_TOUCH. This allows for simple extendability, if there was a list of all the keys
- * you wanted to add, or if you just wanted to add all the keys to an accessible hashmap, just reroute their put
- * statement to the device_info_hashmap.
+ * Class is designed to house a hashmap of the ABS codes reported by the touch devices, plus BTN_TOUCH, the only key
+ * the tool needs. The device data comes from a DeviceProbe of the input devices, which also knows every other KEY
+ * code should the tool ever need more of them.
  *
  * In addition this class also determines the device type, which can either be a singleTouch device, a multitouch device
  * (A) that does not report slots in the getevent logs, or a multitouch device (B) that does report the slots. Finally, there
  * is a list of all the device locations that report event logs
+ *
+ * Once configured, the data is also compiled into an immutable TouchProfile, which is what the capture threads use to
+ * classify getevent lines. The probe results are kept in a DeviceProfileCache, so later processes skip the probe
+ *
+ * All of it is one immutable DeviceData snapshot, published through a single volatile field, so the DeviceProbe thread
+ * re-probing a stale cache never exposes half configured data. If the re-probe finds another set of touch devices
+ * the Listener is told, so recording restarts on the new devices
  */
 public class GetEventDeviceInfo {
+    private static final long PROBE_TIMEOUT = 10000;
+
+    /**
+     * Told from the DeviceProbe thread when a re-probe changed the set of touch devices
+     */
+    public interface Listener {
+        void devicesChanged();
+    }
 
-    private HashMap<String, Integer> device_info_hashmap = new HashMap<String, Integer>();
-    private HashMap<String, Integer> key_info_hashmap = new HashMap<String, Integer>();
     private static GetEventDeviceInfo ourInstance = new GetEventDeviceInfo();
-    private ArrayList<String> devices = new ArrayList<String>();
-    ArrayList<String> abs_name_list = new ArrayList<String>();
-    ArrayList<String> key_name_list = new ArrayList<String>();
-    private boolean typeSingleTouch = false;
-    private boolean typeMultiA = false;
-    private boolean typeMultiB = false;
-    private int maxX;
-    private int maxY;
-    private String device_to_add;
-    private boolean isConfigured = false;
+    private volatile DeviceData data = new DeviceData();
+    private volatile boolean isConfigured = false;
+    private volatile Listener listener;
 
     public static GetEventDeviceInfo getInstance() {
         return ourInstance;
     }
-    public void add_code(String key, Integer value){
-        device_info_hashmap.put(key, value);
+    public synchronized void add_code(String key, Integer value){
+        HashMap<String, Integer> codes = new HashMap<String, Integer>(data.codes);
+        codes.put(key, value);
+        DeviceData current = data;
+        data = new DeviceData(codes, current.devices, current.minX, current.minY, current.maxX, current.maxY);
     }
     public Integer get_code(String key){
-        return device_info_hashmap.get(key);
+        return data.codes.get(key);
     }
-    public HashMap<String, Integer> getMap(){
-        return device_info_hashmap;
+    public Map<String, Integer> getMap(){
+        return data.codes;
     }
     public ArrayList<String> getInputDevices(){
-        return devices;
+        return new ArrayList<String>(data.devices);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @return the compiled profile of the touch devices, safe to share between threads
+     */
+    public TouchProfile getTouchProfile(){
+        return data.touchProfile;
     }
 
     /**
@@ -57,233 +79,139 @@ public class GetEventDeviceInfo {
      * @return true or false based on type
      */
     public boolean isTypeSingleTouch(){
-        return typeSingleTouch;
+        return data.touchProfile.getProtocol() == TouchProfile.PROTOCOL_SINGLE_TOUCH;
     }
-    public boolean isMultiTouchA(){return typeMultiA;}
-    public boolean isMultiTouchB(){return typeMultiB;}
+    public boolean isMultiTouchA(){return data.touchProfile.getProtocol() == TouchProfile.PROTOCOL_MULTI_TOUCH_A;}
+    public boolean isMultiTouchB(){return data.touchProfile.getProtocol() == TouchProfile.PROTOCOL_MULTI_TOUCH_B;}
 
     public int getMaxX() {
-        return maxX;
+        return data.maxX;
     }
 
     public int getMaxY() {
-        return maxY;
+        return data.maxY;
+    }
+
+    public int getMinX() {
+        return data.minX;
+    }
+
+    public int getMinY() {
+        return data.minY;
     }
 
     /**
-     * Parser that runs through "adb shell getevent -li" and then "adb shell getevent -i" to match strings of ABS and KEY
-     * to their respective codes. The amount of text changes per line based on -li or -i instance, so it does not map line
-     * to line, rather, when we find a string that satisfies requirements as being a string of a code, we add it to a list
-     * then we use a 'counter' to denote which codes to match to these strings using the same parameters as before
+     * Configures the device data from the device profile cache when it is current. A cache left by another build or
+     * another set of input devices is still applied, so recording can start right away, and the devices are probed
+     * again in the background. Without a cache the devices are probed before returning
      */
     public void setDeviceData() {
         if(!isConfigured) {
-            device_info_hashmap = new HashMap<String, Integer>();
-            key_info_hashmap = new HashMap<String, Integer>();
-            devices = new ArrayList<String>();
-            abs_name_list = new ArrayList<String>();
-            key_name_list = new ArrayList<String>();
-
-            boolean btn_touch_found = false;
-            try {
-                //start the process
-                Process su = Runtime.getRuntime().exec("su", null, null);
-                OutputStream os = su.getOutputStream();
-                os.write(("getevent -li\n").getBytes("ASCII"));
-                os.flush();
-                os.close();
-                BufferedReader res = new BufferedReader(new InputStreamReader(su.getInputStream()));
-                String line;
-
-                //read until we hit end of output
-                while ((line = res.readLine()) != null) {
-                    String[] parts = line.split(" ");
-
-                    //adds the devices which are on a line like: add device X: /dev/input/eventX
-                    parseAdd(parts);
-
-                    //line is of the format KEY (XXXX) where XXXX is the value for EV_KEY
-                    if (line.contains("KEY") && line.contains("(") && line.contains(")")) {
-                        // iterate over the first line in the key's to get all the necessary strings
-                        for (int i = 0; i < parts.length; i++) {
-                            if (!parts[i].equals("") && !parts[i].equals("KEY") && !parts[i].contains("(") && !parts[i].contains(")")) {
-                                key_name_list.add(parts[i]);
-                                if (parts[i].equals("BTN_TOUCH")) {
-                                    btn_touch_found = true;
-                                }
-                            }
-                        }
-
-                        //go to the next line and then until we find another : which denotes the end of that section of keys
-                        line = res.readLine();
-                        parts = line.split(" ");
-                        while (!line.contains(":")) {
-
-                            //iterate over the parts of the string to grab the proper values
-                            for (int i = 0; i < parts.length; i++) {
-                                if (!parts[i].equals("") && !parts[i].equals("KEY") && !parts[i].contains("(") && !parts[i].contains(")")) {
-                                    key_name_list.add(parts[i]);
-                                    if (parts[i].equals("BTN_TOUCH")) {
-                                        btn_touch_found = true;
-                                        devices.add(device_to_add);
-                                    }
-                                }
-                            }
-                            if (res.ready()) {
-                                line = res.readLine();
-                                parts = line.split(" ");
-                            } else {
-                                break;
-                            }
-                        }
-                    }
-
-                    //if the line has an ABS_ in it, we add that respective code
-                    if (line.contains("ABS_")) {
-                        parseNameAbs(parts);
-                    }
-                }
-
-                //start the process again without the -l option to begin matching
-                su = Runtime.getRuntime().exec("su", null, null);
-                os = su.getOutputStream();
-                os.write(("getevent -i\n").getBytes("ASCII"));
-                os.flush();
-                os.close();
-                res = new BufferedReader(new InputStreamReader(su.getInputStream()));
-                int absIndex = 0;
-                int keyIndex = 0;
-                while ((line = res.readLine()) != null) {
-                    String[] parts = line.split(" ");
-
-                    //For our implementation we only care about this part if we found btn_touch, remove the if statement
-                    //if we want to add other keys
-                    if (btn_touch_found) {
-
-                        //first line of KEY (XXXX)
-                        if (line.contains("KEY") && line.contains("(") && line.contains(")")) {
-                            for (int i = 0; i < parts.length; i++) {
-                                if (!parts[i].equals("") && !parts[i].equals("KEY") && !parts[i].contains("(") && !parts[i].contains(")")) {
-                                    key_info_hashmap.put(key_name_list.get(keyIndex), Integer.parseInt(parts[i], 16));
-                                    keyIndex++;
-                                }
-                            }
-                            if (res.ready()) {
-                                line = res.readLine();
-                                parts = line.split(" ");
-                            } else {
-                                break;
-                            }
-
-                            //Read until next section denoted with a : inside it
-                            while (!line.contains(":")) {
-                                for (int i = 0; i < parts.length; i++) {
-                                    if (!parts[i].equals("") && !parts[i].equals("KEY") && !parts[i].contains("(") && !parts[i].contains(")")) {
-                                        key_info_hashmap.put(key_name_list.get(keyIndex), Integer.parseInt(parts[i], 16));
-                                        keyIndex++;
-                                    }
-                                }
-                                if (res.ready()) {
-                                    line = res.readLine();
-                                    parts = line.split(" ");
-                                } else {
-                                    break;
-                                }
-                            }
-                        }
-                    }
-
-                    //if line contains ABS parse the codes from there and match them to their corresponding strings
-                    if (line.contains("ABS")) {
-                        GetEventDeviceInfo.getInstance().add_code(abs_name_list.get(absIndex), Integer.parseInt(parts[parts.length - 15], 16));
-                        if ("ABS_MT_POSITION_X".equals(abs_name_list.get(absIndex))) {
-                            for (int ndx = 0; ndx < parts.length; ndx++) {
-                                if ("max".equals(parts[ndx])) {
-                                    maxX = Integer.parseInt(parts[ndx + 1].replace(",", ""));
-                                }
-                            }
-                        }
-                        if ("ABS_MT_POSITION_Y".equals(abs_name_list.get(absIndex))) {
-                            for (int ndx = 0; ndx < parts.length; ndx++) {
-                                if ("max".equals(parts[ndx])) {
-                                    maxY = Integer.parseInt(parts[ndx + 1].replace(",", ""));
-                                }
-                            }
-                        }
-                        line = res.readLine();
-                        absIndex++;
-                        while (line.contains("resolution") && line.contains("value")) {
-                            parts = line.split(" ");
-                            GetEventDeviceInfo.getInstance().add_code(abs_name_list.get(absIndex), Integer.parseInt(parts[parts.length - 15], 16));
-
-                            //extracts the maximum x and maximum y values from the lines
-                            if ("ABS_MT_POSITION_X".equals(abs_name_list.get(absIndex))) {
-                                for (int ndx = 0; ndx < parts.length; ndx++) {
-                                    if ("max".equals(parts[ndx])) {
-                                        maxX = Integer.parseInt(parts[ndx + 1].replace(",", ""));
-                                    }
-                                }
-                            }
-                            if ("ABS_MT_POSITION_Y".equals(abs_name_list.get(absIndex))) {
-                                for (int ndx = 0; ndx < parts.length; ndx++) {
-                                    if ("max".equals(parts[ndx])) {
-                                        maxY = Integer.parseInt(parts[ndx + 1].replace(",", ""));
-                                    }
-                                }
-                            }
-
-                            line = res.readLine();
-                            absIndex++;
+            final File cacheFile = new File(Globals.deviceProfileCacheFile);
+            DeviceProfileCache cache = DeviceProfileCache.load(cacheFile);
+            if (cache == null) {
+                probeAndCache(cacheFile);
+                return;
+            }
+            setDeviceData(cache.getDevices());
+            if (!cache.isCurrent()) {
+                Thread reprobe = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        List<String> before = data.devices;
+                        probeAndCache(cacheFile);
+                        Listener l = listener;
+                        if (l != null && !data.devices.equals(before)) {
+                            l.devicesChanged();
                         }
                     }
+                }, "DeviceProbe");
+                reprobe.setDaemon(true);
+                reprobe.start();
+            }
+        }
+    }
 
-                }
-
-                //adds BTN_TOUCH to hashmap if it was found
-                if (btn_touch_found) {
-                    device_info_hashmap.put("BTN_TOUCH", key_info_hashmap.get("BTN_TOUCH"));
-                }
-
-                set_device_type();
-                for (String s : devices) {
-                    Log.v("GetEventDeviceInfo", s);
-                }
-
-                isConfigured = true;
-
-            } catch (Exception e) {
-                Log.v("Main", "Error getting input devices");
+    private void probeAndCache(File cacheFile) {
+        try {
+            List<DeviceProbe.InputDevice> probed = probe();
+            setDeviceData(probed);
+            if (!data.devices.isEmpty()) {
+                DeviceProfileCache.store(cacheFile, probed);
             }
+        } catch (Exception e) {
+            Log.v("Main", "Error getting input devices");
         }
     }
 
     /**
-     * Method to parse through the lines written like: add device X: /dev/input/eventX
-     * @param parts: list of strings comprising the line that we are reading, split by " "
+     * Probes the input devices with a single "getevent -p", whose output lists every device with the numeric codes
+     * it reports and the range of each ABS axis, see DeviceProbe
      */
-    private void parseAdd(String [] parts){
-        if ("add".equals(parts[0])) {
-            device_to_add = parts[3];
+    private List<DeviceProbe.InputDevice> probe() throws IOException {
+        RootShell.Result result = RootShell.getInstance().run("getevent -p", PROBE_TIMEOUT);
+        return DeviceProbe.parse(new StringReader(result.getOutput()));
+    }
+
+    /**
+     * Configures the device data from probed input devices, e.g. parsed from fixture text. The result replaces the
+     * current data in one step
+     */
+    public synchronized void setDeviceData(List<DeviceProbe.InputDevice> probed) {
+        data = compile(probed);
+        for (String s : data.devices) {
+            Log.v("GetEventDeviceInfo", s);
         }
+        isConfigured = true;
     }
 
     /**
-     * Method to parse through the parts of a line that is split by " ", called if the line contains ABS
-     * @param parts: list of strings comprising the line that we are reading, split by " "
+     * @return the TouchProfile setDeviceData would configure for the probed devices
+     */
+    static TouchProfile compileProfile(List<DeviceProbe.InputDevice> probed) {
+        return compile(probed).touchProfile;
+    }
+
+    /*
+     * The touch devices are the ones we record, their ABS codes and BTN_TOUCH go into the code map, and the screen
+     * range comes from the multitouch position axes, or the single touch ones on devices without them
      */
-    private void parseNameAbs(String [] parts){
-        for (int i = 0; i < parts.length; i++) {
-            if (parts[i].contains("ABS_")) {
-                abs_name_list.add(parts[i]);
-                if(parts[i].equals("ABS_MT_TRACKING_ID")){
-                    devices.add(device_to_add);
+    private static DeviceData compile(List<DeviceProbe.InputDevice> probed) {
+        HashMap<String, Integer> codes = new HashMap<String, Integer>();
+        ArrayList<String> devices = new ArrayList<String>();
+        int minX = 0;
+        int minY = 0;
+        int maxX = 0;
+        int maxY = 0;
+        for (DeviceProbe.InputDevice device : probed) {
+            if (!device.isTouchDevice()) {
+                continue;
+            }
+            devices.add(device.getPath());
+            BitSet axes = device.getAxes();
+            for (int code = axes.nextSetBit(0); code >= 0; code = axes.nextSetBit(code + 1)) {
+                String name = DeviceProbe.absName(code);
+                if (name != null) {
+                    codes.put(name, code);
                 }
             }
+            if (device.hasKey(DeviceProbe.BTN_TOUCH)) {
+                codes.put("BTN_TOUCH", DeviceProbe.BTN_TOUCH);
+            }
+            int xAxis = device.hasAxis(DeviceProbe.ABS_MT_POSITION_X) ? DeviceProbe.ABS_MT_POSITION_X : DeviceProbe.ABS_X;
+            int yAxis = device.hasAxis(DeviceProbe.ABS_MT_POSITION_Y) ? DeviceProbe.ABS_MT_POSITION_Y : DeviceProbe.ABS_Y;
+            if (device.hasAxis(xAxis) && device.hasAxis(yAxis)) {
+                minX = device.getAxisMin(xAxis);
+                maxX = device.getAxisMax(xAxis);
+                minY = device.getAxisMin(yAxis);
+                maxY = device.getAxisMax(yAxis);
+            }
         }
+        return new DeviceData(codes, devices, minX, minY, maxX, maxY);
     }
 
     /**
-     * Method to set the device type:
+     * Method to determine the device type, as a TouchProfile protocol:
      * typeSingleTouch: device only supports single touch events
      * typeMultiTouchA: device supports multitouch but events are parsed differently, slightly prone to error as the
      * getevent logs do not indicate the presence of which finger/pointer is being tracked at which time
@@ -294,18 +222,45 @@ public class GetEventDeviceInfo {
      * --https://source.android.com/devices/input/touch-devices.html (Single vs MultiTouch)
      * --https://www.kernel.org/doc/Documentation/input/multi-touch-protocol.txt (Multitouch A || B)
      */
-    private void set_device_type(){
-        if(device_info_hashmap.get("ABS_MT_POSITION_X") != null && device_info_hashmap.get("ABS_MT_POSITION_Y") != null && device_info_hashmap.get("BTN_TOUCH") == null ){
-            if(device_info_hashmap.get("ABS_MT_SLOT") != null){
-                typeMultiB = true;
+    private static int deviceType(Map<String, Integer> codes){
+        if(codes.get("ABS_MT_POSITION_X") != null && codes.get("ABS_MT_POSITION_Y") != null && codes.get("BTN_TOUCH") == null ){
+            if(codes.get("ABS_MT_SLOT") != null){
+                return TouchProfile.PROTOCOL_MULTI_TOUCH_B;
             }
             else{
-                typeMultiA = true;
+                return TouchProfile.PROTOCOL_MULTI_TOUCH_A;
             }
         }
         else{
-            typeSingleTouch = true;
+            return TouchProfile.PROTOCOL_SINGLE_TOUCH;
         }
     }
 
+
+    /**
+     * Immutable snapshot of the device data and the TouchProfile compiled from it
+     */
+    private static final class DeviceData {
+        final Map<String, Integer> codes;
+        final List<String> devices;
+        final int minX;
+        final int minY;
+        final int maxX;
+        final int maxY;
+        final TouchProfile touchProfile;
+
+        DeviceData() {
+            this(new HashMap<String, Integer>(), new ArrayList<String>(), 0, 0, 0, 0);
+        }
+
+        DeviceData(Map<String, Integer> codes, List<String> devices, int minX, int minY, int maxX, int maxY) {
+            this.codes = Collections.unmodifiableMap(new HashMap<String, Integer>(codes));
+            this.devices = Collections.unmodifiableList(new ArrayList<String>(devices));
+            this.minX = minX;
+            this.minY = minY;
+            this.maxX = maxX;
+            this.maxY = maxY;
+            touchProfile = new TouchProfile(deviceType(codes), codes, devices, maxX, maxY);
+        }
+    }
 }
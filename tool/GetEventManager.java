@@ -1,46 +1,51 @@
 package semeru.odbr;
 
+import android.os.Build;
 import android.util.Log;
 
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.lang.Process;
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 /**
  * Created by Rich on 4/25/16.
- * Manages the GetEvent tasks. Interacts with the GetEventDeviceInfo to know which areas to cat to based on the
- * device array list (/dev/input/eventX). The manager toggles them on whenever we want to record inputs from the
- * record floating widget, and toggles them off whenever the overlay reappears. It is also responsible for triggering
- * the start of the screenshot and hierarchy execution
+ * Manages the GestureSegmenters. Interacts with the GetEventDeviceInfo to know which areas to read based on the
+ * device array list (/dev/input/eventX), or reads the InputSources it is given, e.g. recorded traces. The manager
+ * toggles them on whenever we want to record inputs from the record floating widget, and toggles them off whenever
+ * the overlay reappears. It is also responsible for triggering the start of the screenshot and hierarchy execution,
+ * which happens on the CaptureDispatcher's thread. When a re-probe finds other touch devices while recording live,
+ * the live sources are restarted on them
  */
-public class GetEventManager {
+public class GetEventManager implements GetEventDeviceInfo.Listener {
 
     private boolean recording;
+    private boolean live;
     private ExecutorService service;
-    private ArrayList<Process> processes;
+    private ArrayList<InputSource> sources;
     public ScreenshotManager sm;
     public HierarchyDumpManager hdm;
-    private
-
-    int EV_SYN = 0;
-    int EV_KEY = 1;
-    int EV_ABS = 3;
-
-    int SYN_REPORT = 0;
-    int TOUCH_DOWN = 1;
-    int TOUCH_UP = 0;
+    private CaptureDispatcher dispatcher;
 
     public GetEventManager() {
+        CaptureMetrics.getInstance().reset();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            InputEventReader.setNativeRecordSize(Build.SUPPORTED_64_BIT_ABIS.length > 0
+                    ? InputEventReader.RECORD_SIZE_64 : InputEventReader.RECORD_SIZE_32);
+        }
         recording = false;
         service = Executors.newCachedThreadPool();
-        processes = new ArrayList<Process>();
+        sources = new ArrayList<InputSource>();
         sm = new ScreenshotManager(Globals.screenshotDirectory);
         hdm = new HierarchyDumpManager(Globals.hierarchyDumpDirectory);
         sm.initialize();
         hdm.initialize();
+        hdm.setChangeSource(sm);
+        dispatcher = new CaptureDispatcher(sm, hdm);
+        dispatcher.start();
+        GetEventDeviceInfo.getInstance().setListener(this);
         if (BugReport.getInstance().getStartScreenshot() == null) {
             try {
                 BugReport.getInstance().setStartScreenshot(sm.takeScreenshot());
@@ -53,13 +58,32 @@ public class GetEventManager {
     /**
      * Method that starts the recording process and initalizes the screenshot and hierarchy managers
      */
-    public void startRecording() {
+    public synchronized void startRecording() {
+        if (recording) {
+            return;
+        }
+        List<InputSource> liveSources = new ArrayList<InputSource>();
+        for (String device : getInputDevices()) {
+            liveSources.add(InputSource.live(device));
+        }
+        startRecording(liveSources);
+        live = recording;
+    }
+
+    /**
+     * Starts one GestureSegmenter per source, each source is read until it ends or the recording is paused
+     * @param inputSources raw input streams, one per device
+     */
+    public synchronized void startRecording(List<InputSource> inputSources) {
         if (recording) {
             return;
         }
         try {
-            for (String device : getInputDevices()) {
-                service.submit(new GetEventTask(device));
+            TouchProfile profile = GetEventDeviceInfo.getInstance().getTouchProfile();
+            for (InputSource source : inputSources) {
+                sources.add(source);
+                service.submit(new GestureSegmenter(source, profile, ReportSink.INSTANCE, ReportSink.INSTANCE,
+                        dispatcher));
             }
             recording = true;
         } catch (Exception e) {
@@ -69,22 +93,47 @@ public class GetEventManager {
 
     public void pauseRecording() {
         try {
-            recording = false;
+            synchronized (this) {
+                recording = false;
+                live = false;
+            }
             BugReport.getInstance().setEndScreenshot(sm.takeScreenshot());
-            for (Process p : processes) {
-                p.getInputStream().close();
-                p.destroy();
+            synchronized (this) {
+                closeSources();
             }
         } catch (Exception e) {
             Log.v("GetEventManager", "Error stopping GetEvent process: " + e.getMessage());
         }
+        CaptureMetrics.getInstance().dumpToFile(new File(Globals.metricsFile));
     }
 
     /**
-     * Iterates through the recording processes and stops them, also destroys the hierarchy and screenshot managers
+     * Restarts live recording on the devices a re-probe found
+     */
+    @Override
+    public synchronized void devicesChanged() {
+        if (!recording || !live) {
+            return;
+        }
+        closeSources();
+        recording = false;
+        startRecording();
+    }
+
+    private void closeSources() {
+        for (InputSource source : sources) {
+            source.close();
+        }
+        sources.clear();
+    }
+
+    /**
+     * Closes the input sources, also destroys the hierarchy and screenshot managers
      */
     public void stopRecording() {
+        GetEventDeviceInfo.getInstance().setListener(null);
         pauseRecording();
+        dispatcher.stop();
         sm.destroy();
         hdm.destroy();
     }
@@ -92,122 +141,38 @@ public class GetEventManager {
     private ArrayList<String> getInputDevices(){
         return GetEventDeviceInfo.getInstance().getInputDevices();
     }
+}
 
 
-    /**
-     * A GetEventTask is a runnable that is responsible for creating multiple report events based on the output
-     * of the cat Process. Within our implementation we account for multiple fingers to be touching if the device
-     * is a multitouch device. The specific task is responsible for executing its process for cat on the specific device
-     * and then that process is added to the getEvent manager
-     */
-    class GetEventTask implements Runnable {
-        private byte[] res = new byte[16];
-        private InputStream is;
-        private String device;
-        private ReportEvent event;
-        private int id_num;
-        private int downCount;
-
-        public GetEventTask(String device) {
-            this.device = device;
-            downCount = 0;
-            try {
-                //starts cat for /dev/input/eventX
-                Process su = Runtime.getRuntime().exec("su", null, null);
-                OutputStream outputStream = su.getOutputStream();
-                outputStream.write(("cat " + device).getBytes("ASCII"));
-                outputStream.flush();
-                outputStream.close();
-                is = su.getInputStream();
-                processes.add(su);
-            } catch (Exception e) {
-                Log.v("GetEventTask", "Error: " + e.getMessage());
-            }
-        }
+/**
+ * Feeds the segmenters of the live session into the BugReport
+ */
+class ReportSink implements GestureSegmenter.Sink, GestureSegmenter.OrientationSource {
+    static final ReportSink INSTANCE = new ReportSink();
 
-        @Override
-        public void run() {
-            try {
-                //runnable that creates new report events based on the output of the cat process
-                event = new ReportEvent(device);
-                while (is.read(res) > 0) {
-                    Globals.event_active = true;
-                    GetEvent getevent = new GetEvent(res);
-                    event.addGetEvent(getevent);
-
-                    //tracks the number of fingers down and up, if 0 are down and we get a fingerDown that's the start
-                    //of one report event, it finishes once we have a fingerUp that then has 0 fingers on the screen
-                    if (fingerDown(getevent)) {
-                        if (downCount == 0) {
-                            event.setScreenshot(sm.takeScreenshot());
-                            try {
-                                event.setHierarchyDump(hdm.takeHierarchyDump());
-                            } catch (Exception e) {Log.e("GetEventManger", e.getMessage());}
-                        }
-                        ++downCount;
-                    }
-                    else if (fingerUp(getevent)) {
-                        --downCount;
-                        if (downCount == 0) {
-                            do {
-                                is.read(res);
-                                getevent = new GetEvent(res);
-                                event.addGetEvent(getevent);
-                            } while (getevent.getCode() != SYN_REPORT);
-                            event.setOrientation(BugReport.getInstance().getCurrentOrientation());
-                            BugReport.getInstance().addEvent(event);
-                            event = new ReportEvent(device);
-                        }
-                    }
-                }
-            } catch (Exception e) {
-                Log.v("GetEventTask", "Whoops! " + e.getMessage());
-            }
-        }
+    @Override
+    public InputEventLog getInputLog(String device) {
+        return BugReport.getInstance().getInputLog(device);
+    }
 
-        /**
-         * methods to determine if a getevent line is registering finger down/up based on the device type
-         * @param e: getEvent line for interpretation
-         * @return: true/false
-         */
-
-        private boolean fingerDown(GetEvent e) {
-
-            if(GetEventDeviceInfo.getInstance().isMultiTouchA() || GetEventDeviceInfo.getInstance().isMultiTouchB()){
-                Integer code = GetEventDeviceInfo.getInstance().get_code("ABS_MT_TRACKING_ID");
-                if(code == null){
-                    return false;
-                }
-                else {
-                    return e.getCode() == code && e.getValue() != 0xffffffff;
-                }
-            }
-            else {
-                if (e.getType() == EV_KEY && e.getCode() == GetEventDeviceInfo.getInstance().get_code("BTN_TOUCH") && e.getValue() == TOUCH_DOWN) {
-                    return true;
-                }
-            }
-            return false;
-        }
+    @Override
+    public void onInput() {
+        Globals.event_active = true;
+    }
 
-        private boolean fingerUp(GetEvent e) {
-            if(GetEventDeviceInfo.getInstance().isMultiTouchA() || GetEventDeviceInfo.getInstance().isMultiTouchB()){
-                Integer code = GetEventDeviceInfo.getInstance().get_code("ABS_MT_TRACKING_ID");
-                if(code == null){
-                    return false;
-                }
-                else {
-                    return e.getCode() == code && e.getValue() == 0xffffffff;
-                }
-            }
-            else {
-                if (e.getType() == EV_KEY && e.getCode() == GetEventDeviceInfo.getInstance().get_code("BTN_TOUCH") && e.getValue() == TOUCH_UP) {
-                    return true;
-                }
-            }
-            return false;
-        }
+    @Override
+    public void addEvent(ReportEvent event) {
+        BugReport.getInstance().addEvent(event);
+    }
+
+    @Override
+    public void readFailed(String device, Exception e) {
+        Log.v("GestureSegmenter", "Stopped reading " + device + ": " + e.getMessage());
+    }
 
+    @Override
+    public int getCurrentOrientation() {
+        return BugReport.getInstance().getCurrentOrientation();
     }
 }
 
@@ -223,6 +188,23 @@ class GetEvent {
         this.bytes = bytes.clone();
     }
 
+    /**
+     * @param records input_event records back to back, the event is the record at offset
+     * @param recordSize InputEventReader.RECORD_SIZE_32 or RECORD_SIZE_64, 64-bit records are kept in the 16 byte
+     * layout with the low halves of their time fields
+     */
+    public GetEvent(byte[] records, int offset, int recordSize) {
+        if (recordSize == InputEventReader.RECORD_SIZE_64) {
+            bytes = new byte[16];
+            System.arraycopy(records, offset, bytes, 0, 4);
+            System.arraycopy(records, offset + 8, bytes, 4, 4);
+            System.arraycopy(records, offset + 16, bytes, 8, 8);
+        }
+        else {
+            bytes = Arrays.copyOfRange(records, offset, offset + 16);
+        }
+    }
+
     private int toInt(byte b) {
         return b & 0x000000FF;
     }
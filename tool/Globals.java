@@ -2,6 +2,7 @@ package semeru.odbr;
 
 import android.hardware.Sensor;
 import android.hardware.SensorManager;
+import android.media.projection.MediaProjection;
 import android.util.SparseArray;
 
 import java.io.File;
@@ -22,6 +23,65 @@ public class Globals {
     public static String baseDirectory = "sdcard" + File.separator + "ODBR";
     public static String hierarchyDumpDirectory = baseDirectory + File.separator + "HierarchyDumps" + File.separator;
     public static String screenshotDirectory = baseDirectory + File.separator + "Screenshots" + File.separator;
+    public static String sessionJournalFile = baseDirectory + File.separator + "session.journal";
+    public static String deviceProfileCacheFile = baseDirectory + File.separator + "device_profile.cache";
+    public static String metricsFile = baseDirectory + File.separator + "metrics.txt";
+    public static boolean rawScreenshots = true; //capture raw frames and encode png only when needed, see RawFrame
+    public static int screenshotMergeDistance = 0; //merge screenshots this many dHash bits apart, see ScreenshotStore
+
+    /* Background WebP transcoding of stored screenshots, see ScreenshotTranscoder. A budget of 0 is unlimited */
+    public static boolean transcodeScreenshots = true;
+    public static int screenshotWebpQuality = 100;
+    public static boolean screenshotReviewDerivative = true;
+    public static int screenshotReviewWidth = 540;
+    public static long screenshotBudgetBytes = 64L * 1024 * 1024;
+    public static int screenshotDowngradeQuality = 60;
+
+    /* In-process screenshots through a MediaProjection the user consented to, see ProjectionCapture */
+    public static boolean projectionScreenshots = true;
+    public static MediaProjection mediaProjection;
+    public static int projectionWidth;
+    public static int projectionHeight;
+    public static int projectionDensityDpi;
+
+    /* "After" screenshots of the screen a gesture settled to, see SettleDetector. Cheap with the MediaProjection,
+     * every sample is a screencap otherwise, so without a projection they are only taken if settleWithScreencap.
+     * The threshold is in luminance levels of a grid block */
+    public static boolean afterScreenshots = true;
+    public static boolean settleWithScreencap = false;
+    public static long settleIntervalMillis = 100;
+    public static long settleTimeoutMillis = 3000;
+    public static int settleStableSamples = 2;
+    public static int settleThreshold = 3;
+
+    /* Hierarchy dumps streamed from uiautomator's stdout into the index and stored gzipped, see HierarchyStream */
+    public static boolean streamHierarchyDumps = true;
+    /* Reuse the previous dump while the MediaProjection shows no new frame, see HierarchyDumpManager */
+    public static boolean gateHierarchyDumps = true;
+    /* Dumps stored as deltas against the previous one, with a whole tree every interval dumps, see HierarchyStore */
+    public static boolean diffHierarchyDumps = true;
+    public static int hierarchyKeyframeInterval = 20;
+    /* Dumps not kept by the HierarchyStore are stored in the binary HierarchyCodec encoding instead of xml */
+    public static boolean binaryHierarchyDumps = true;
+
+    /* Artifact throttling under bursty input, see ArtifactPolicy. Off by default, it leaves artifacts out of reports */
+    public static boolean throttleArtifacts = false;
+    public static double screenshotsPerSecond = 2;
+    public static double screenshotBurst = 4;
+    public static double hierarchyDumpsPerSecond = 0.5;
+    public static double hierarchyBurst = 2;
+    public static long idleMillis = 2000;
+    /* Captures are degraded once their average turnaround exceeds factor times their own baseline, and the floor */
+    public static double degradeTurnaroundFactor = 2;
+    public static long degradeTurnaroundMillis = 1500;
+    /* While degraded, a hierarchy dump is still taken this long after the last one, to see whether it recovered */
+    public static long degradeRecoveryMillis = 10000;
+
+    /* Pre-touch frames, see FrameRing. Off by default, the loop keeps screencap running while recording */
+    public static boolean preTouchFrames = false;
+    public static int preTouchFrameCount = 6;
+    public static long preTouchFrameBudget = 32L * 1024 * 1024;
+    public static long preTouchFrameInterval = 150;
 
     /**
      * Description of the data contained within each sensor's float[]
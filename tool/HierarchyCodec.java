@@ -0,0 +1,579 @@
+package semeru.odbr;
+
+import android.util.Xml;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Compact binary encoding of a hierarchy dump, several times smaller than uiautomator's xml and read without parsing:
+ *
+ *   magic, version, string count, node count, string index offset, node index offset (big endian ints)
+ *   root attributes
+ *   node records, in document order: depth, subtree size, attributes
+ *   strings, each once: length, UTF-8 bytes
+ *   string index, node index: the offset of every string and node record (big endian ints)
+ *
+ * Numbers other than the header and indexes are varints. An attribute is its name's string id and its value's string
+ * id, except bounds, which are stored as four numbers. Through the indexes a node, its subtree (the records up to
+ * node + subtree size) or a string is read without touching the rest of the file.
+ *
+ * The xml written back is uiautomator's, so consumers of the xml keep working.
+ */
+public class HierarchyCodec {
+    private static final int MAGIC = 0x4f444842; //"ODHB"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+    private static final String XML_PROLOG = "<?xml version='1.0' encoding='UTF-8' standalone='yes' ?>";
+    private static final String BOUNDS = "bounds";
+
+    /**
+     * @return true if the bytes start a binary hierarchy dump
+     */
+    public static boolean isBinary(byte[] head, int length) {
+        return length >= 4 && ByteBuffer.wrap(head).getInt(0) == MAGIC;
+    }
+
+    /**
+     * Encodes a uiautomator xml dump
+     */
+    public static byte[] encode(InputStream xml) throws IOException {
+        Strings strings = new Strings();
+        return encode(parse(xml, strings), strings);
+    }
+
+    /**
+     * Encodes a tree whose string ids are from the table
+     */
+    static byte[] encode(Tree tree, Strings strings) throws IOException {
+        int[] local = new int[strings.size()];
+        Arrays.fill(local, -1);
+        ArrayList<String> used = new ArrayList<String>();
+        int boundsId = strings.find(BOUNDS);
+        int[] subtreeEnd = subtreeEnds(tree);
+
+        Output out = new Output(tree.count * 48 + 1024);
+        out.position = HEADER_SIZE;
+        writeAttributes(tree.rootAttributes, -1, strings, local, used, out);
+        int[] nodeOffsets = new int[tree.count];
+        for (int i = 0; i < tree.count; i++) {
+            nodeOffsets[i] = out.position;
+            out.varint(tree.depth[i]);
+            out.varint(subtreeEnd[i] - i);
+            writeAttributes(tree.attributes[i], boundsId, strings, local, used, out);
+        }
+        int[] stringOffsets = new int[used.size()];
+        for (int i = 0; i < used.size(); i++) {
+            stringOffsets[i] = out.position;
+            byte[] value = used.get(i).getBytes("UTF-8");
+            out.varint(value.length);
+            out.bytes(value);
+        }
+        int stringIndex = out.position;
+        for (int offset : stringOffsets) {
+            out.int32(offset);
+        }
+        int nodeIndex = out.position;
+        for (int offset : nodeOffsets) {
+            out.int32(offset);
+        }
+        int end = out.position;
+        out.position = 0;
+        out.int32(MAGIC);
+        out.int32(VERSION);
+        out.int32(used.size());
+        out.int32(tree.count);
+        out.int32(stringIndex);
+        out.int32(nodeIndex);
+        return Arrays.copyOf(out.buffer, end);
+    }
+
+    /*
+     * Names, and values except parseable bounds, become ids local to the encoding, numbered in order of first use
+     */
+    private static void writeAttributes(int[] pairs, int boundsId, Strings strings, int[] local, ArrayList<String> used,
+                                        Output out) throws IOException {
+        out.varint(pairs.length / 2);
+        for (int i = 0; i < pairs.length; i += 2) {
+            int name = localId(pairs[i], strings, local, used);
+            int[] bounds = pairs[i] == boundsId ? parseBounds(strings.get(pairs[i + 1])) : null;
+            out.varint(name << 1 | (bounds != null ? 1 : 0));
+            if (bounds != null) {
+                out.zigzag(bounds[0]);
+                out.zigzag(bounds[1]);
+                out.zigzag(bounds[2] - bounds[0]);
+                out.zigzag(bounds[3] - bounds[1]);
+            }
+            else {
+                out.varint(localId(pairs[i + 1], strings, local, used));
+            }
+        }
+    }
+
+    private static int localId(int id, Strings strings, int[] local, ArrayList<String> used) {
+        if (local[id] < 0) {
+            local[id] = used.size();
+            used.add(strings.get(id));
+        }
+        return local[id];
+    }
+
+    /*
+     * @return left, top, right, bottom of "[left,top][right,bottom]", or null unless formatting them gives the value
+     * back exactly
+     */
+    private static int[] parseBounds(String value) {
+        int[] bounds = new int[4];
+        int n = 0;
+        int i = 0;
+        while (n < 4 && i < value.length()) {
+            char c = value.charAt(i);
+            if (c == '-' || (c >= '0' && c <= '9')) {
+                int start = i++;
+                while (i < value.length() && value.charAt(i) >= '0' && value.charAt(i) <= '9') {
+                    i++;
+                }
+                try {
+                    bounds[n++] = Integer.parseInt(value.substring(start, i));
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            }
+            else {
+                i++;
+            }
+        }
+        return n == 4 && formatBounds(bounds).equals(value) ? bounds : null;
+    }
+
+    private static String formatBounds(int[] bounds) {
+        return "[" + bounds[0] + "," + bounds[1] + "][" + bounds[2] + "," + bounds[3] + "]";
+    }
+
+    /*
+     * End of each node's subtree: the next node that is not deeper
+     */
+    private static int[] subtreeEnds(Tree tree) {
+        int[] ends = new int[tree.count];
+        int[] open = new int[16];
+        int openCount = 0;
+        for (int i = 0; i <= tree.count; i++) {
+            int depth = i < tree.count ? tree.depth[i] : -1;
+            while (openCount > 0 && tree.depth[open[openCount - 1]] >= depth) {
+                ends[open[--openCount]] = i;
+            }
+            if (i < tree.count) {
+                if (openCount == open.length) {
+                    open = Arrays.copyOf(open, openCount * 2);
+                }
+                open[openCount++] = i;
+            }
+        }
+        return ends;
+    }
+
+    /**
+     * Parses a uiautomator xml dump, interning its attribute names and values into the table
+     */
+    static Tree parse(InputStream in, Strings strings) throws IOException {
+        Tree tree = new Tree(64);
+        try {
+            XmlPullParser parser = Xml.newPullParser();
+            parser.setInput(in, "UTF-8");
+            int depth = 0;
+            for (int event = parser.getEventType(); event != XmlPullParser.END_DOCUMENT; event = parser.next()) {
+                if (event == XmlPullParser.START_TAG && "node".equals(parser.getName())) {
+                    tree.add(depth++, attributes(parser, strings));
+                }
+                else if (event == XmlPullParser.START_TAG && "hierarchy".equals(parser.getName())) {
+                    tree.rootAttributes = attributes(parser, strings);
+                }
+                else if (event == XmlPullParser.END_TAG && "node".equals(parser.getName())) {
+                    depth--;
+                }
+            }
+        } catch (XmlPullParserException e) {
+            throw new IOException("Malformed hierarchy dump: " + e.getMessage());
+        }
+        return tree;
+    }
+
+    private static int[] attributes(XmlPullParser parser, Strings strings) {
+        int[] pairs = new int[parser.getAttributeCount() * 2];
+        for (int i = 0; i < pairs.length / 2; i++) {
+            pairs[i * 2] = strings.intern(parser.getAttributeName(i));
+            pairs[i * 2 + 1] = strings.intern(parser.getAttributeValue(i));
+        }
+        return pairs;
+    }
+
+    /**
+     * @return a reader over the encoded dump
+     * @throws IOException if the bytes are not a binary hierarchy dump
+     */
+    public static Reader read(byte[] data) throws IOException {
+        return new Reader(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * @return a reader over the memory mapped file, only the records read are paged in
+     */
+    public static Reader map(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            return new Reader(in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length()));
+        } finally {
+            in.close();
+        }
+    }
+
+
+    /**
+     * Random access to an encoded dump. Strings are decoded once, when first read. A reader is used by one thread at a
+     * time
+     */
+    public static class Reader {
+        private final ByteBuffer data;
+        private final int stringCount;
+        private final int nodeCount;
+        private final int stringIndex;
+        private final int nodeIndex;
+        private final String[] strings;
+        private int position;
+
+        Reader(ByteBuffer data) throws IOException {
+            this.data = data;
+            if (data.capacity() < HEADER_SIZE || data.getInt(0) != MAGIC) {
+                throw new IOException("Not a binary hierarchy dump");
+            }
+            if (data.getInt(4) != VERSION) {
+                throw new IOException("Unsupported hierarchy dump version " + data.getInt(4));
+            }
+            stringCount = data.getInt(8);
+            nodeCount = data.getInt(12);
+            stringIndex = data.getInt(16);
+            nodeIndex = data.getInt(20);
+            strings = new String[stringCount];
+        }
+
+        public int getNodeCount() {
+            return nodeCount;
+        }
+
+        public int getDepth(int node) {
+            position = data.getInt(nodeIndex + node * 4);
+            return varint();
+        }
+
+        /**
+         * @return the node after the node's subtree, the subtree is node up to it
+         */
+        public int getSubtreeEnd(int node) {
+            position = data.getInt(nodeIndex + node * 4);
+            varint();
+            return node + varint();
+        }
+
+        /**
+         * @return left, top, right, bottom, or null if the node has no bounds
+         */
+        public int[] getBounds(int node) {
+            String bounds = getAttribute(node, BOUNDS);
+            return bounds == null ? null : parseBounds(bounds);
+        }
+
+        public String getClassName(int node) {
+            return getAttribute(node, "class");
+        }
+
+        public String getResourceId(int node) {
+            return getAttribute(node, "resource-id");
+        }
+
+        public String getPackage(int node) {
+            return getAttribute(node, "package");
+        }
+
+        public String getText(int node) {
+            return getAttribute(node, "text");
+        }
+
+        /**
+         * @return the attribute's value, or null if the node does not have it
+         */
+        public String getAttribute(int node, String name) {
+            position = data.getInt(nodeIndex + node * 4);
+            varint();
+            varint();
+            for (int n = varint(); n > 0; n--) {
+                int key = varint();
+                boolean match = getString(key >> 1).equals(name);
+                if ((key & 1) != 0) {
+                    int[] bounds = readBounds();
+                    if (match) {
+                        return formatBounds(bounds);
+                    }
+                }
+                else {
+                    int value = varint();
+                    if (match) {
+                        return getString(value);
+                    }
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return the whole dump as uiautomator's xml
+         */
+        public String toXml() {
+            StringBuilder xml = new StringBuilder(nodeCount * 256);
+            xml.append(XML_PROLOG).append("<hierarchy");
+            position = HEADER_SIZE;
+            appendAttributes(xml);
+            xml.append('>');
+            appendNodes(0, nodeCount, xml);
+            xml.append("</hierarchy>");
+            return xml.toString();
+        }
+
+        /**
+         * @return the node and its subtree as a node element
+         */
+        public String toXml(int node) {
+            StringBuilder xml = new StringBuilder();
+            appendNodes(node, getSubtreeEnd(node), xml);
+            return xml.toString();
+        }
+
+        /*
+         * Writes consecutive records, each node on one line, nested by depth like uiautomator does
+         */
+        private void appendNodes(int from, int to, StringBuilder xml) {
+            int[] open = new int[16];
+            int openCount = 0;
+            for (int node = from; node < to; node++) {
+                position = data.getInt(nodeIndex + node * 4);
+                int depth = varint();
+                int size = varint();
+                while (openCount > 0 && open[openCount - 1] >= depth) {
+                    xml.append("</node>");
+                    openCount--;
+                }
+                xml.append("<node");
+                appendAttributes(xml);
+                if (size > 1) {
+                    xml.append('>');
+                    if (openCount == open.length) {
+                        open = Arrays.copyOf(open, openCount * 2);
+                    }
+                    open[openCount++] = depth;
+                }
+                else {
+                    xml.append(" />");
+                }
+            }
+            for (; openCount > 0; openCount--) {
+                xml.append("</node>");
+            }
+        }
+
+        private void appendAttributes(StringBuilder xml) {
+            for (int n = varint(); n > 0; n--) {
+                int key = varint();
+                xml.append(' ').append(getString(key >> 1)).append("=\"");
+                if ((key & 1) != 0) {
+                    xml.append(formatBounds(readBounds()));
+                }
+                else {
+                    escape(getString(varint()), xml);
+                }
+                xml.append('"');
+            }
+        }
+
+        private int[] readBounds() {
+            int left = zigzag();
+            int top = zigzag();
+            return new int[] {left, top, left + zigzag(), top + zigzag()};
+        }
+
+        /**
+         * @return the string with the id, decoded on first use
+         */
+        String getString(int id) {
+            String value = strings[id];
+            if (value == null) {
+                int saved = position;
+                position = data.getInt(stringIndex + id * 4);
+                byte[] bytes = new byte[varint()];
+                ByteBuffer source = data.duplicate();
+                source.position(position);
+                source.get(bytes);
+                try {
+                    value = new String(bytes, "UTF-8");
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                strings[id] = value;
+                position = saved;
+            }
+            return value;
+        }
+
+        private int varint() {
+            int value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = data.get(position++);
+                value |= (b & 0x7f) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+        }
+
+        private int zigzag() {
+            int value = varint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+    }
+
+    private static void escape(String value, StringBuilder xml) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '&': xml.append("&amp;"); break;
+                case '<': xml.append("&lt;"); break;
+                case '>': xml.append("&gt;"); break;
+                case '"': xml.append("&quot;"); break;
+                default:
+                    if (c < 0x20) {
+                        xml.append("&#").append((int) c).append(';');
+                    }
+                    else {
+                        xml.append(c);
+                    }
+            }
+        }
+    }
+
+
+    /**
+     * Strings interned to ids, e.g. for a whole session
+     */
+    static class Strings {
+        private final ArrayList<String> values = new ArrayList<String>();
+        private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+
+        int intern(String value) {
+            Integer id = ids.get(value);
+            if (id == null) {
+                id = values.size();
+                values.add(value);
+                ids.put(value, id);
+            }
+            return id;
+        }
+
+        /**
+         * @return the id of the string, or -1 if it was not interned
+         */
+        int find(String value) {
+            Integer id = ids.get(value);
+            return id == null ? -1 : id;
+        }
+
+        String get(int id) {
+            return values.get(id);
+        }
+
+        int size() {
+            return values.size();
+        }
+
+        void clear() {
+            values.clear();
+            ids.clear();
+        }
+    }
+
+    /**
+     * Nodes in document order, each with its depth and attributes as (name, value) string ids
+     */
+    static class Tree {
+        int[] rootAttributes = new int[0];
+        int count;
+        int[] depth;
+        int[][] attributes;
+
+        Tree(int capacity) {
+            depth = new int[Math.max(1, capacity)];
+            attributes = new int[depth.length][];
+        }
+
+        void add(int nodeDepth, int[] pairs) {
+            if (count == depth.length) {
+                depth = Arrays.copyOf(depth, count * 2);
+                attributes = Arrays.copyOf(attributes, count * 2);
+            }
+            depth[count] = nodeDepth;
+            attributes[count++] = pairs;
+        }
+    }
+
+    /*
+     * Growable buffer the encoding is written to
+     */
+    private static class Output {
+        byte[] buffer;
+        int position;
+
+        Output(int capacity) {
+            buffer = new byte[capacity];
+        }
+
+        private void ensure(int n) {
+            if (position + n > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + n));
+            }
+        }
+
+        void varint(int value) {
+            ensure(5);
+            while ((value & ~0x7f) != 0) {
+                buffer[position++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        void zigzag(int value) {
+            varint((value << 1) ^ (value >> 31));
+        }
+
+        void int32(int value) {
+            ensure(4);
+            buffer[position++] = (byte) (value >>> 24);
+            buffer[position++] = (byte) (value >>> 16);
+            buffer[position++] = (byte) (value >>> 8);
+            buffer[position++] = (byte) value;
+        }
+
+        void bytes(byte[] value) {
+            ensure(value.length);
+            System.arraycopy(value, 0, buffer, position, value.length);
+            position += value.length;
+        }
+    }
+}
@@ -2,39 +2,54 @@ package semeru.odbr;
 
 import android.util.Log;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
+import java.util.zip.GZIPInputStream;
 
 
 /**
  * The HierarchyDumpManager takes hierarchy dump requests, returning HierarchyDump objects and
- * calling uiautomator to create a dump at the file location.
+ * calling uiautomator to create a dump at the file location. Requests are bound to dumps by a CaptureScheduler, so
+ * close requests share one uiautomator run and each HierarchyDump knows when its dump was taken.
+ *
+ * With Globals.streamHierarchyDumps uiautomator writes the dump to its stdout, which is parsed into the dump's
+ * HierarchyIndex as it arrives and stored gzipped, see HierarchyStream. If a device does not produce a dump that way,
+ * the manager falls back to dumping into a file for the rest of the session.
+ *
+ * With Globals.gateHierarchyDumps a request reuses the previous dump while the screen has not changed since it was
+ * requested. The signature of the screen is the frame count of the screenshot ProjectionCapture: its virtual display
+ * only produces a frame when the screen changed, so an unchanged count is exact and costs nothing. Without a
+ * projection telling us that, every request dumps.
+ *
+ * With Globals.diffHierarchyDumps captured dumps are moved into the HierarchyStore, as deltas against the previous
+ * dump, otherwise Globals.binaryHierarchyDumps stores each dump in the HierarchyCodec encoding. Either way
+ * HierarchyDump.openXml() gives consumers the xml back.
  */
 public class HierarchyDumpManager {
-    private ThreadPoolExecutor service;
-    private Process process;
+    static final long CAPTURE_TIMEOUT = 15000;
+    private static final long DEFAULT_DEADLINE_MILLIS = 1000;
+
     private String directory;
-    private String filename;
-    private int dump_index;
-    private BlockingQueue<Runnable> taskQueue;
+    private CaptureScheduler scheduler;
+    private volatile boolean streaming = Globals.streamHierarchyDumps;
+    private ScreenshotManager changeSource;
+    private HierarchyDump lastDump;
+    private long lastDumpFrame;
+    private final CaptureMetrics.Counter reused = CaptureMetrics.getInstance().counter(CaptureMetrics.HIERARCHY_REUSED);
+    private final CaptureMetrics.Counter reuseSaved =
+            CaptureMetrics.getInstance().counter(CaptureMetrics.HIERARCHY_REUSE_SAVED_MS);
 
 
     public HierarchyDumpManager(String directory) {
-        dump_index = 0;
         this.directory = directory;
-        filename = "dump" + dump_index + ".xml";
         File dir = new File(directory);
         if (dir.exists()) {
             for (File f : dir.listFiles()) {
@@ -44,23 +59,52 @@ public class HierarchyDumpManager {
         else {
             dir.mkdirs();
         }
+        HierarchyStore.getInstance().reset();
     }
 
 
     public void initialize() {
-        taskQueue = new ArrayBlockingQueue<Runnable>(1);
-        service = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS, taskQueue);
-        try {
-            process = Runtime.getRuntime().exec("su", null, null);
-        } catch (Exception e) {Log.e("HierarchyDumpTask", "Could not start process! Check su permissions.");}
+        scheduler = new CaptureScheduler("Hierarchy", directory + "dump", fileSuffix(), new HierarchyDumpCapturer(),
+                CaptureMetrics.HIERARCHY_TURNAROUND_MS, CaptureMetrics.HIERARCHY_STALENESS_MS,
+                CaptureMetrics.HIERARCHY_COALESCED);
+        scheduler.start();
+        RootShell.getInstance().warmUp();
+    }
+
+
+    /*
+     * Dump files are named by how they are stored, readers go by their content
+     */
+    private String fileSuffix() {
+        if (!Globals.diffHierarchyDumps && Globals.binaryHierarchyDumps) {
+            return ".odh";
+        }
+        return streaming ? ".xml.gz" : ".xml";
+    }
+
+
+    /**
+     * Gates dumps on the screen changes seen by the screenshot manager's projection, see Globals.gateHierarchyDumps
+     */
+    public synchronized void setChangeSource(ScreenshotManager sm) {
+        changeSource = sm;
+    }
+
+
+    /**
+     * @return moving average of the hierarchy dump capture time in milliseconds
+     */
+    public long getAverageTurnaround() {
+        return scheduler == null ? 0 : scheduler.getAverageMillis();
+    }
+
+    public long getBaselineTurnaround() {
+        return scheduler == null ? 0 : scheduler.getBaselineMillis();
     }
 
 
     public void destroy() {
-        try {
-            service.shutdown();
-            process.destroy();
-        } catch (Exception e) {Log.e("HierarchyDumpManager", "Could not destroy process: " + e.getMessage());}
+        scheduler.stop();
     }
 
     /**
@@ -70,45 +114,106 @@ public class HierarchyDumpManager {
      * @throws Exception : manager is not initialized
      */
     public HierarchyDump takeHierarchyDump() throws Exception {
-        if (service == null) {
+        return takeHierarchyDump(System.currentTimeMillis());
+    }
+
+    /**
+     * Returns a HierarchyDump of the view hierarchy as close after the given time as possible, sharing a dump
+     * that started after that time or is about to start
+     * @param timeMillis wall clock time, e.g. of the input event starting a gesture
+     * @throws Exception : manager is not initialized
+     */
+    public HierarchyDump takeHierarchyDump(long timeMillis) throws Exception {
+        if (scheduler == null) {
             throw new Exception("HierarchyDumpManager not initialized");
         }
-        if (taskQueue.isEmpty()) {
-            dump_index += 1;
-            filename = "dump" + dump_index + ".xml";
-            service.submit(new HierarchyDumpTask(directory + filename));
+        synchronized (this) {
+            long frame = currentFrame();
+            if (frame >= 0 && lastDump != null && frame == lastDumpFrame && !lastDump.isFailed()) {
+                reused.increment();
+                reuseSaved.add(getAverageTurnaround());
+                return lastDump;
+            }
+            long deadline = Math.max(timeMillis, System.currentTimeMillis()) + DEFAULT_DEADLINE_MILLIS;
+            CaptureScheduler.Capture capture = scheduler.request(timeMillis, deadline);
+            lastDump = new HierarchyDump(capture.getFile(), capture);
+            lastDumpFrame = frame;
+            return lastDump;
         }
-        return new HierarchyDump(directory + filename);
     }
 
 
-    /**
-     * Uses uiautomator to take a dump of the view hierarchy, saving the xml at filename
+    /*
+     * Frame count of the projection, or -1 if there is no signature of the screen to gate on
      */
-    class HierarchyDumpTask implements Runnable {
+    private long currentFrame() {
+        if (!Globals.gateHierarchyDumps || changeSource == null) {
+            return -1;
+        }
+        ProjectionCapture projection = changeSource.getProjection();
+        if (projection == null || !projection.isActive() || projection.getFrameCount() == 0) {
+            return -1;
+        }
+        return projection.getFrameCount();
+    }
 
-        private String filename;
-        private int MIN_INTERVAL = 300;
 
-        public HierarchyDumpTask(String filename) {
-            this.filename = filename;
-        }
+    /**
+     * Uses uiautomator to take a dump of the view hierarchy, streamed or into a temporary file that is renamed to the
+     * dump's file once uiautomator exits, so the root shell's exit status tells when the dump is complete
+     */
+    class HierarchyDumpCapturer implements CaptureScheduler.Capturer {
 
         @Override
-        public void run() {
-            try {
-                OutputStream os = process.getOutputStream();
-                Log.v("HDM", "Starting " + filename + " " + System.currentTimeMillis());
-                os.write(("/system/bin/uiautomator dump " + filename + " >/dev/null & \n").getBytes("ASCII"));
-                os.flush();
-                do {
-                    Thread.sleep(MIN_INTERVAL);
+        public boolean capture(String file) throws IOException {
+            Log.v("HDM", "Starting " + file + " " + System.currentTimeMillis());
+            boolean done = streaming && stream(file);
+            if (!done) {
+                String tmp = file + ".tmp";
+                done = RootShell.getInstance()
+                        .run("/system/bin/uiautomator dump " + tmp + " >/dev/null && mv " + tmp + " " + file,
+                                CAPTURE_TIMEOUT)
+                        .isSuccess();
+            }
+            Log.v("HDM", "Finished " + file + " " + System.currentTimeMillis());
+            if (done && Globals.diffHierarchyDumps) {
+                HierarchyStore.getInstance().add(file);
+            }
+            else if (done && Globals.binaryHierarchyDumps) {
+                try {
+                    HierarchyDump.encodeFile(file);
+                } catch (IOException e) {
+                    Log.w("HDM", "Keeping xml of " + file + ": " + e.getMessage());
                 }
-                while (!(new File(filename).exists()));
-                Log.v("HDM", "Finished " + filename + " " + System.currentTimeMillis());
-            } catch (Exception e) {
-                Log.e("HierarchyDumpTask", "Error taking Hierarchy Dump: " + e.getMessage());
             }
+            return done;
+        }
+
+        /*
+         * uiautomator only takes a path, /proc/self/fd/1 is its own stdout. The index is parsed on this thread while
+         * the dump arrives, and is cached before the capture completes, so nobody reads the file back
+         */
+        private boolean stream(String file) throws IOException {
+            HierarchyStream stream = new HierarchyStream(new File(file));
+            RootShell.CommandFuture command =
+                    RootShell.getInstance().exec("/system/bin/uiautomator dump /proc/self/fd/1", stream);
+            HierarchyIndex index = null;
+            try {
+                index = HierarchyIndex.parse(stream.input(command, System.currentTimeMillis() + CAPTURE_TIMEOUT));
+                command.await(CAPTURE_TIMEOUT);
+            } catch (IOException e) {
+                command.cancel(true);
+                Log.w("HDM", "Streamed dump failed: " + e.getMessage());
+            }
+            if (stream.finish() && index != null) {
+                HierarchyIndex.put(file, index);
+                return true;
+            }
+            if (!stream.isComplete()) {
+                Log.w("HDM", "uiautomator does not stream dumps, dumping to files");
+                streaming = false;
+            }
+            return false;
         }
     }
 }
@@ -121,9 +226,54 @@ public class HierarchyDumpManager {
 class HierarchyDump {
 
     private String filename;
+    private transient CaptureScheduler.Capture capture;
 
     public HierarchyDump(String filename) {
+        this(filename, null);
+    }
+
+    /**
+     * @param capture scheduled capture of the file, null if the file is complete
+     */
+    public HierarchyDump(String filename, CaptureScheduler.Capture capture) {
         this.filename = filename;
+        this.capture = capture;
+    }
+
+    /**
+     * Waits until the dump is written
+     * @return true if the file is complete
+     */
+    public boolean awaitCompletion(long timeoutMillis) {
+        if (capture == null) {
+            return true;
+        }
+        try {
+            return capture.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (Exception e) {
+            Log.e("HierarchyDumpManager", "Dump " + filename + " not captured: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * @return true if the dump was captured and failed, a dump still being captured has not failed
+     */
+    public boolean isFailed() {
+        if (capture == null || !capture.isDone()) {
+            return false;
+        }
+        return !awaitCompletion(0);
+    }
+
+    /**
+     * @return wall clock time uiautomator was started at, Long.MAX_VALUE while the dump has not started, 0 if unknown
+     */
+    public long getCaptureTimeMillis() {
+        return capture == null ? 0 : capture.getStartMillis();
     }
 
 
@@ -133,61 +283,116 @@ class HierarchyDump {
 
 
     /**
-     * Returns the deepest view containing the coordinates as a Node
-     * @param x the x coordinate
-     * @param y the y coordinate
-     * @return Node for the deepest view encapsulating the input coordinates
+     * @return the dump's xml, decompressed or decoded from the way the dump is stored, or materialized by the
+     * HierarchyStore
      */
-    public Node getViewAtCoordinates(int x, int y) {
-        Node node = null;
+    public static InputStream openXml(String filename) throws IOException {
         try {
-            DocumentBuilderFactory docBuilderFactory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder docBuilder = docBuilderFactory.newDocumentBuilder();
-            Document document = docBuilder.parse(new File(filename));
-            node = getNodeBetweenBounds(document.getDocumentElement(), x, y);
-        } catch (Exception e) {}
-        return node;
+            return openFile(filename);
+        } catch (FileNotFoundException e) {
+            return HierarchyStore.getInstance().open(filename);
+        }
     }
 
+    /**
+     * @return the dump in the HierarchyCodec encoding, read without parsing xml if it is stored that way
+     */
+    public static HierarchyCodec.Reader openBinary(String filename) throws IOException {
+        File file = new File(filename);
+        if (!file.exists()) {
+            return HierarchyStore.getInstance().openBinary(filename);
+        }
+        if (isBinary(file)) {
+            return HierarchyCodec.map(file);
+        }
+        InputStream in = openFile(filename);
+        try {
+            return HierarchyCodec.read(HierarchyCodec.encode(in));
+        } finally {
+            in.close();
+        }
+    }
 
-    /*
-     * Helper function for getViewAtCoordinates, returns deepest node containing x and y
-     */
-    private Node getNodeBetweenBounds(Node node, int x, int y) {
-        boolean childBetweenBounds = true;
-        while (childBetweenBounds) {
-            childBetweenBounds = false;
-            NodeList nodeList = node.getChildNodes();
-            for (int i = 0; i < nodeList.getLength(); i++) {
-                if (isBetweenBounds(x, y, getBounds(nodeList.item(i)))) {
-                    childBetweenBounds = true;
-                    node = nodeList.item(i);
-                    break;
-                }
-            }
+    /**
+     * @return the xml of the dump's own file, before the HierarchyStore took it
+     */
+    static InputStream openFile(String filename) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(filename));
+        //files are named by the mode at request time, so the content tells how the dump is stored
+        byte[] head = new byte[4];
+        in.mark(head.length);
+        int n = in.read(head);
+        in.reset();
+        if (n >= 2 && head[0] == 0x1f && (head[1] & 0xff) == 0x8b) {
+            return new GZIPInputStream(in);
+        }
+        if (HierarchyCodec.isBinary(head, n)) {
+            in.close();
+            return new ByteArrayInputStream(HierarchyCodec.map(new File(filename)).toXml().getBytes("UTF-8"));
         }
-        return node;
+        return in;
     }
 
+    private static boolean isBinary(File file) throws IOException {
+        byte[] head = new byte[4];
+        InputStream in = new FileInputStream(file);
+        try {
+            return HierarchyCodec.isBinary(head, in.read(head));
+        } finally {
+            in.close();
+        }
+    }
 
-    /*
-     * Helper function for getNodeBetweenBounds, returns node's bounds as int[]
+    /**
+     * Rewrites an xml dump file in the HierarchyCodec encoding
+     */
+    static void encodeFile(String filename) throws IOException {
+        InputStream in = openFile(filename);
+        byte[] encoded;
+        try {
+            encoded = HierarchyCodec.encode(in);
+        } finally {
+            in.close();
+        }
+        File tmp = new File(filename + ".tmp");
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(encoded);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(new File(filename))) {
+            tmp.delete();
+            throw new IOException("Could not write " + filename);
+        }
+    }
+
+
+    /**
+     * @return the parsed dump, shared by all HierarchyDumps of the file
+     * @throws IOException if the dump was not captured or cannot be parsed
      */
-    private int[] getBounds(Node node) {
-        String[] boundsAttr = (((Element) node).getAttribute("bounds")).replace("[","").split("[^0-9]");
-        int[] bounds = new int[boundsAttr.length];
-        for (int i = 0; i < boundsAttr.length; i++) {
-            bounds[i] = Integer.parseInt(boundsAttr[i]);
+    public HierarchyIndex getIndex() throws IOException {
+        if (!awaitCompletion(HierarchyDumpManager.CAPTURE_TIMEOUT)) {
+            throw new IOException("Dump " + filename + " not captured");
         }
-        return bounds;
+        return HierarchyIndex.forFile(filename);
     }
 
 
-    /*
-     * Helper function for getNodeBetweenBounds, returns true if the x and y coordinates are
-     * within the bounds, false otherwise
+    /**
+     * Returns the deepest view containing the coordinates
+     * @param x the x coordinate
+     * @param y the y coordinate
+     * @return the deepest view encapsulating the input coordinates, null if there is none or the dump is unreadable
      */
-    private boolean isBetweenBounds(int x, int y, int[] bounds) {
-        return x >= bounds[0] && x <= bounds[2] && y >= bounds[1] && y <= bounds[3];
+    public HierarchyIndex.View getViewAtCoordinates(int x, int y) {
+        try {
+            HierarchyIndex index = getIndex();
+            return index.getView(index.getNodeAt(x, y));
+        } catch (IOException e) {
+            Log.e("HierarchyDumpManager", "Could not read " + filename + ": " + e.getMessage());
+            return null;
+        }
     }
-}
\ No newline at end of file
+}
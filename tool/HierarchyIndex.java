@@ -0,0 +1,382 @@
+package semeru.odbr;
+
+import android.util.Xml;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A uiautomator hierarchy dump parsed once, with a pull parser, into a flat node table: the nodes in document order,
+ * each with its bounds, parent and depth in parallel int arrays, and its class, resource-id and text as indexes into
+ * a table of interned strings. A grid over the screen lists, for each cell, the nodes whose bounds overlap it, so
+ * finding the view at a point only looks at the nodes of one cell instead of walking the whole tree.
+ *
+ * Indexes are cached by dump file, events sharing or reusing a dump share its index.
+ */
+public class HierarchyIndex {
+    public static final int NO_NODE = -1;
+    private static final int GRID_COLS = 16;
+    private static final int GRID_ROWS = 16;
+    private static final int CACHE_SIZE = 8;
+    private static final int INITIAL_CAPACITY = 256;
+
+    private static final Map<String, HierarchyIndex> cache =
+            new LinkedHashMap<String, HierarchyIndex>(CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, HierarchyIndex> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+
+    private int count;
+    private int[] left = new int[INITIAL_CAPACITY];
+    private int[] top = new int[INITIAL_CAPACITY];
+    private int[] right = new int[INITIAL_CAPACITY];
+    private int[] bottom = new int[INITIAL_CAPACITY];
+    private int[] parent = new int[INITIAL_CAPACITY];
+    private int[] depth = new int[INITIAL_CAPACITY];
+    private int[] className = new int[INITIAL_CAPACITY];
+    private int[] resourceId = new int[INITIAL_CAPACITY];
+    private int[] text = new int[INITIAL_CAPACITY];
+    private final ArrayList<String> strings = new ArrayList<String>();
+    private final HashMap<String, Integer> stringIndex = new HashMap<String, Integer>();
+    private int width;
+    private int height;
+    private int[][] cells;
+
+    private HierarchyIndex() {
+    }
+
+    /**
+     * @return the index of the dump file, parsed on first use
+     * @throws IOException if the file cannot be read or is not a hierarchy dump
+     */
+    public static HierarchyIndex forFile(String filename) throws IOException {
+        synchronized (cache) {
+            HierarchyIndex index = cache.get(filename);
+            if (index != null) {
+                return index;
+            }
+        }
+        HierarchyIndex index = read(HierarchyDump.openBinary(filename));
+        put(filename, index);
+        return index;
+    }
+
+    /**
+     * Caches the index of a dump parsed as it was captured
+     */
+    static void put(String filename, HierarchyIndex index) {
+        synchronized (cache) {
+            cache.put(filename, index);
+        }
+    }
+
+    /**
+     * Parses a hierarchy dump from the stream
+     */
+    public static HierarchyIndex parse(InputStream in) throws IOException {
+        HierarchyIndex index = new HierarchyIndex();
+        try {
+            XmlPullParser parser = Xml.newPullParser();
+            parser.setInput(in, "UTF-8");
+            index.read(parser);
+        } catch (XmlPullParserException e) {
+            throw new IOException("Malformed hierarchy dump: " + e.getMessage());
+        }
+        index.buildGrid();
+        return index;
+    }
+
+    /**
+     * Builds the index from a dump in the HierarchyCodec encoding, reading only the attributes it keeps
+     */
+    public static HierarchyIndex read(HierarchyCodec.Reader reader) {
+        HierarchyIndex index = new HierarchyIndex();
+        int[] open = new int[32];
+        for (int node = 0; node < reader.getNodeCount(); node++) {
+            int nodeDepth = reader.getDepth(node);
+            if (nodeDepth == open.length) {
+                open = Arrays.copyOf(open, nodeDepth * 2);
+            }
+            int i = index.add(nodeDepth == 0 ? NO_NODE : open[nodeDepth - 1], nodeDepth, reader.getClassName(node),
+                    reader.getResourceId(node), reader.getText(node), reader.getBounds(node));
+            open[nodeDepth] = i;
+        }
+        index.buildGrid();
+        return index;
+    }
+
+    /**
+     * Drops cached indexes, e.g. when the report is cleared
+     */
+    public static void clearCache() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    /*
+     * Appends each <node> in document order, parents before their children
+     */
+    private void read(XmlPullParser parser) throws XmlPullParserException, IOException {
+        int[] open = new int[32];
+        int openCount = 0;
+        for (int event = parser.getEventType(); event != XmlPullParser.END_DOCUMENT; event = parser.next()) {
+            if (event == XmlPullParser.START_TAG && "node".equals(parser.getName())) {
+                int node = add(parser, openCount == 0 ? NO_NODE : open[openCount - 1], openCount);
+                if (openCount == open.length) {
+                    open = Arrays.copyOf(open, openCount * 2);
+                }
+                open[openCount++] = node;
+            }
+            else if (event == XmlPullParser.END_TAG && "node".equals(parser.getName())) {
+                openCount--;
+            }
+        }
+    }
+
+    private int add(XmlPullParser parser, int parentNode, int nodeDepth) {
+        return add(parentNode, nodeDepth, parser.getAttributeValue(null, "class"),
+                parser.getAttributeValue(null, "resource-id"), parser.getAttributeValue(null, "text"),
+                parseBounds(parser.getAttributeValue(null, "bounds")));
+    }
+
+    private int add(int parentNode, int nodeDepth, String nodeClass, String nodeResourceId, String nodeText,
+                    int[] bounds) {
+        if (count == left.length) {
+            int capacity = count * 2;
+            left = Arrays.copyOf(left, capacity);
+            top = Arrays.copyOf(top, capacity);
+            right = Arrays.copyOf(right, capacity);
+            bottom = Arrays.copyOf(bottom, capacity);
+            parent = Arrays.copyOf(parent, capacity);
+            depth = Arrays.copyOf(depth, capacity);
+            className = Arrays.copyOf(className, capacity);
+            resourceId = Arrays.copyOf(resourceId, capacity);
+            text = Arrays.copyOf(text, capacity);
+        }
+        int node = count++;
+        parent[node] = parentNode;
+        depth[node] = nodeDepth;
+        className[node] = intern(nodeClass);
+        resourceId[node] = intern(nodeResourceId);
+        text[node] = intern(nodeText);
+        if (bounds == null) {
+            //a node without bounds contains no point
+            left[node] = top[node] = 0;
+            right[node] = bottom[node] = -1;
+        }
+        else {
+            left[node] = bounds[0];
+            top[node] = bounds[1];
+            right[node] = bounds[2];
+            bottom[node] = bounds[3];
+        }
+        width = Math.max(width, right[node] + 1);
+        height = Math.max(height, bottom[node] + 1);
+        return node;
+    }
+
+    private int intern(String value) {
+        if (value == null) {
+            return NO_NODE;
+        }
+        Integer i = stringIndex.get(value);
+        if (i == null) {
+            i = strings.size();
+            strings.add(value);
+            stringIndex.put(value, i);
+        }
+        return i;
+    }
+
+    /*
+     * Reads "[left,top][right,bottom]" without splitting or regular expressions
+     * @return left, top, right, bottom, or null if there are no bounds
+     */
+    private static int[] parseBounds(String bounds) {
+        int[] values = new int[4];
+        int n = 0;
+        boolean inNumber = false;
+        boolean negative = false;
+        if (bounds != null) {
+            for (int i = 0; i < bounds.length() && n < 4; i++) {
+                char c = bounds.charAt(i);
+                if (c >= '0' && c <= '9') {
+                    values[n] = values[n] * 10 + (c - '0');
+                    inNumber = true;
+                }
+                else if (c == '-' && !inNumber) {
+                    negative = true;
+                }
+                else if (inNumber) {
+                    values[n] = negative ? -values[n] : values[n];
+                    n++;
+                    inNumber = false;
+                    negative = false;
+                }
+            }
+        }
+        return n < 4 ? null : values;
+    }
+
+    /*
+     * Lists the nodes overlapping each cell in document order, counted first so every cell gets an exact array
+     */
+    private void buildGrid() {
+        cells = new int[GRID_COLS * GRID_ROWS][];
+        int[] sizes = new int[cells.length];
+        for (int pass = 0; pass < 2; pass++) {
+            for (int node = 0; node < count; node++) {
+                if (right[node] < left[node] || bottom[node] < top[node]) {
+                    continue;
+                }
+                int col0 = col(left[node]);
+                int col1 = col(right[node]);
+                int row1 = row(bottom[node]);
+                for (int row = row(top[node]); row <= row1; row++) {
+                    for (int col = col0; col <= col1; col++) {
+                        int cell = row * GRID_COLS + col;
+                        if (pass == 0) {
+                            sizes[cell]++;
+                        }
+                        else {
+                            cells[cell][sizes[cell]++] = node;
+                        }
+                    }
+                }
+            }
+            if (pass == 0) {
+                for (int cell = 0; cell < cells.length; cell++) {
+                    cells[cell] = new int[sizes[cell]];
+                    sizes[cell] = 0;
+                }
+            }
+        }
+    }
+
+    private int col(int x) {
+        return Math.max(0, Math.min(GRID_COLS - 1, (int) ((long) x * GRID_COLS / Math.max(1, width))));
+    }
+
+    private int row(int y) {
+        return Math.max(0, Math.min(GRID_ROWS - 1, (int) ((long) y * GRID_ROWS / Math.max(1, height))));
+    }
+
+    /**
+     * Finds the view at the coordinates the way uiautomator's tree is walked: from the top, into the first child
+     * containing the point, until no child does. Candidates of the cell are in document order, so a child is seen
+     * after its parent and before its later siblings' subtrees
+     * @return the node, or NO_NODE if no top level node contains the point
+     */
+    public int getNodeAt(int x, int y) {
+        if (count == 0 || x < 0 || y < 0) {
+            return NO_NODE;
+        }
+        int current = NO_NODE;
+        for (int node : cells[row(y) * GRID_COLS + col(x)]) {
+            if (parent[node] == current && contains(node, x, y)) {
+                current = node;
+            }
+        }
+        return current;
+    }
+
+    private boolean contains(int node, int x, int y) {
+        return x >= left[node] && x <= right[node] && y >= top[node] && y <= bottom[node];
+    }
+
+    public int getNodeCount() {
+        return count;
+    }
+
+    public int getParent(int node) {
+        return parent[node];
+    }
+
+    public int getDepth(int node) {
+        return depth[node];
+    }
+
+    /**
+     * @return left, top, right, bottom
+     */
+    public int[] getBounds(int node) {
+        return new int[] {left[node], top[node], right[node], bottom[node]};
+    }
+
+    public String getClassName(int node) {
+        return string(className[node]);
+    }
+
+    public String getResourceId(int node) {
+        return string(resourceId[node]);
+    }
+
+    public String getText(int node) {
+        return string(text[node]);
+    }
+
+    private String string(int i) {
+        return i == NO_NODE ? null : strings.get(i);
+    }
+
+    /**
+     * @return the node as a View, or null for NO_NODE
+     */
+    public View getView(int node) {
+        return node == NO_NODE ? null : new View(node);
+    }
+
+
+    /**
+     * A node of the index, read from its table on demand
+     */
+    public class View {
+        private final int node;
+
+        View(int node) {
+            this.node = node;
+        }
+
+        public int getNode() {
+            return node;
+        }
+
+        /**
+         * @return the enclosing view, null for a top level view
+         */
+        public View getParent() {
+            return getView(parent[node]);
+        }
+
+        public int getDepth() {
+            return depth[node];
+        }
+
+        public int[] getBounds() {
+            return HierarchyIndex.this.getBounds(node);
+        }
+
+        public String getClassName() {
+            return HierarchyIndex.this.getClassName(node);
+        }
+
+        public String getResourceId() {
+            return HierarchyIndex.this.getResourceId(node);
+        }
+
+        public String getText() {
+            return HierarchyIndex.this.getText(node);
+        }
+    }
+}
@@ -0,0 +1,562 @@
+package semeru.odbr;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Session store of the hierarchy dumps. Consecutive dumps are mostly the same tree, so instead of one xml file per
+ * dump the store appends to a single file, on a low priority thread:
+ *  --a base record holding a whole tree, for the first dump and then every Globals.hierarchyKeyframeInterval dumps,
+ *    or when most of the tree changed
+ *  --otherwise a delta record against the previous dump: runs of nodes copied, nodes removed, nodes inserted and
+ *    nodes whose attributes changed
+ * Trees are nodes in document order with their depth and attributes, every attribute name and value is an index into
+ * a string table shared by the whole session. Nodes are matched by depth, class and resource-id, along the longest
+ * common subsequence of the two dumps.
+ *
+ * Once stored, the dump's file is deleted. HierarchyDump.openBinary() and openXml() materialize a stored dump on
+ * demand, from the nearest base record and the deltas after it, in the HierarchyCodec encoding or as xml.
+ *
+ * Every base and delta record names its dump and the dump it applies to, so after a crash restore() rebuilds the
+ * index of the store from the file alone, the way BugReport.restoreJournal() rebuilds the report.
+ */
+public class HierarchyStore {
+    static final String STORE_FILE = "hierarchy.store";
+    private static final int RECORD_STRING = 1;
+    private static final int RECORD_BASE = 2;
+    private static final int RECORD_DELTA = 3;
+    private static final int OP_END = 0;
+    private static final int OP_COPY = 1;
+    private static final int OP_SKIP = 2;
+    private static final int OP_INSERT = 3;
+    private static final int OP_MODIFY = 4;
+    private static final long MAX_DIFF_CELLS = 1 << 18;
+    private static final long MATERIALIZE_TIMEOUT = 10000;
+
+    private static HierarchyStore ourInstance = new HierarchyStore();
+
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "HierarchyStore");
+            t.setPriority(Thread.MIN_PRIORITY);
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    private final HierarchyCodec.Strings strings = new HierarchyCodec.Strings();
+    private final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+    private final ConcurrentHashMap<String, Future<Boolean>> added = new ConcurrentHashMap<String, Future<Boolean>>();
+    private RandomAccessFile store;
+    private int writtenStrings;
+    private HierarchyCodec.Tree previous;
+    private String previousName;
+    private int deltas;
+    private String cachedName;
+    private HierarchyCodec.Tree cachedTree;
+
+    public static HierarchyStore getInstance() {
+        return ourInstance;
+    }
+
+    private HierarchyStore() {
+    }
+
+    /**
+     * Forgets all dumps and deletes the store file, called when the HierarchyDumpManager wipes the dump directory
+     */
+    public synchronized void reset() {
+        reset(true);
+    }
+
+    private void reset(boolean delete) {
+        if (store != null) {
+            try {
+                store.close();
+            } catch (IOException e) {
+                // deleted below
+            }
+            store = null;
+        }
+        if (delete) {
+            new File(Globals.hierarchyDumpDirectory, STORE_FILE).delete();
+        }
+        strings.clear();
+        entries.clear();
+        added.clear();
+        writtenStrings = 0;
+        previous = null;
+        previousName = null;
+        deltas = 0;
+        cachedName = null;
+        cachedTree = null;
+    }
+
+    /**
+     * Rebuilds the string table and the index of the dumps from the store file left by a session that was not
+     * submitted. A record cut short by the crash is dropped, later dumps are appended after the last complete one
+     */
+    public synchronized void restore() {
+        reset(false);
+        File file = new File(Globals.hierarchyDumpDirectory, STORE_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        long valid = 0;
+        try {
+            store = new RandomAccessFile(file, "rw");
+            byte[] data = new byte[(int) store.length()];
+            store.readFully(data);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            try {
+                while (in.available() > 0) {
+                    long offset = data.length - in.available();
+                    int type = in.readByte();
+                    if (type == RECORD_STRING) {
+                        byte[] value = new byte[in.readInt()];
+                        in.readFully(value);
+                        strings.intern(new String(value, "UTF-8"));
+                    }
+                    else if (type == RECORD_BASE || (type == RECORD_DELTA && previous != null)) {
+                        String name = in.readUTF();
+                        String applied = in.readUTF();
+                        HierarchyCodec.Tree tree = type == RECORD_BASE ? readTree(in) : applyDelta(previous, in);
+                        long end = data.length - in.available();
+                        entries.put(name, new Entry(offset, (int) (end - offset), applied.isEmpty() ? null : applied));
+                        previous = tree;
+                        previousName = name;
+                        deltas = type == RECORD_BASE ? 0 : deltas + 1;
+                    }
+                    else {
+                        throw new IOException("Corrupt hierarchy store");
+                    }
+                    valid = data.length - in.available();
+                }
+            } catch (IOException e) {
+                Log.w("HierarchyStore", "Dropping the end of the hierarchy store: " + e.getMessage());
+            }
+            store.setLength(valid);
+            writtenStrings = strings.size();
+            cachedName = previousName;
+            cachedTree = previous;
+        } catch (IOException e) {
+            Log.e("HierarchyStore", "Could not restore hierarchy store: " + e.getMessage());
+            reset();
+        }
+    }
+
+    /**
+     * Stores a completely written dump in the background and deletes its file
+     * @return future completing with true once the dump is stored
+     */
+    public Future<Boolean> add(final String filename) {
+        Future<Boolean> future = added.get(filename);
+        if (future == null) {
+            future = worker.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    try {
+                        store(filename);
+                        return true;
+                    } catch (Exception e) {
+                        Log.e("HierarchyStore", "Could not store " + filename + ": " + e.getMessage());
+                        return false;
+                    }
+                }
+            });
+            Future<Boolean> raced = added.putIfAbsent(filename, future);
+            future = raced != null ? raced : future;
+        }
+        return future;
+    }
+
+    /**
+     * @return the xml of a stored dump
+     * @throws FileNotFoundException if the store does not hold the dump
+     */
+    public InputStream open(String filename) throws IOException {
+        return new ByteArrayInputStream(openBinary(filename).toXml().getBytes("UTF-8"));
+    }
+
+    /**
+     * @return a stored dump in the HierarchyCodec encoding, without going through xml
+     * @throws FileNotFoundException if the store does not hold the dump
+     */
+    public HierarchyCodec.Reader openBinary(String filename) throws IOException {
+        Future<Boolean> future = added.get(filename);
+        if (future != null) {
+            try {
+                future.get(MATERIALIZE_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                // not stored, reported below
+            }
+        }
+        synchronized (this) {
+            if (!entries.containsKey(filename)) {
+                throw new FileNotFoundException("No hierarchy dump " + filename);
+            }
+            return HierarchyCodec.read(HierarchyCodec.encode(materialize(filename), strings));
+        }
+    }
+
+    private synchronized void store(String filename) throws IOException {
+        HierarchyCodec.Tree tree;
+        InputStream in = HierarchyDump.openFile(filename);
+        try {
+            tree = HierarchyCodec.parse(in, strings);
+        } finally {
+            in.close();
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        int headerSize = 0;
+        boolean base = previous == null || deltas + 1 >= Globals.hierarchyKeyframeInterval;
+        if (!base) {
+            ByteArrayOutputStream delta = new ByteArrayOutputStream();
+            int changed = writeDelta(previous, tree, new DataOutputStream(delta));
+            base = changed > tree.count / 2;
+            if (!base) {
+                headerSize = writeStrings(out);
+                out.writeByte(RECORD_DELTA);
+                out.writeUTF(filename);
+                out.writeUTF(previousName);
+                delta.writeTo(out);
+            }
+        }
+        if (base) {
+            headerSize = writeStrings(out);
+            out.writeByte(RECORD_BASE);
+            out.writeUTF(filename);
+            out.writeUTF("");
+            writeTree(tree, out);
+        }
+        out.flush();
+        if (store == null) {
+            store = new RandomAccessFile(new File(Globals.hierarchyDumpDirectory, STORE_FILE), "rw");
+        }
+        long offset = store.length();
+        store.seek(offset);
+        store.write(bytes.toByteArray());
+        entries.put(filename, new Entry(offset + headerSize, bytes.size() - headerSize, base ? null : previousName));
+        previous = tree;
+        previousName = filename;
+        deltas = base ? 0 : deltas + 1;
+        new File(filename).delete();
+    }
+
+    /*
+     * Journals the strings interned since the last record, so the store file is complete on its own
+     */
+    private int writeStrings(DataOutputStream out) throws IOException {
+        int start = out.size();
+        for (; writtenStrings < strings.size(); writtenStrings++) {
+            byte[] value = strings.get(writtenStrings).getBytes("UTF-8");
+            out.writeByte(RECORD_STRING);
+            out.writeInt(value.length);
+            out.write(value);
+        }
+        return out.size() - start;
+    }
+
+    /*
+     * Node keys for matching: depth, class and resource-id
+     */
+    private long[] keys(HierarchyCodec.Tree tree) {
+        int classId = strings.intern("class");
+        int resourceId = strings.intern("resource-id");
+        long[] keys = new long[tree.count];
+        for (int i = 0; i < tree.count; i++) {
+            keys[i] = (long) tree.depth[i] << 48 | (long) (value(tree.attributes[i], classId) + 1) << 24
+                    | (value(tree.attributes[i], resourceId) + 1);
+        }
+        return keys;
+    }
+
+    private static int value(int[] pairs, int name) {
+        for (int i = 0; i < pairs.length; i += 2) {
+            if (pairs[i] == name) {
+                return pairs[i + 1];
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * Writes the ops turning a into b
+     * @return number of nodes inserted or modified
+     */
+    private int writeDelta(HierarchyCodec.Tree a, HierarchyCodec.Tree b, DataOutputStream out) throws IOException {
+        long[] ka = keys(a);
+        long[] kb = keys(b);
+        int[] match = new int[b.count];
+        Arrays.fill(match, -1);
+        int prefix = 0;
+        while (prefix < a.count && prefix < b.count && ka[prefix] == kb[prefix]) {
+            match[prefix] = prefix;
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < a.count - prefix && suffix < b.count - prefix
+                && ka[a.count - 1 - suffix] == kb[b.count - 1 - suffix]) {
+            match[b.count - 1 - suffix] = a.count - 1 - suffix;
+            suffix++;
+        }
+        matchMiddle(ka, prefix, a.count - suffix, kb, prefix, b.count - suffix, match);
+
+        writeAttributes(b.rootAttributes, out);
+        out.writeInt(b.count);
+        int changed = 0;
+        int copies = 0;
+        int ai = 0;
+        for (int bi = 0; bi < b.count; bi++) {
+            int m = match[bi];
+            int[] modified = m < 0 ? null : modifications(a.attributes[m], b.attributes[bi]);
+            if (m < 0 || modified == null) {
+                //inserted, or matched but with other attribute names: the old node goes, the new one is inserted
+                copies = flushCopies(copies, out);
+                if (m >= 0) {
+                    skip(m + 1 - ai, out);
+                    ai = m + 1;
+                }
+                out.writeByte(OP_INSERT);
+                out.writeShort(b.depth[bi]);
+                writeAttributes(b.attributes[bi], out);
+                changed++;
+                continue;
+            }
+            if (m > ai) {
+                copies = flushCopies(copies, out);
+                skip(m - ai, out);
+            }
+            ai = m + 1;
+            if (modified.length == 0) {
+                copies++;
+            }
+            else {
+                copies = flushCopies(copies, out);
+                out.writeByte(OP_MODIFY);
+                writeAttributes(modified, out);
+                changed++;
+            }
+        }
+        flushCopies(copies, out);
+        skip(a.count - ai, out);
+        out.writeByte(OP_END);
+        return changed;
+    }
+
+    /*
+     * Longest common subsequence of the keys between the common prefix and suffix, unmatched if too large to diff
+     */
+    private static void matchMiddle(long[] ka, int a0, int a1, long[] kb, int b0, int b1, int[] match) {
+        int n = a1 - a0;
+        int m = b1 - b0;
+        if (n == 0 || m == 0 || (long) n * m > MAX_DIFF_CELLS) {
+            return;
+        }
+        int[] lcs = new int[(n + 1) * (m + 1)];
+        for (int i = n - 1; i >= 0; i--) {
+            for (int j = m - 1; j >= 0; j--) {
+                lcs[i * (m + 1) + j] = ka[a0 + i] == kb[b0 + j] ? lcs[(i + 1) * (m + 1) + j + 1] + 1
+                        : Math.max(lcs[(i + 1) * (m + 1) + j], lcs[i * (m + 1) + j + 1]);
+            }
+        }
+        int i = 0;
+        int j = 0;
+        while (i < n && j < m) {
+            if (ka[a0 + i] == kb[b0 + j]) {
+                match[b0 + j] = a0 + i;
+                i++;
+                j++;
+            }
+            else if (lcs[(i + 1) * (m + 1) + j] >= lcs[i * (m + 1) + j + 1]) {
+                i++;
+            }
+            else {
+                j++;
+            }
+        }
+    }
+
+    /*
+     * @return the changed attributes as (attribute index, value) pairs, null if the attribute names differ
+     */
+    private static int[] modifications(int[] before, int[] after) {
+        if (before.length != after.length) {
+            return null;
+        }
+        int count = 0;
+        for (int i = 0; i < after.length; i += 2) {
+            if (before[i] != after[i]) {
+                return null;
+            }
+            if (before[i + 1] != after[i + 1]) {
+                count++;
+            }
+        }
+        int[] modified = new int[count * 2];
+        for (int i = 0, k = 0; i < after.length; i += 2) {
+            if (before[i + 1] != after[i + 1]) {
+                modified[k++] = i / 2;
+                modified[k++] = after[i + 1];
+            }
+        }
+        return modified;
+    }
+
+    private static int flushCopies(int copies, DataOutputStream out) throws IOException {
+        if (copies > 0) {
+            out.writeByte(OP_COPY);
+            out.writeInt(copies);
+        }
+        return 0;
+    }
+
+    private static void skip(int count, DataOutputStream out) throws IOException {
+        if (count > 0) {
+            out.writeByte(OP_SKIP);
+            out.writeInt(count);
+        }
+    }
+
+    private static void writeTree(HierarchyCodec.Tree tree, DataOutputStream out) throws IOException {
+        writeAttributes(tree.rootAttributes, out);
+        out.writeInt(tree.count);
+        for (int i = 0; i < tree.count; i++) {
+            out.writeShort(tree.depth[i]);
+            writeAttributes(tree.attributes[i], out);
+        }
+    }
+
+    private static HierarchyCodec.Tree readTree(DataInputStream in) throws IOException {
+        int[] root = readAttributes(in);
+        int count = in.readInt();
+        HierarchyCodec.Tree tree = new HierarchyCodec.Tree(count);
+        tree.rootAttributes = root;
+        for (int i = 0; i < count; i++) {
+            tree.add(in.readShort(), readAttributes(in));
+        }
+        return tree;
+    }
+
+    private static HierarchyCodec.Tree applyDelta(HierarchyCodec.Tree a, DataInputStream in) throws IOException {
+        int[] root = readAttributes(in);
+        HierarchyCodec.Tree b = new HierarchyCodec.Tree(in.readInt());
+        b.rootAttributes = root;
+        int ai = 0;
+        while (true) {
+            int op = in.readByte();
+            switch (op) {
+                case OP_END:
+                    return b;
+                case OP_COPY:
+                    for (int n = in.readInt(); n > 0; n--, ai++) {
+                        b.add(a.depth[ai], a.attributes[ai]);
+                    }
+                    break;
+                case OP_SKIP:
+                    ai += in.readInt();
+                    break;
+                case OP_INSERT:
+                    b.add(in.readShort(), readAttributes(in));
+                    break;
+                case OP_MODIFY:
+                    int[] pairs = a.attributes[ai].clone();
+                    int[] modified = readAttributes(in);
+                    for (int i = 0; i < modified.length; i += 2) {
+                        pairs[modified[i] * 2 + 1] = modified[i + 1];
+                    }
+                    b.add(a.depth[ai++], pairs);
+                    break;
+                default:
+                    throw new IOException("Corrupt hierarchy delta");
+            }
+        }
+    }
+
+    private static void writeAttributes(int[] pairs, DataOutputStream out) throws IOException {
+        out.writeShort(pairs.length / 2);
+        for (int value : pairs) {
+            out.writeInt(value);
+        }
+    }
+
+    private static int[] readAttributes(DataInputStream in) throws IOException {
+        int[] pairs = new int[in.readShort() * 2];
+        for (int i = 0; i < pairs.length; i++) {
+            pairs[i] = in.readInt();
+        }
+        return pairs;
+    }
+
+    /*
+     * Rebuilds the tree from its base record and the deltas after it, starting at the last tree materialized if it
+     * lies on the way
+     */
+    private HierarchyCodec.Tree materialize(String filename) throws IOException {
+        ArrayList<String> chain = new ArrayList<String>();
+        for (String name = filename; name != null; name = entries.get(name).previous) {
+            chain.add(name);
+            if (name.equals(cachedName) || entries.get(name).previous == null) {
+                break;
+            }
+        }
+        HierarchyCodec.Tree tree = null;
+        for (int i = chain.size() - 1; i >= 0; i--) {
+            String name = chain.get(i);
+            if (name.equals(cachedName)) {
+                tree = cachedTree;
+                continue;
+            }
+            Entry entry = entries.get(name);
+            byte[] record = new byte[entry.length];
+            store.seek(entry.offset);
+            store.readFully(record);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+            int type = in.readByte();
+            in.readUTF();
+            in.readUTF();
+            tree = type == RECORD_BASE ? readTree(in) : applyDelta(tree, in);
+        }
+        cachedName = filename;
+        cachedTree = tree;
+        return tree;
+    }
+
+
+    /**
+     * Where a dump's record is in the store file, from its type byte on, and the dump its delta applies to, null for a base record
+     */
+    private static class Entry {
+        final long offset;
+        final int length;
+        final String previous;
+
+        Entry(long offset, int length, String previous) {
+            this.offset = offset;
+            this.length = length;
+            this.previous = previous;
+        }
+    }
+}
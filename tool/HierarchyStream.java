@@ -0,0 +1,151 @@
+package semeru.odbr;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Receives a hierarchy dump that uiautomator writes to its stdout and hands it on twice as it arrives: to the capture
+ * thread, which parses it into the HierarchyIndex while uiautomator is still writing, and into a gzip file, the only
+ * copy of the dump that is stored. The dump ends at the closing hierarchy tag, uiautomator's status line after it is
+ * dropped.
+ *
+ * The handler runs on the root shell session's thread and the parser on the capture thread, chunks are passed between
+ * them through a queue.
+ */
+class HierarchyStream implements RootShell.OutputHandler {
+    private static final byte[] END_TAG = "</hierarchy>".getBytes();
+    private static final byte[] EOF = new byte[0];
+    private static final long POLL_MILLIS = 100;
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final File file;
+    private final File tmp;
+    private final BlockingQueue<byte[]> chunks = new LinkedBlockingQueue<byte[]>();
+    private final OutputStream out;
+    private int matched;
+    private volatile boolean complete;
+
+    /**
+     * @param file gzip file the dump is stored in once complete
+     */
+    HierarchyStream(File file) throws IOException {
+        this.file = file;
+        tmp = new File(file.getPath() + ".tmp");
+        out = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), BUFFER_SIZE), BUFFER_SIZE);
+    }
+
+    @Override
+    public void onOutput(byte[] buffer, int offset, int length) throws IOException {
+        if (complete) {
+            return;
+        }
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            //the end tag starts with its only '<', so a mismatch restarts the match at this byte
+            if (buffer[i] == END_TAG[matched]) {
+                matched++;
+            }
+            else {
+                matched = buffer[i] == END_TAG[0] ? 1 : 0;
+            }
+            if (matched == END_TAG.length) {
+                end = i + 1;
+                complete = true;
+                break;
+            }
+        }
+        if (end > offset) {
+            out.write(buffer, offset, end - offset);
+            chunks.add(Arrays.copyOfRange(buffer, offset, end));
+        }
+        if (complete) {
+            chunks.add(EOF);
+        }
+    }
+
+    /**
+     * @return true once the whole dump was received
+     */
+    boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * The dump as it arrives, for the parser
+     * @param command the command writing the dump, the stream ends early if it finishes without the end tag
+     * @param deadlineMillis wall clock time after which reading fails
+     */
+    InputStream input(final RootShell.CommandFuture command, final long deadlineMillis) {
+        return new InputStream() {
+            private byte[] chunk;
+            private int position;
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                while (chunk == null || position == chunk.length) {
+                    if (chunk == EOF) {
+                        return -1;
+                    }
+                    chunk = next();
+                    position = 0;
+                }
+                int n = Math.min(len, chunk.length - position);
+                System.arraycopy(chunk, position, b, off, n);
+                position += n;
+                return n;
+            }
+
+            /*
+             * The command's output is all queued before the command completes, so an empty queue after it completed
+             * is the end of the dump
+             */
+            private byte[] next() throws IOException {
+                try {
+                    while (true) {
+                        byte[] next = chunks.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                        if (next != null) {
+                            return next;
+                        }
+                        if (command.isDone() && chunks.isEmpty()) {
+                            return EOF;
+                        }
+                        if (System.currentTimeMillis() > deadlineMillis) {
+                            throw new IOException("Timed out waiting for hierarchy dump");
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for hierarchy dump");
+                }
+            }
+        };
+    }
+
+    /**
+     * Completes the gzip file, or deletes it if the dump did not arrive in full
+     * @return true if the file was stored
+     */
+    boolean finish() throws IOException {
+        out.close();
+        if (complete && tmp.renameTo(file)) {
+            return true;
+        }
+        tmp.delete();
+        return false;
+    }
+}
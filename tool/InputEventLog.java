@@ -0,0 +1,223 @@
+package semeru.odbr;
+
+/**
+ * Session-wide columnar store for the raw input events of one input device. Instead of keeping a GetEvent object
+ * per event, the timestamp, type, code and value of every event are packed into parallel primitive arrays that grow
+ * in fixed size chunks, and each ReportEvent only remembers the index range of its events.
+ *
+ * Events are appended by the single GestureSegmenter reading the device, while other threads may read them at the same
+ * time. The size is published through a volatile write after the event is stored, so readers always see complete
+ * events up to size(). Events are read back through a Cursor, a flyweight that walks an index range without
+ * allocating per event.
+ */
+public class InputEventLog {
+    private static final int CHUNK_SHIFT = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final long USEC_PER_SEC = 1000000;
+
+    private final String device;
+    private long[][] times = new long[4][];
+    private short[][] types = new short[4][];
+    private short[][] codes = new short[4][];
+    private int[][] values = new int[4][];
+    private int recordSize;
+    private volatile int size;
+
+    public InputEventLog(String device) {
+        this.device = device;
+    }
+
+    /**
+     * Appends the record the reader is currently positioned on
+     * @return index of the stored event
+     */
+    public int append(InputEventReader reader) {
+        if (recordSize == 0) {
+            recordSize = reader.getRecordSize();
+        }
+        return append(reader.getSeconds(), reader.getMicroseconds(), reader.getType(), reader.getCode(), reader.getValue());
+    }
+
+    /**
+     * Appends one event, must only be called from the thread that owns this log
+     * @return index of the stored event
+     */
+    public int append(long seconds, long microseconds, short type, short code, int value) {
+        int index = size;
+        int chunk = index >>> CHUNK_SHIFT;
+        if (chunk == times.length) {
+            grow();
+        }
+        if (times[chunk] == null) {
+            times[chunk] = new long[CHUNK_SIZE];
+            types[chunk] = new short[CHUNK_SIZE];
+            codes[chunk] = new short[CHUNK_SIZE];
+            values[chunk] = new int[CHUNK_SIZE];
+        }
+        int offset = index & CHUNK_MASK;
+        times[chunk][offset] = seconds * USEC_PER_SEC + microseconds;
+        types[chunk][offset] = type;
+        codes[chunk][offset] = code;
+        values[chunk][offset] = value;
+        size = index + 1;
+        return index;
+    }
+
+    private void grow() {
+        int length = times.length * 2;
+        long[][] newTimes = new long[length][];
+        short[][] newTypes = new short[length][];
+        short[][] newCodes = new short[length][];
+        int[][] newValues = new int[length][];
+        System.arraycopy(times, 0, newTimes, 0, times.length);
+        System.arraycopy(types, 0, newTypes, 0, types.length);
+        System.arraycopy(codes, 0, newCodes, 0, codes.length);
+        System.arraycopy(values, 0, newValues, 0, values.length);
+        times = newTimes;
+        types = newTypes;
+        codes = newCodes;
+        values = newValues;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String getDevice() {
+        return device;
+    }
+
+    /**
+     * @return the size of the input_event records the device was read in, the native size for events that were not
+     * appended from an InputEventReader, e.g. restored from a journal
+     */
+    public int getRecordSize() {
+        int size = recordSize;
+        return size != 0 ? size : InputEventReader.getNativeRecordSize();
+    }
+
+    /* Random access getters, index must be below size() */
+    public short getType(int index) {
+        return types[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+    }
+    public short getCode(int index) {
+        return codes[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+    }
+    public int getValue(int index) {
+        return values[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+    }
+    public long getTimeMicros(int index) {
+        return times[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+    }
+    public long getTimeMillis(int index) {
+        return getTimeMicros(index) / 1000;
+    }
+
+    /**
+     * @return a cursor over the events in [start, end)
+     */
+    public Cursor cursor(int start, int end) {
+        return new Cursor(this, start, end);
+    }
+
+    /**
+     * Flyweight view over a range of a log. Call next() to move to the following event, the getters then read the
+     * event the cursor is positioned on straight from the log's arrays
+     */
+    public static class Cursor {
+        private final InputEventLog log;
+        private final int start;
+        private final int end;
+        private int index;
+
+        Cursor(InputEventLog log, int start, int end) {
+            this.log = log;
+            this.start = start;
+            this.end = end;
+            this.index = start - 1;
+        }
+
+        public boolean next() {
+            if (index + 1 >= end) {
+                return false;
+            }
+            ++index;
+            return true;
+        }
+
+        /**
+         * Moves the cursor back before the first event of its range
+         */
+        public void reset() {
+            index = start - 1;
+        }
+
+        public int count() {
+            return end - start;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+        public short getType() {
+            return log.getType(index);
+        }
+        public short getCode() {
+            return log.getCode(index);
+        }
+        public int getValue() {
+            return log.getValue(index);
+        }
+        public long getTimeMillis() {
+            return log.getTimeMillis(index);
+        }
+        public long getSeconds() {
+            return log.getTimeMicros(index) / USEC_PER_SEC;
+        }
+        public long getMicroseconds() {
+            return log.getTimeMicros(index) % USEC_PER_SEC;
+        }
+
+        /**
+         * Writes the current event as an input_event record in the layout the device was read in, which is what the
+         * device expects to be written back, see InputEventLog.getRecordSize()
+         * @param out array of at least InputEventReader.RECORD_SIZE_64 bytes
+         * @return the number of bytes written, RECORD_SIZE_32 or RECORD_SIZE_64
+         */
+        public int copyRecord(byte[] out) {
+            int size = log.getRecordSize();
+            int offset;
+            if (size == InputEventReader.RECORD_SIZE_64) {
+                putLong(out, 0, getSeconds());
+                putLong(out, 8, getMicroseconds());
+                offset = 16;
+            }
+            else {
+                putInt(out, 0, (int) getSeconds());
+                putInt(out, 4, (int) getMicroseconds());
+                offset = 8;
+            }
+            short type = getType();
+            short code = getCode();
+            out[offset] = (byte) type;
+            out[offset + 1] = (byte) (type >> 8);
+            out[offset + 2] = (byte) code;
+            out[offset + 3] = (byte) (code >> 8);
+            putInt(out, offset + 4, getValue());
+            return size;
+        }
+
+        private static void putLong(byte[] out, int offset, long v) {
+            putInt(out, offset, (int) v);
+            putInt(out, offset + 4, (int) (v >> 32));
+        }
+
+        private static void putInt(byte[] out, int offset, int v) {
+            out[offset] = (byte) v;
+            out[offset + 1] = (byte) (v >> 8);
+            out[offset + 2] = (byte) (v >> 16);
+            out[offset + 3] = (byte) (v >> 24);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package semeru.odbr;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads raw kernel input_event records from a /dev/input/eventX stream in large chunks. The chunks are kept in a
+ * reusable direct buffer and each record is decoded in place, so stepping through the events never allocates.
+ * Call next() to advance to the following record, then read it through the getters. The values stay valid until
+ * the next call to next().
+ *
+ * The kernel struct input_event starts with a struct timeval, which is 8 bytes wide for 32-bit userspace and 16 bytes
+ * wide for 64-bit userspace, so records are either 16 or 24 bytes long. Unless a record size is given, the layout is
+ * detected from the first 48 bytes that are read, a whole number of records in either layout and no more than the
+ * first frame of a touch (see detectRecordSize)
+ */
+public class InputEventReader {
+    public static final int RECORD_SIZE_32 = 16;
+    public static final int RECORD_SIZE_64 = 24;
+
+    private static final int DEFAULT_CAPACITY = RECORD_SIZE_64 * 512;
+    private static final int DETECT_BYTES = 48; // lcm of the record sizes: 2 records of 24, 3 of 16
+    private static final int EV_MAX = 0x1f;
+    private static final long USEC_PER_SEC = 1000000;
+
+    private static volatile int nativeRecordSize =
+            System.getProperty("os.arch", "").contains("64") ? RECORD_SIZE_64 : RECORD_SIZE_32;
+
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer;
+    private int recordSize;
+    private boolean eof;
+    private long fillNanos;
+
+    private long seconds;
+    private long microseconds;
+    private short type;
+    private short code;
+    private int value;
+
+    public InputEventReader(ReadableByteChannel channel) {
+        this(channel, 0);
+    }
+
+    /**
+     * @param channel stream of raw input_event records
+     * @param recordSize RECORD_SIZE_32, RECORD_SIZE_64 or 0 to detect the layout from the stream
+     */
+    public InputEventReader(ReadableByteChannel channel, int recordSize) {
+        this.channel = channel;
+        this.recordSize = recordSize;
+        buffer = ByteBuffer.allocateDirect(DEFAULT_CAPACITY).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.flip();
+    }
+
+    /**
+     * Advances to the next record, reading a new chunk from the channel when the buffered data runs out
+     * @return false once the stream has ended
+     * @throws IOException if reading from the channel fails
+     */
+    public boolean next() throws IOException {
+        if (recordSize == 0) {
+            fill(DETECT_BYTES);
+            recordSize = detectRecordSize(buffer);
+        }
+        if (buffer.remaining() < recordSize && !fill(recordSize)) {
+            return false;
+        }
+        int offset = buffer.position();
+        if (recordSize == RECORD_SIZE_64) {
+            seconds = buffer.getLong(offset);
+            microseconds = buffer.getLong(offset + 8);
+            offset += 16;
+        }
+        else {
+            seconds = buffer.getInt(offset) & 0xFFFFFFFFL;
+            microseconds = buffer.getInt(offset + 4) & 0xFFFFFFFFL;
+            offset += 8;
+        }
+        type = buffer.getShort(offset);
+        code = buffer.getShort(offset + 2);
+        value = buffer.getInt(offset + 4);
+        buffer.position(buffer.position() + recordSize);
+        return true;
+    }
+
+    /*
+     * Moves the unread bytes to the front of the buffer and reads from the channel until at least minBytes are
+     * buffered or the stream ends. Returns true if minBytes are available
+     */
+    private boolean fill(int minBytes) throws IOException {
+        buffer.compact();
+        try {
+            while (!eof && buffer.position() < minBytes) {
+                if (channel.read(buffer) < 0) {
+                    eof = true;
+                }
+                fillNanos = System.nanoTime();
+            }
+        } finally {
+            buffer.flip();
+        }
+        return buffer.remaining() >= minBytes;
+    }
+
+    /**
+     * Guesses the input_event layout of the buffered data by checking that every whole record has a plausible
+     * timeval (microseconds below one second, seconds fitting in 32 bits) and an event type no larger than EV_MAX.
+     * When both layouts look plausible the native record size is used.
+     * @param data little endian buffer positioned at the start of a record, left unchanged
+     * @return RECORD_SIZE_32 or RECORD_SIZE_64
+     */
+    public static int detectRecordSize(ByteBuffer data) {
+        boolean fits32 = matchesLayout(data, RECORD_SIZE_32);
+        boolean fits64 = matchesLayout(data, RECORD_SIZE_64);
+        if (fits32 && fits64) {
+            return nativeRecordSize;
+        }
+        return fits64 ? RECORD_SIZE_64 : RECORD_SIZE_32;
+    }
+
+    /**
+     * Sets the layout detection falls back to when the first bytes fit both, by default the one matching the VM's
+     * os.arch. On a device it should be the device's ABI, as the input is usually read by a 64-bit cat or process
+     * @param recordSize RECORD_SIZE_32 or RECORD_SIZE_64
+     */
+    public static void setNativeRecordSize(int recordSize) {
+        nativeRecordSize = recordSize;
+    }
+
+    /**
+     * @return RECORD_SIZE_32 or RECORD_SIZE_64, see setNativeRecordSize
+     */
+    public static int getNativeRecordSize() {
+        return nativeRecordSize;
+    }
+
+    private static boolean matchesLayout(ByteBuffer data, int size) {
+        int start = data.position();
+        int records = data.remaining() / size;
+        if (records == 0) {
+            return false;
+        }
+        for (int i = 0; i < records; i++) {
+            int offset = start + i * size;
+            int eventType;
+            if (size == RECORD_SIZE_64) {
+                if (data.getInt(offset + 4) != 0) {
+                    return false;
+                }
+                long usec = data.getLong(offset + 8);
+                if (usec < 0 || usec >= USEC_PER_SEC) {
+                    return false;
+                }
+                eventType = data.getShort(offset + 16) & 0xFFFF;
+            }
+            else {
+                long usec = data.getInt(offset + 4) & 0xFFFFFFFFL;
+                if (usec >= USEC_PER_SEC) {
+                    return false;
+                }
+                eventType = data.getShort(offset + 8) & 0xFFFF;
+            }
+            if (eventType > EV_MAX) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return System.nanoTime() of the last read from the channel, i.e. when the current record arrived at the latest
+     */
+    public long getReadNanos() {
+        return fillNanos;
+    }
+
+    /* Getters for the current record */
+    public int getRecordSize() {
+        return recordSize;
+    }
+    public short getType() {
+        return type;
+    }
+    public short getCode() {
+        return code;
+    }
+    public int getValue() {
+        return value;
+    }
+    public long getSeconds() {
+        return seconds;
+    }
+    public long getMicroseconds() {
+        return microseconds;
+    }
+    public long getTimeMillis() {
+        return seconds * 1000 + microseconds / 1000;
+    }
+}
@@ -0,0 +1,164 @@
+package semeru.odbr;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * An InputSource supplies the raw input_event stream of one input device to a GestureSegmenter. The capture logic
+ * does not care where the bytes come from, so besides the live device it can run on recorded traces, e.g. headless on
+ * a desktop JVM to benchmark and regression test capture throughput.
+ *  --live(): the device node itself when readable, otherwise cat through su
+ *  --file(): a raw binary recording (or any readable node) through a FileChannel
+ *  --stream(): an arbitrary, e.g. in-memory, stream
+ *
+ * A source is opened once. Closing it ends the stream and makes a later open() fail, so a source closed before its
+ * segmenter started never starts reading.
+ */
+public abstract class InputSource {
+    private final String device;
+    private boolean closed;
+
+    protected InputSource(String device) {
+        this.device = device;
+    }
+
+    /**
+     * Returns the source for a live input device, reading it directly if our process has permission to, otherwise
+     * through cat in a root shell
+     * @param device input device, e.g. /dev/input/event2
+     */
+    public static InputSource live(String device) {
+        if (new File(device).canRead()) {
+            return new FileInputSource(device, device);
+        }
+        return new SuCatInputSource(device);
+    }
+
+    /**
+     * @param device input device the recording was taken from
+     * @param path raw input_event recording, e.g. made with cat /dev/input/eventX > file
+     */
+    public static InputSource file(String device, String path) {
+        return new FileInputSource(device, path);
+    }
+
+    /**
+     * @param device input device the stream was taken from
+     * @param stream raw input_event records
+     */
+    public static InputSource stream(String device, InputStream stream) {
+        return new StreamInputSource(device, stream);
+    }
+
+    public String getDevice() {
+        return device;
+    }
+
+    public final synchronized ReadableByteChannel open() throws IOException {
+        if (closed) {
+            throw new IOException("Input source for " + device + " is closed");
+        }
+        return openChannel();
+    }
+
+    public final synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            closeChannel();
+        } catch (IOException e) {
+            // the stream is gone either way
+        }
+    }
+
+    protected abstract ReadableByteChannel openChannel() throws IOException;
+
+    protected abstract void closeChannel() throws IOException;
+}
+
+
+/**
+ * Reads a device through "cat /dev/input/eventX" in a root shell
+ */
+class SuCatInputSource extends InputSource {
+    private Process su;
+
+    SuCatInputSource(String device) {
+        super(device);
+    }
+
+    @Override
+    protected ReadableByteChannel openChannel() throws IOException {
+        su = Runtime.getRuntime().exec("su", null, null);
+        OutputStream outputStream = su.getOutputStream();
+        outputStream.write(("cat " + getDevice()).getBytes("ASCII"));
+        outputStream.flush();
+        outputStream.close();
+        return Channels.newChannel(su.getInputStream());
+    }
+
+    @Override
+    protected void closeChannel() throws IOException {
+        if (su != null) {
+            su.getInputStream().close();
+            su.destroy();
+        }
+    }
+}
+
+
+/**
+ * Reads a readable device node or a raw recording through a FileChannel
+ */
+class FileInputSource extends InputSource {
+    private final String path;
+    private FileInputStream stream;
+
+    FileInputSource(String device, String path) {
+        super(device);
+        this.path = path;
+    }
+
+    @Override
+    protected ReadableByteChannel openChannel() throws IOException {
+        stream = new FileInputStream(path);
+        return stream.getChannel();
+    }
+
+    @Override
+    protected void closeChannel() throws IOException {
+        if (stream != null) {
+            stream.close();
+        }
+    }
+}
+
+
+/**
+ * Reads raw records from an already open stream
+ */
+class StreamInputSource extends InputSource {
+    private final InputStream stream;
+
+    StreamInputSource(String device, InputStream stream) {
+        super(device);
+        this.stream = stream;
+    }
+
+    @Override
+    protected ReadableByteChannel openChannel() {
+        return Channels.newChannel(stream);
+    }
+
+    @Override
+    protected void closeChannel() throws IOException {
+        stream.close();
+    }
+}
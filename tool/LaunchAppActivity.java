@@ -1,7 +1,6 @@
 package semeru.odbr;
 
 
-import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -15,9 +14,12 @@ import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.graphics.drawable.Drawable;
 import android.hardware.SensorManager;
+import android.media.projection.MediaProjectionManager;
+import android.os.Build;
 import android.os.Bundle;
 import android.text.Editable;
 import android.text.TextWatcher;
+import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -48,6 +50,8 @@ import android.hardware.Sensor;
  *      --InstalledApplicationsAdapter: Handles the display of installed applications in the list
  */
 public class LaunchAppActivity extends Activity {
+    private static final long PM_CLEAR_TIMEOUT = 10000;
+    private static final int REQUEST_PROJECTION = 1;
 
     private ArrayList<RowData> installedApps;
 
@@ -112,6 +116,14 @@ public class LaunchAppActivity extends Activity {
 
         //Set handles to the input devices
         GetEventDeviceInfo.getInstance().setDeviceData();
+
+        //A session journal left behind means the tool died before the last report was submitted, restore it
+        if (SessionJournal.exists() && BugReport.getInstance().restoreJournal()) {
+            Intent intent = new Intent(this, ReportActivity.class);
+            intent.addFlags(Intent.FLAG_ACTIVITY_NO_HISTORY);
+            startActivity(intent);
+            finish();
+        }
     }
 
 
@@ -200,20 +212,10 @@ public class LaunchAppActivity extends Activity {
             }
         }
 
-        //start SU process to clear the saved data within the application
+        //clear the saved data within the application through the root shell
 
         try {
-            Process clear_app_data = Runtime.getRuntime().exec("su", null, null);
-            String cmd = "pm clear " + BugReport.getInstance().getPackageName();
-            OutputStream os = clear_app_data.getOutputStream();
-            os.write((cmd + "\n").getBytes("ASCII"));
-            os.flush();
-            os.write(("exit\n").getBytes());
-            os.flush();
-            os.close();
-
-            clear_app_data.waitFor();
-
+            RootShell.getInstance().run("pm clear " + BugReport.getInstance().getPackageName(), PM_CLEAR_TIMEOUT);
         } catch (Exception e){
             Log.e("LaunchAppActivity", "Error clearing stored app data");
         }
@@ -225,6 +227,42 @@ public class LaunchAppActivity extends Activity {
             imm.hideSoftInputFromWindow(view.getWindowToken(), 0);
         }
 
+        //ask for the screen projection used for in-process screenshots, recording starts with the answer. A projection
+        //only serves one session, so every session asks again
+        if (Globals.projectionScreenshots && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            MediaProjectionManager mpm = (MediaProjectionManager) getSystemService(Context.MEDIA_PROJECTION_SERVICE);
+            startActivityForResult(mpm.createScreenCaptureIntent(), REQUEST_PROJECTION);
+            return;
+        }
+        launchRecording();
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (requestCode != REQUEST_PROJECTION) {
+            return;
+        }
+        if (resultCode == RESULT_OK) {
+            try {
+                MediaProjectionManager mpm = (MediaProjectionManager) getSystemService(Context.MEDIA_PROJECTION_SERVICE);
+                DisplayMetrics metrics = new DisplayMetrics();
+                getWindowManager().getDefaultDisplay().getRealMetrics(metrics);
+                Globals.projectionWidth = metrics.widthPixels;
+                Globals.projectionHeight = metrics.heightPixels;
+                Globals.projectionDensityDpi = metrics.densityDpi;
+                Globals.mediaProjection = mpm.getMediaProjection(resultCode, data);
+            } catch (RuntimeException e) {
+                Log.e("LaunchAppActivity", "Screen projection unavailable, using screencap: " + e.getMessage());
+            }
+        }
+        launchRecording();
+    }
+
+    /**
+     * Starts the data collection and the application being reported
+     */
+    private void launchRecording() {
         //launch data collection task and floating window
         Globals.recording = true;
         startService(new Intent(this, RecordFloatingWidget.class));
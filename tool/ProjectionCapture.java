@@ -0,0 +1,188 @@
+package semeru.odbr;
+
+import android.annotation.TargetApi;
+import android.graphics.PixelFormat;
+import android.hardware.display.DisplayManager;
+import android.hardware.display.VirtualDisplay;
+import android.media.Image;
+import android.media.ImageReader;
+import android.media.projection.MediaProjection;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * Screenshot backend capturing in our own process: a MediaProjection mirrors the screen into a virtual display
+ * backed by an ImageReader. The display only produces a frame when the screen changes, and the newest frame is kept
+ * as an Image, so at any time it shows the current screen and a capture is a read of memory we already hold, without
+ * su, screencap or a process switch. Frames are stored as RawFrame files, like raw screencap captures.
+ *
+ * The projection needs the user's consent, LaunchAppActivity asks for it at the start of every session and leaves the
+ * MediaProjection in Globals.mediaProjection. A projection serves one session: stop() stops it and clears the global,
+ * as Android 14 refuses a second virtual display on the same projection. The ScreenshotManager falls back to
+ * screencap when there is none or it is revoked.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class ProjectionCapture implements CaptureScheduler.Capturer, ImageReader.OnImageAvailableListener {
+    private static final int MAX_IMAGES = 3;
+    private static final int SAMPLES = 4;
+
+    private final MediaProjection projection;
+    private final HandlerThread thread;
+    private final ImageReader reader;
+    private final VirtualDisplay display;
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final byte[] row;
+    private final MediaProjection.Callback stopCallback = new MediaProjection.Callback() {
+        @Override
+        public void onStop() {
+            Log.w("ProjectionCapture", "Projection stopped, falling back to screencap");
+            active = false;
+        }
+    };
+    private Image latest;
+    private long frameCount;
+    private volatile boolean active;
+
+    private ProjectionCapture(MediaProjection projection, int width, int height, int densityDpi) {
+        this.projection = projection;
+        row = new byte[width * 4];
+        thread = new HandlerThread("ProjectionCapture");
+        thread.start();
+        Handler handler = new Handler(thread.getLooper());
+        reader = ImageReader.newInstance(width, height, PixelFormat.RGBA_8888, MAX_IMAGES);
+        reader.setOnImageAvailableListener(this, handler);
+        projection.registerCallback(stopCallback, handler);
+        display = projection.createVirtualDisplay("ODBR", width, height, densityDpi,
+                DisplayManager.VIRTUAL_DISPLAY_FLAG_AUTO_MIRROR, reader.getSurface(), null, handler);
+        active = true;
+    }
+
+    /**
+     * @return a started backend on the projection the user consented to, or null if there is none or it cannot be
+     * used
+     */
+    public static ProjectionCapture start() {
+        MediaProjection projection = Globals.mediaProjection;
+        if (projection == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return null;
+        }
+        try {
+            return new ProjectionCapture(projection, Globals.projectionWidth, Globals.projectionHeight,
+                    Globals.projectionDensityDpi);
+        } catch (RuntimeException e) {
+            Log.e("ProjectionCapture", "Could not start projection: " + e.getMessage());
+            release(projection);
+            return null;
+        }
+    }
+
+    /**
+     * Ends the session's projection, the next session asks for consent again
+     */
+    public void stop() {
+        active = false;
+        display.release();
+        projection.unregisterCallback(stopCallback);
+        release(projection);
+        synchronized (this) {
+            if (latest != null) {
+                latest.close();
+                latest = null;
+            }
+            reader.close();
+        }
+        thread.quitSafely();
+    }
+
+    private static void release(MediaProjection projection) {
+        projection.stop();
+        if (Globals.mediaProjection == projection) {
+            Globals.mediaProjection = null;
+        }
+    }
+
+    /**
+     * @return false once the projection was stopped, e.g. revoked by the user
+     */
+    public boolean isActive() {
+        return active;
+    }
+
+    @Override
+    public void onImageAvailable(ImageReader imageReader) {
+        synchronized (this) {
+            Image image;
+            try {
+                image = imageReader.acquireLatestImage();
+            } catch (IllegalStateException e) {
+                return; // the reader has no image to spare, the next change brings a new one
+            }
+            if (image == null) {
+                return;
+            }
+            if (latest != null) {
+                latest.close();
+            }
+            latest = image;
+            frameCount++;
+        }
+    }
+
+    /**
+     * @return number of frames the virtual display produced so far, it only produces one when the screen changed
+     */
+    public synchronized long getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * @return mean luminance (0-255) of each block of a cols x rows grid over the newest frame, row by row, from a
+     * few samples per block, or null before the first frame
+     */
+    public synchronized int[] luminanceGrid(int cols, int rows) {
+        if (latest == null) {
+            return null;
+        }
+        Image.Plane plane = latest.getPlanes()[0];
+        ByteBuffer pixels = plane.getBuffer();
+        int width = latest.getWidth();
+        int height = latest.getHeight();
+        int[] grid = new int[cols * rows];
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < cols; col++) {
+                int sum = 0;
+                for (int sy = 0; sy < SAMPLES; sy++) {
+                    int y = (row * SAMPLES + sy) * height / (rows * SAMPLES);
+                    for (int sx = 0; sx < SAMPLES; sx++) {
+                        int i = y * plane.getRowStride() + (col * SAMPLES + sx) * width / (cols * SAMPLES) * 4;
+                        sum += ((pixels.get(i) & 0xff) * 77 + (pixels.get(i + 1) & 0xff) * 150
+                                + (pixels.get(i + 2) & 0xff) * 29) >> 8;
+                    }
+                }
+                grid[row * cols + col] = sum / (SAMPLES * SAMPLES);
+            }
+        }
+        return grid;
+    }
+
+    /**
+     * Writes the newest frame, which is the current screen, to the raw file of the screenshot
+     */
+    @Override
+    public synchronized boolean capture(String file) throws IOException {
+        if (!active || latest == null) {
+            return false;
+        }
+        Image.Plane plane = latest.getPlanes()[0];
+        RawFrame.write(new File(Screenshot.rawFilename(file)), plane.getBuffer(), latest.getWidth(),
+                latest.getHeight(), plane.getRowStride(), deflater, row);
+        return true;
+    }
+}
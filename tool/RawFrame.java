@@ -0,0 +1,382 @@
+package semeru.odbr;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Raw screen frames, as written by "screencap" without -p: a little endian header (width, height, pixel format, and
+ * the dataspace on newer releases) followed by the pixels. Having the device png encode every frame is the slowest
+ * part of a capture, so in raw mode the frame is streamed from the root shell's stdout straight into a deflate stream
+ * (BEST_SPEED) and stored as:
+ *
+ *   magic, width, height, format (big endian ints), deflated pixels
+ *
+ * Review decodes the pixels directly into a Bitmap, and a png is only encoded, on a low priority thread, once a
+ * consumer such as the report upload asks for one.
+ */
+public class RawFrame {
+    private static final int MAGIC = 0x4f445246; //"ODRF"
+    private static final int FORMAT_RGBA_8888 = 1;
+    private static final int FORMAT_RGBX_8888 = 2;
+    private static final int FORMAT_RGB_565 = 4;
+    private static final int FORMAT_BGRA_8888 = 5;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static volatile boolean supported = true;
+
+    private static final ExecutorService encoder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "RawFrameEncoder");
+            t.setPriority(Thread.MIN_PRIORITY);
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * @return false once a raw capture produced a frame we could not read, captures then fall back to png
+     */
+    public static boolean isSupported() {
+        return supported;
+    }
+
+    static void markUnsupported(String reason) {
+        Log.w("RawFrame", "Falling back to png screenshots: " + reason);
+        supported = false;
+    }
+
+    /**
+     * screencap writes the dataspace after the pixel format since Android P
+     */
+    static int headerSize() {
+        return Build.VERSION.SDK_INT >= 28 ? 16 : 12;
+    }
+
+    private static int bytesPerPixel(int format) {
+        switch (format) {
+            case FORMAT_RGBA_8888:
+            case FORMAT_RGBX_8888:
+            case FORMAT_BGRA_8888:
+                return 4;
+            case FORMAT_RGB_565:
+                return 2;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Receives the stdout of "screencap" and writes it as a raw frame, to a file or to memory. The deflater and
+     * buffers belong to the capture thread and are reused for every frame
+     */
+    static class Writer implements RootShell.OutputHandler {
+        private final Deflater deflater;
+        private final byte[] header;
+        private File file;
+        private OutputStream sink;
+        private DeflaterOutputStream out;
+        private long frameTimeMillis;
+        private int headerRead;
+        private long pixelBytes;
+        private long expectedBytes;
+        private boolean rejected;
+
+        Writer() {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+            header = new byte[headerSize()];
+        }
+
+        /**
+         * Prepares for the next frame, written to the file
+         */
+        void begin(File file) {
+            begin(file, null);
+        }
+
+        /**
+         * Prepares for the next frame, written to the stream
+         */
+        void begin(OutputStream sink) {
+            begin(null, sink);
+        }
+
+        private void begin(File file, OutputStream sink) {
+            this.file = file;
+            this.sink = sink;
+            deflater.reset();
+            rejected = false;
+            out = null;
+            headerRead = 0;
+            pixelBytes = 0;
+            expectedBytes = 0;
+        }
+
+        @Override
+        public void onOutput(byte[] buffer, int offset, int length) throws IOException {
+            if (headerRead < header.length) {
+                int n = Math.min(length, header.length - headerRead);
+                System.arraycopy(buffer, offset, header, headerRead, n);
+                headerRead += n;
+                offset += n;
+                length -= n;
+                if (headerRead == header.length) {
+                    start();
+                }
+            }
+            if (length > 0 && out != null) {
+                out.write(buffer, offset, length);
+                pixelBytes += length;
+            }
+        }
+
+        private void start() throws IOException {
+            ByteBuffer le = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+            int width = le.getInt(0);
+            int height = le.getInt(4);
+            int format = le.getInt(8);
+            int bpp = bytesPerPixel(format);
+            if (bpp == 0 || width <= 0 || height <= 0) {
+                rejected = true;
+                throw new IOException("Unsupported frame " + width + "x" + height + " format " + format);
+            }
+            expectedBytes = (long) width * height * bpp;
+            //screencap grabs the screen before it writes anything, so the frame is at least as old as its header
+            frameTimeMillis = System.currentTimeMillis();
+            OutputStream target = sink != null ? sink : new FileOutputStream(file);
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(target, BUFFER_SIZE));
+            data.writeInt(MAGIC);
+            data.writeInt(width);
+            data.writeInt(height);
+            data.writeInt(format);
+            out = new DeflaterOutputStream(data, deflater, BUFFER_SIZE);
+        }
+
+        /**
+         * Completes the file
+         * @return true if the frame held exactly the pixels its header announced
+         */
+        boolean finish() throws IOException {
+            if (out == null) {
+                return false;
+            }
+            out.finish();
+            out.close();
+            out = null;
+            rejected = pixelBytes != expectedBytes;
+            return !rejected;
+        }
+
+        /**
+         * @return wall clock time by which the last frame had been grabbed
+         */
+        long getFrameTimeMillis() {
+            return frameTimeMillis;
+        }
+
+        /**
+         * @return true if the last frame had a header or size we cannot read
+         */
+        boolean isRejected() {
+            return rejected;
+        }
+
+        /**
+         * Closes and deletes a frame that could not be captured
+         */
+        void abort() {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // deleted below
+                }
+                out = null;
+            }
+            if (file != null) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Writes RGBA_8888 pixels held in memory, e.g. a plane of an ImageReader Image, as a raw frame file. Rows are
+     * deflated straight from the buffer, row padding beyond width pixels is skipped
+     * @param row scratch buffer of at least width * 4 bytes, reused between frames by the caller
+     */
+    static void write(File file, ByteBuffer pixels, int width, int height, int rowStride, Deflater deflater,
+                      byte[] row) throws IOException {
+        int rowBytes = width * 4;
+        File tmp = new File(file.getPath() + ".tmp");
+        deflater.reset();
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), BUFFER_SIZE));
+        try {
+            data.writeInt(MAGIC);
+            data.writeInt(width);
+            data.writeInt(height);
+            data.writeInt(FORMAT_RGBA_8888);
+            DeflaterOutputStream out = new DeflaterOutputStream(data, deflater, BUFFER_SIZE);
+            ByteBuffer source = pixels.duplicate();
+            for (int y = 0; y < height; y++) {
+                source.position(y * rowStride);
+                source.get(row, 0, rowBytes);
+                out.write(row, 0, rowBytes);
+            }
+            out.finish();
+        } finally {
+            data.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Could not write " + file);
+        }
+    }
+
+    /**
+     * @return the frame as a Bitmap, without any png round trip
+     */
+    public static Bitmap decode(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a raw frame: " + file);
+            }
+            int width = in.readInt();
+            int height = in.readInt();
+            int format = in.readInt();
+            byte[] pixels = new byte[width * height * bytesPerPixel(format)];
+            new DataInputStream(new InflaterInputStream(in)).readFully(pixels);
+            if (format == FORMAT_BGRA_8888) {
+                for (int i = 0; i < pixels.length; i += 4) {
+                    byte b = pixels[i];
+                    pixels[i] = pixels[i + 2];
+                    pixels[i + 2] = b;
+                }
+            }
+            Bitmap.Config config = format == FORMAT_RGB_565 ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+            Bitmap bitmap = Bitmap.createBitmap(width, height, config);
+            bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(pixels));
+            return bitmap;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return mean luminance (0-255) of each block of a cols x rows grid over the frame, row by row, computed from the
+     * stored pixels without creating a Bitmap
+     */
+    public static int[] luminanceGrid(File file, int cols, int rows) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+        try {
+            return luminanceGrid(in, cols, rows);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @see #luminanceGrid(File, int, int), reads the frame from the stream
+     */
+    public static int[] luminanceGrid(InputStream stream, int cols, int rows) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a raw frame");
+        }
+        int width = in.readInt();
+        int height = in.readInt();
+        int format = in.readInt();
+        int bpp = bytesPerPixel(format);
+        if (bpp == 0 || width < cols || height < rows) {
+            throw new IOException("Unsupported frame " + width + "x" + height + " format " + format);
+        }
+        //a few samples per block and row are plenty for a mean, every row still has to be inflated
+        int step = Math.max(1, width / (cols * 16));
+        long[] sums = new long[cols * rows];
+        int[] counts = new int[cols * rows];
+        byte[] row = new byte[width * bpp];
+        DataInputStream pixels = new DataInputStream(new InflaterInputStream(in));
+        for (int y = 0; y < height; y++) {
+            pixels.readFully(row);
+            int block = (int) ((long) y * rows / height) * cols;
+            for (int x = 0; x < width; x += step) {
+                int i = x * bpp;
+                int r, g, b;
+                if (format == FORMAT_RGB_565) {
+                    int v = (row[i] & 0xff) | (row[i + 1] & 0xff) << 8;
+                    r = (v >> 8) & 0xf8;
+                    g = (v >> 3) & 0xfc;
+                    b = (v << 3) & 0xf8;
+                }
+                else if (format == FORMAT_BGRA_8888) {
+                    b = row[i] & 0xff;
+                    g = row[i + 1] & 0xff;
+                    r = row[i + 2] & 0xff;
+                }
+                else {
+                    r = row[i] & 0xff;
+                    g = row[i + 1] & 0xff;
+                    b = row[i + 2] & 0xff;
+                }
+                int cell = block + (int) ((long) x * cols / width);
+                sums[cell] += (r * 77 + g * 150 + b * 29) >> 8;
+                counts[cell]++;
+            }
+        }
+        int[] grid = new int[cols * rows];
+        for (int i = 0; i < grid.length; i++) {
+            grid[i] = counts[i] == 0 ? 0 : (int) (sums[i] / counts[i]);
+        }
+        return grid;
+    }
+
+    /**
+     * Encodes the png of a raw frame on the low priority encoder thread, unless the png already exists
+     * @return future of the png file
+     */
+    public static Future<File> encodePng(final File raw, final File png) {
+        return encoder.submit(new Callable<File>() {
+            @Override
+            public File call() throws IOException {
+                if (png.exists()) {
+                    return png;
+                }
+                Bitmap bitmap = decode(raw);
+                File tmp = new File(png.getPath() + ".tmp");
+                BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(tmp), BUFFER_SIZE);
+                try {
+                    bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+                } finally {
+                    out.close();
+                    bitmap.recycle();
+                }
+                if (!tmp.renameTo(png)) {
+                    throw new IOException("Could not write " + png);
+                }
+                return png;
+            }
+        });
+    }
+}
@@ -63,6 +63,7 @@ public class RecordFloatingWidget extends Service {
 
         // Prepare Report, start Data collection
         BugReport.getInstance().clearReport();
+        BugReport.getInstance().startJournal();
         gem = new GetEventManager();
         sdm = new SensorDataManager(this);
         display = ((WindowManager) getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay();
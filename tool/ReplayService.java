@@ -13,12 +13,8 @@ import android.view.View;
 import android.view.WindowManager;
 import android.widget.LinearLayout;
 
-import java.io.BufferedOutputStream;
-import java.io.DataOutputStream;
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -34,8 +30,10 @@ import java.util.concurrent.Executors;
  */
 public class ReplayService extends IntentService {
 
-    Process su_replay;
-    OutputStream os;
+    private static final long SETUP_TIMEOUT = 5000;
+    private static final long DRAIN_TIMEOUT = 30000;
+
+    RootShell.Session shell;
     ArrayList<ReplayEvent.SendEventBundle> preProcessedEvents;
 
     public ReplayService() {
@@ -48,11 +46,8 @@ public class ReplayService extends IntentService {
         //we're going to have to do an SU thing here, but for now, lets just log something every 10 seconds
         ExecutorService service = Executors.newSingleThreadExecutor();
 
-        try {
-            su_replay = Runtime.getRuntime().exec("su", null, null);
-            os = su_replay.getOutputStream();
-            service.submit(new ReplayEvent(this));
-        } catch(Exception e){}
+        shell = RootShell.getInstance().openSession();
+        service.submit(new ReplayEvent(this));
     }
 
 
@@ -70,16 +65,17 @@ public class ReplayService extends IntentService {
             freezeOrientation();
             changeOrientation(BugReport.getInstance().getStartOrientation());
             try {
-                HashMap<String, DataOutputStream> procs = new HashMap<String, DataOutputStream>();
+                //Grant permissions to directly write to each device, and keep it open on its own descriptor
+                HashMap<String, Integer> descriptors = new HashMap<String, Integer>();
+                int fd = 3;
                 for (String device : getDevices()) {
-                    //Grant permissions to directly write to device
-                    Process process = Runtime.getRuntime().exec("su");
-                    DataOutputStream dataOutputStream = new DataOutputStream(process.getOutputStream());
-                    dataOutputStream.writeBytes("chmod 777 " + device + " \n");
-                    dataOutputStream.flush();
-                    dataOutputStream.writeBytes("exec 3>" + device + "\n");
-                    dataOutputStream.flush();
-                    procs.put(device, dataOutputStream);
+                    if (!RootShell.getInstance().run("chmod 777 " + device, SETUP_TIMEOUT).isSuccess()) {
+                        throw new IOException("Could not grant write access to " + device);
+                    }
+                    if (!shell.exec("exec " + fd + ">" + device).await(SETUP_TIMEOUT).isSuccess()) {
+                        throw new IOException("Could not open " + device);
+                    }
+                    descriptors.put(device, fd++);
                 }
 
                 Thread.sleep(wait_before);
@@ -93,16 +89,16 @@ public class ReplayService extends IntentService {
                         changeOrientation(bundle.orientation);
                     }
                     else {
+                        StringBuilder writes = new StringBuilder();
                         for (String cmd : bundle.commandStrings) {
-                            procs.get(bundle.device).writeBytes("echo -n '" + cmd + "' >&3 \n");
+                            writes.append("echo -n '").append(cmd).append("' >&").append(descriptors.get(bundle.device)).append("; ");
                         }
-                        procs.get(bundle.device).flush();
+                        shell.exec(writes.toString());
                     }
                     previousEventTime = bundle.timeMillis;
                 }
                 releaseOrientation();
-                os.close();
-                su_replay.waitFor();
+                finishShell();
                 Thread.sleep(wait_after);
             } catch (Exception e) {
                 Log.e("ReplayService", "Unable to replay event: " + e.getMessage());
@@ -119,10 +115,11 @@ public class ReplayService extends IntentService {
         public void replayUsingSendEvent() {
             try {
                 Thread.sleep(wait_before);
-                su_replay = Runtime.getRuntime().exec("su", null, null);
-                os = su_replay.getOutputStream();
-            } catch (Exception e) {
-                Log.e("ReplayService", "Could not start su!");
+            } catch (InterruptedException e) {
+                Log.e("ReplayService", "Interrupted before replay");
+            }
+            if (shell == null) {
+                shell = RootShell.getInstance().openSession();
             }
             ArrayList<SendEventBundle> events = preprocessEvents();
             long waitUntil = 0;
@@ -134,42 +131,43 @@ public class ReplayService extends IntentService {
                     changeOrientation(bundle.orientation);
                 }
                 else {
-                    for (byte[] cmd : bundle.commands) {
-                        try {
-                            os.write((new GetEvent(cmd).getSendEvent(bundle.device) + " \n").getBytes("ASCII"));
-                        } catch (Exception e) {
-                            Log.e("ReplayService", e.getMessage());
-                        }
-                    }
-                    try {
-                        os.flush();
-                    } catch (Exception e) {
-                        Log.e("ReplayService", e.getMessage());
+                    //one command line per bundle, like the direct writes, so the records of a frame stay together
+                    StringBuilder sends = new StringBuilder();
+                    for (int i = 0; i < bundle.count; i++) {
+                        GetEvent record = new GetEvent(bundle.records, i * bundle.recordSize, bundle.recordSize);
+                        sends.append(record.getSendEvent(bundle.device)).append("; ");
                     }
+                    shell.exec(sends.toString());
                 }
                 previousEventTime = bundle.timeMillis;
             }
             try {
                 releaseOrientation();
-                os.close();
-                su_replay.waitFor();
+                finishShell();
                 Thread.sleep(wait_after);
             } catch(Exception e) {
                 Log.e("ReplayService", e.getMessage());
             }
         }
 
+        /**
+         * Waits for the commands sent so far, then ends the replay shell
+         */
+        private void finishShell() throws IOException {
+            try {
+                shell.exec(":").await(DRAIN_TIMEOUT);
+            } finally {
+                shell.close();
+                shell = null;
+            }
+        }
+
 
         /**
          * Prevent accelerometer from affecting device orientation
          */
         public void freezeOrientation() {
-            try {
-                os.write(("settings put system accelerometer_rotation 0 \n").getBytes("ASCII"));
-                os.flush();
-            } catch (Exception e) {
-                Log.e("ReplayService", "Could not freeze screen rotation!");
-            }
+            shell.exec("settings put system accelerometer_rotation 0");
         }
 
         private long min(long a, long b) {
@@ -180,12 +178,7 @@ public class ReplayService extends IntentService {
          * Allow accelerometer to change orientation
          */
         public void releaseOrientation() {
-            try {
-                os.write(("settings put system accelerometer_rotation 1 \n").getBytes("ASCII"));
-                os.flush();
-            } catch (Exception e) {
-                Log.e("ReplayService", "Could not release screen orientation!");
-            }
+            shell.exec("settings put system accelerometer_rotation 1");
         }
 
         /**
@@ -194,8 +187,7 @@ public class ReplayService extends IntentService {
          */
         public void changeOrientation(int orientation) {
             try {
-                os.write(("settings put system user_rotation " + orientation + " \n").getBytes("ASCII"));
-                os.flush();
+                shell.exec("settings put system user_rotation " + orientation);
                 Thread.sleep(2000);
             } catch (Exception e) {
                 Log.e("ReplayService", "Could not change screen orientation to: " + orientation + "!");
@@ -216,32 +208,37 @@ public class ReplayService extends IntentService {
                 return preProcessedEvents;
             }
             ArrayList<SendEventBundle> events =  new ArrayList<SendEventBundle>();
-            ArrayList<GetEvent> buffer = new ArrayList<GetEvent>();
+            //the records of a bundle are copied through one record buffer into one growing array, in the size the
+            //device was read in, which is the size it expects to be written
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            byte[] record = new byte[InputEventReader.RECORD_SIZE_64];
             String device = "";
+            int recordSize = InputEventReader.getNativeRecordSize();
             long time = 0;
             for (ReportEvent event : BugReport.getInstance().getEventList()) {
                 if (event.type == ReportEvent.TYPE_ORIENTATION) {
-                    SendEventBundle bundle = new SendEventBundle("ORIENTATION", null, event.getStartTime());
+                    SendEventBundle bundle = new SendEventBundle("ORIENTATION", null, 0, event.getStartTime());
                     bundle.orientation = event.getOrientation();
                     events.add(bundle);
                 }
                 else {
                     device = event.getDevice();
-                    for (GetEvent e : event.getInputEvents()) {
-                        if (buffer.isEmpty() || time == e.getTimeMillis()) {
-                            buffer.add(e);
+                    InputEventLog.Cursor e = event.getInputEvents();
+                    while (e.next()) {
+                        if (buffer.size() > 0 && time != e.getTimeMillis()) {
+                            events.add(makeBundle(buffer, device, recordSize, time));
+                            buffer.reset();
                         }
-                        else {
-                            events.add(makeBundle(buffer, device));
-                            buffer.clear();
-                            buffer.add(e);
+                        if (buffer.size() == 0) {
+                            time = e.getTimeMillis();
                         }
-                        time = e.getTimeMillis();
+                        recordSize = e.copyRecord(record);
+                        buffer.write(record, 0, recordSize);
                     }
                 }
-                if (!buffer.isEmpty()) {
-                    events.add(makeBundle(buffer, device));
-                    buffer.clear();
+                if (buffer.size() > 0) {
+                    events.add(makeBundle(buffer, device, recordSize, time));
+                    buffer.reset();
                 }
             }
             preProcessedEvents = events;
@@ -249,36 +246,38 @@ public class ReplayService extends IntentService {
         }
 
 
-        public SendEventBundle makeBundle(ArrayList<GetEvent> events, String device) {
-            byte[][] eventBundle = new byte[events.size()][];
-            for (int i = 0; i < events.size(); ++i) {
-                try {
-                    eventBundle[i] = events.get(i).getBytes();
-                } catch (Exception err) {
-                    Log.e("ReplayService", "Unexpected error in preprocess: " + err.getMessage());
-                }
-            }
-            return new SendEventBundle(device, eventBundle, events.get(0).getTimeMillis());
+        public SendEventBundle makeBundle(ByteArrayOutputStream records, String device, int recordSize, long timeMillis) {
+            return new SendEventBundle(device, records.toByteArray(), recordSize, timeMillis);
         }
 
 
         class SendEventBundle {
+            private static final String HEX = "0123456789abcdef";
             public String device;
-            public byte[][] commands;
+            public byte[] records;
+            public int recordSize;
+            public int count;
             public String[] commandStrings;
             public long timeMillis;
             public int orientation;
 
-            public SendEventBundle(String device, byte[][] commands, long timeMillis) {
+            /**
+             * @param records input_event records of recordSize bytes back to back, null for an orientation change
+             * @param recordSize InputEventReader.RECORD_SIZE_32 or RECORD_SIZE_64, each record is one write
+             */
+            public SendEventBundle(String device, byte[] records, int recordSize, long timeMillis) {
                 this.device = device;
-                this.commands = commands;
+                this.records = records;
+                this.recordSize = recordSize;
                 this.timeMillis = timeMillis;
-                if (commands != null) {
-                    commandStrings = new String[commands.length];
-                    for (int i = 0; i < commands.length; i++) {
-                        StringBuilder cmdString = new StringBuilder();
-                        for (byte b : commands[i]) {
-                            cmdString.append(String.format("\\x%02x", b));
+                if (records != null) {
+                    count = records.length / recordSize;
+                    commandStrings = new String[count];
+                    StringBuilder cmdString = new StringBuilder(recordSize * 4);
+                    for (int i = 0; i < count; i++) {
+                        cmdString.setLength(0);
+                        for (int j = i * recordSize; j < (i + 1) * recordSize; j++) {
+                            cmdString.append("\\x").append(HEX.charAt((records[j] >> 4) & 0xf)).append(HEX.charAt(records[j] & 0xf));
                         }
                         commandStrings[i] = cmdString.toString();
                     }
@@ -19,7 +19,6 @@ import android.widget.EditText;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
-import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.net.HttpURLConnection;
 import java.net.URL;
@@ -28,6 +27,7 @@ import java.net.URL;
  * ReportActivity handles the visual recording and submitting the bug report
  */
 public class ReportActivity extends ActionBarActivity {
+    private static final long PM_CLEAR_TIMEOUT = 10000;
     private EditText reporterName;
     private EditText reportTitle;
     private EditText desiredOutcome;
@@ -124,17 +124,7 @@ public class ReportActivity extends ActionBarActivity {
         updateBugReport();
 
         try {
-            Process clear_app_data = Runtime.getRuntime().exec("su", null, null);
-            String cmd = "pm clear " + BugReport.getInstance().getPackageName();
-            OutputStream os = clear_app_data.getOutputStream();
-            os.write((cmd + "\n").getBytes("ASCII"));
-            os.flush();
-            os.write(("exit\n").getBytes());
-            os.flush();
-            os.close();
-
-            clear_app_data.waitFor();
-
+            RootShell.getInstance().run("pm clear " + BugReport.getInstance().getPackageName(), PM_CLEAR_TIMEOUT);
         } catch (Exception e){Log.e("ReportActivity", "Error clearing stored app data");}
 
         Intent intent = new Intent(this, ReplayService.class);
@@ -1,15 +1,18 @@
 package semeru.odbr;
 
-import android.util.SparseArray;
-import android.util.SparseIntArray;
-
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by Richard Bonett on 4/22/16.
  * A Report Event is our classification for a singular event. Each Report Event will have a screenshot, a hierarchy,
  * and then multiple getevent lines associated with it until the trace reaches a point where that specific report event
- * has finished. The Report Event interacts with the GetEventDeviceInfo to get appropriate data on the device and the
+ * has finished. The getevent lines themselves live in the device's InputEventLog, the Report Event only keeps the
+ * index range of its lines and hands them out through an InputEventLog.Cursor. The Report Event interacts with the GetEventDeviceInfo to get appropriate data on the device and the
  * managers as well to get feeds of data.
  *
  * The traces for getEvent can be classified into 3 categories:
@@ -18,16 +21,22 @@ import java.util.ArrayList;
  *  --MultiTouchTypeB
  */
 public class ReportEvent {
-    short EV_ABS = 3;
-
     public static transient int TYPE_USER_EVENT = 0;
     public static transient int TYPE_ORIENTATION = 1;
     public transient int type = TYPE_USER_EVENT;
-
-    private Screenshot screenshot;
-    private HierarchyDump hierarchy;
-    private ArrayList<GetEvent> inputList;
-    private SparseArray<ArrayList<int[]>> coords;
+    public static final long UNKNOWN_STALENESS = Long.MIN_VALUE;
+    private static final AtomicLong nextSequence = new AtomicLong();
+
+    private final transient long sequence = nextSequence.getAndIncrement();
+
+    private volatile Screenshot screenshot;
+    private volatile Screenshot resultScreenshot;
+    private volatile HierarchyDump hierarchy;
+    private transient ArrayList<String[]> skippedArtifacts;
+    private transient InputEventLog inputLog;
+    private transient int firstInput = -1;
+    private transient int endInput = 0;
+    private List<ArrayList<int[]>> coords;
     private String description = "";
     private long event_start_time = 0;
     private long event_end_time = 0;
@@ -35,24 +44,40 @@ public class ReportEvent {
     private int orientation;
 
     public ReportEvent(String device) {
+        this(device, null);
+    }
+
+    public ReportEvent(String device, InputEventLog inputLog) {
         this.device = device;
-        inputList = new ArrayList<GetEvent>();
+        this.inputLog = inputLog;
     }
 
     public void setScreenshot(Screenshot s) {
         screenshot = s;
     }
 
+    /**
+     * @param s screenshot of the screen the gesture settled to
+     */
+    public void setResultScreenshot(Screenshot s) {
+        resultScreenshot = s;
+    }
+
     public void setHierarchyDump(HierarchyDump d) {
         hierarchy = d;
     }
 
-    public void addGetEvent(GetEvent e) {
-        if (inputList.isEmpty()) {
-            event_start_time = e.getTimeMillis();
+    /**
+     * Extends this event's range of getevent lines to include the line at index in the input log
+     * @param index index returned by InputEventLog.append()
+     */
+    public void addInput(int index) {
+        if (firstInput < 0) {
+            firstInput = index;
+            event_start_time = inputLog.getTimeMillis(index);
         }
-        event_end_time = e.getTimeMillis();
-        inputList.add(e);
+        endInput = index + 1;
+        event_end_time = inputLog.getTimeMillis(index);
     }
 
     public String getData() {
@@ -70,31 +95,116 @@ public class ReportEvent {
         if (coords.size() > 1) {
             description += "Multitouch";
         }
-        else if (coords.valueAt(0).size() < 3) {
-            int[] coord = coords.valueAt(0).get(0);
+        else if (coords.get(0).size() < 3) {
+            int[] coord = coords.get(0).get(0);
             description += "Click at X:" + coord[0] + " |Y: " + coord[1];
         }
         else {
-            int[] start = coords.valueAt(0).get(0);
-            int[] end = coords.valueAt(0).get(coords.valueAt(0).size() - 1);
+            int[] start = coords.get(0).get(0);
+            int[] end = coords.get(0).get(coords.get(0).size() - 1);
             description += "Swipe from X: " + start[0] + " |Y: " + start[1] + " | to X: " + end[0] + " |Y: " + end[1];
         }
         return description;
     }
 
 
+    /**
+     * Records that an artifact was not captured for this event, see ArtifactPolicy
+     * @param artifact ArtifactPolicy.SCREENSHOT or ArtifactPolicy.HIERARCHY
+     * @param reason why it was skipped, e.g. ArtifactPolicy.REASON_RATE
+     */
+    public synchronized void addSkippedArtifact(String artifact, String reason) {
+        if (skippedArtifacts == null) {
+            skippedArtifacts = new ArrayList<String[]>(2);
+        }
+        skippedArtifacts.add(new String[] {artifact, reason});
+    }
+
+    /**
+     * @return pairs of artifact and reason for each artifact skipped for this event
+     */
+    public synchronized List<String[]> getSkippedArtifacts() {
+        return skippedArtifacts == null ? Collections.<String[]>emptyList()
+                : new ArrayList<String[]>(skippedArtifacts);
+    }
+
     public Screenshot getScreenshot() {
         return screenshot;
     }
 
+    /**
+     * @return screenshot of the screen once the gesture settled, null if there is none (yet)
+     */
+    public Screenshot getResultScreenshot() {
+        return resultScreenshot;
+    }
+
     public HierarchyDump getHierarchy() {
         return hierarchy;
     }
 
-    public ArrayList<GetEvent> getInputEvents() {
-        return inputList;
+    /**
+     * @return milliseconds between the start of this event and the capture of its screenshot, negative for frames
+     * grabbed before the touch, UNKNOWN_STALENESS if there is no screenshot or its capture has not started
+     */
+    public long getScreenshotStaleness() {
+        return screenshot == null ? UNKNOWN_STALENESS : staleness(screenshot.getCaptureTimeMillis());
+    }
+
+    /**
+     * @return milliseconds between the start of this event and the capture of its hierarchy dump, UNKNOWN_STALENESS
+     * if there is no dump or its capture has not started
+     */
+    public long getHierarchyStaleness() {
+        return hierarchy == null ? UNKNOWN_STALENESS : staleness(hierarchy.getCaptureTimeMillis());
+    }
+
+    private long staleness(long captureTimeMillis) {
+        if (captureTimeMillis == 0 || captureTimeMillis == Long.MAX_VALUE || event_start_time == 0) {
+            return UNKNOWN_STALENESS;
+        }
+        return captureTimeMillis - event_start_time;
+    }
+
+    /**
+     * @return a new cursor over the getevent lines of this event
+     */
+    public InputEventLog.Cursor getInputEvents() {
+        if (firstInput < 0) {
+            return new InputEventLog.Cursor(inputLog, 0, 0);
+        }
+        return inputLog.cursor(firstInput, endInput);
     }
 
+    /**
+     * @return index of this event's first getevent line in the input log, -1 if it has none
+     */
+    public int getFirstInput() {
+        return firstInput;
+    }
+
+    public int numInputEvents() {
+        return firstInput < 0 ? 0 : endInput - firstInput;
+    }
+
+
+    /**
+     * @return creation order of this event, breaks ties between events starting at the same time
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Makes events created from now on take sequences of at least next, so they do not collide with the sequences a
+     * restored journal refers to
+     */
+    static void skipSequencesTo(long next) {
+        long current;
+        do {
+            current = nextSequence.get();
+        } while (current < next && !nextSequence.compareAndSet(current, next));
+    }
 
     public long getStartTime() {
         return event_start_time;
@@ -130,15 +240,16 @@ public class ReportEvent {
 
     /**
      * Retrieve a list of input traces, accounts for a lack of X || Y in the output of specific ABS reports
-     * @return a list of lists, where each list contains the coordinates for one touch input
+     * @return a list of lists, where each list contains the coordinates for one touch input, ordered by slot on
+     * multitouch B devices
      */
-    public SparseArray<ArrayList<int[]>> getInputCoordinates() {
+    public List<ArrayList<int[]>> getInputCoordinates() {
         if (coords != null) {
             return coords;
         }
 
-        coords = new SparseArray<ArrayList<int[]>>();
-        int NOT_FOUND = -1;
+        coords = new ArrayList<ArrayList<int[]>>();
+        TouchProfile profile = GetEventDeviceInfo.getInstance().getTouchProfile();
         int CLEAN = 0;
         int DIRTY = 1;
 
@@ -148,34 +259,38 @@ public class ReportEvent {
          * to denote the lack of an X or Y report of ABS_MT_POSITION_X||Y. Dirty is when there is not one,
          * clean is when there is.
          */
-        if (GetEventDeviceInfo.getInstance().isMultiTouchB()) {
-            SparseArray<int[]> trace = new SparseArray<int[]>();
-            SparseIntArray slots = new SparseIntArray();
+        if (profile.getProtocol() == TouchProfile.PROTOCOL_MULTI_TOUCH_B) {
+            TreeMap<Integer, ArrayList<int[]>> bySlot = new TreeMap<Integer, ArrayList<int[]>>();
+            HashMap<Integer, int[]> trace = new HashMap<Integer, int[]>();
+            HashMap<Integer, Integer> slots = new HashMap<Integer, Integer>();
             int activeSlot = 0;
 
             trace.put(activeSlot, new int[]{-1, -1});
-            coords.put(activeSlot, new ArrayList<int[]>());
+            bySlot.put(activeSlot, new ArrayList<int[]>());
 
-            for (GetEvent e : inputList) {
-                if (slot(e)) {
+            InputEventLog.Cursor e = getInputEvents();
+            while (e.next()) {
+                if (slot(profile, e)) {
                     activeSlot = e.getValue();
-                    if (slots.get(activeSlot, NOT_FOUND) == NOT_FOUND) {
+                    if (!slots.containsKey(activeSlot)) {
                         trace.put(activeSlot, new int[]{-1, -1});
-                        coords.put(activeSlot, new ArrayList<int[]>());
+                        bySlot.put(activeSlot, new ArrayList<int[]>());
                     }
                 }
-                if (xPos(e)) {
+                Integer state = slots.get(activeSlot);
+                if (xPos(profile, e)) {
                     trace.get(activeSlot)[0] = e.getValue();
                     slots.put(activeSlot, DIRTY);
-                } else if (yPos(e)) {
+                } else if (yPos(profile, e)) {
                     trace.get(activeSlot)[1] = e.getValue();
-                    coords.get(activeSlot).add(trace.get(activeSlot).clone());
+                    bySlot.get(activeSlot).add(trace.get(activeSlot).clone());
                     slots.put(activeSlot, CLEAN);
-                } else if (slots.get(activeSlot) == DIRTY) {
-                    coords.get(activeSlot).add(trace.get(activeSlot).clone());
+                } else if (state != null && state == DIRTY) {
+                    bySlot.get(activeSlot).add(trace.get(activeSlot).clone());
                     slots.put(activeSlot, CLEAN);
                 }
             }
+            coords.addAll(bySlot.values());
         }
         /**
          * Uses the same Clean/Dirty to handle lack of reports, taking the 'previous' x or y position as the one
@@ -183,27 +298,28 @@ public class ReportEvent {
          * tracking to match certain traces to other traces. Can run into errors IF the user can put the pointers
          * at the exact SAME location, but that is a limitation of Type A devices.
          */
-        else if (GetEventDeviceInfo.getInstance().isMultiTouchA() || GetEventDeviceInfo.getInstance().isTypeSingleTouch()) {
+        else {
             int state = CLEAN;
             int[] coord = new int[2];
 
-            for (GetEvent e : inputList) {
-                if (down(e)) {
-                    coords.put(coords.size(), new ArrayList<int[]>());
+            InputEventLog.Cursor e = getInputEvents();
+            while (e.next()) {
+                if (down(profile, e)) {
+                    coords.add(new ArrayList<int[]>());
                 } else if (coords.size() == 0) {
                     continue;
-                } else if (xPos(e)) {
+                } else if (xPos(profile, e)) {
                     coord[0] = e.getValue();
                     state = DIRTY;
                 } else {
-                    if (yPos(e)) {
+                    if (yPos(profile, e)) {
                         coord[1] = e.getValue();
                         state = DIRTY;
                     }
                     if (state == DIRTY) {
-                        ArrayList<int[]> base = coords.valueAt(0);
+                        ArrayList<int[]> base = coords.get(0);
                         for (int trace = 0; trace < coords.size(); trace++) {
-                            ArrayList<int[]> other = coords.valueAt(trace);
+                            ArrayList<int[]> other = coords.get(trace);
                             if (other.size() == 0) {
                                 base = other;
                                 break;
@@ -237,34 +353,23 @@ public class ReportEvent {
      *  --slot: slot ID of a trace
      *  --xPos: whether or not its a X position
      *  --yPos: whether or not its a Y position
+     * @param profile compiled device profile used to classify the line
      * @param e
      * @return
      */
-    private boolean down(GetEvent e) {
-        boolean res;
-        try {
-            res = e.getCode() == GetEventDeviceInfo.getInstance().get_code("ABS_MT_TRACKING_ID") && e.getValue() != -1;
-        } catch (Exception exc) {
-            res = e.getCode() == GetEventDeviceInfo.getInstance().get_code("BTN_TOUCH") && e.getValue() == 1;
-        }
-        return res;
+    private boolean down(TouchProfile profile, InputEventLog.Cursor e) {
+        return profile.isDown(e.getType(), e.getCode(), e.getValue());
     }
 
-    private boolean slot(GetEvent e) {
-        try{
-            return e.getType() == EV_ABS && (e.getCode() == GetEventDeviceInfo.getInstance().get_code("ABS_MT_SLOT"));
-        } catch (Exception exc) {return false;}
+    private boolean slot(TouchProfile profile, InputEventLog.Cursor e) {
+        return profile.role(e.getType(), e.getCode()) == TouchProfile.ROLE_SLOT;
     }
 
-    private boolean xPos(GetEvent e) {
-        try {
-            return e.getType() == EV_ABS && (e.getCode() == GetEventDeviceInfo.getInstance().get_code("ABS_MT_POSITION_X") || e.getCode() == GetEventDeviceInfo.getInstance().get_code("ABS_X"));
-        } catch (Exception exc) {return false;}
+    private boolean xPos(TouchProfile profile, InputEventLog.Cursor e) {
+        return profile.role(e.getType(), e.getCode()) == TouchProfile.ROLE_X;
     }
 
-    private boolean yPos(GetEvent e) {
-        try {
-            return e.getType() == EV_ABS && (e.getCode() == GetEventDeviceInfo.getInstance().get_code("ABS_MT_POSITION_Y") || e.getCode() == GetEventDeviceInfo.getInstance().get_code("ABS_Y"));
-        } catch (Exception exc) {return false;}
+    private boolean yPos(TouchProfile profile, InputEventLog.Cursor e) {
+        return profile.role(e.getType(), e.getCode()) == TouchProfile.ROLE_Y;
     }
 }
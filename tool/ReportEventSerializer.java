@@ -5,7 +5,7 @@ import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.util.Base64;
-import android.util.SparseArray;
+import android.util.Log;
 
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
@@ -16,36 +16,83 @@ import com.google.gson.JsonSerializer;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 
 /**
  * Created by Richard Bonett on 1/24/17.
  */
 public class ReportEventSerializer implements JsonSerializer<ReportEvent> {
     private Context context;
+    private final HashSet<String> sentBlobs = new HashSet<String>();
+    private final HashSet<String> sentHierarchies = new HashSet<String>();
 
     public ReportEventSerializer(Context context) {
         this.context = context;
     }
 
-    private String readFileToString(String path) {
+    /*
+     * The xml of a hierarchy dump, stored plain or gzipped
+     */
+    private String readHierarchy(String path) {
         StringBuilder text = new StringBuilder();
-        File f = new File(path);
         try {
-            BufferedReader reader = new BufferedReader(new FileReader(f));
-            String line;
-            while ((line = reader.readLine()) != null) {
-                text.append(line + '\n');
+            BufferedReader reader = new BufferedReader(new InputStreamReader(HierarchyDump.openXml(path), "UTF-8"));
+            try {
+                char[] buffer = new char[8192];
+                int n;
+                while ((n = reader.read(buffer)) >= 0) {
+                    text.append(buffer, 0, n);
+                }
+            } finally {
+                reader.close();
             }
-            reader.close();
-        } catch (Exception e) {}
+        } catch (IOException e) {
+            Log.e("ReportEventSerializer", "Could not read " + path + ": " + e.getMessage());
+        }
         return text.toString();
     }
 
 
+    /*
+     * Adds how long after the event's start the artifact was captured, if known
+     */
+    private void addStaleness(JsonObject artifact, long staleness) {
+        if (staleness != ReportEvent.UNKNOWN_STALENESS) {
+            artifact.addProperty("staleness_ms", staleness);
+        }
+    }
+
+
+    /*
+     * Screenshots equal to one sent before only reference its blob
+     */
+    private JsonObject serializeScreenshot(Screenshot src) {
+        JsonObject screenshot = new JsonObject();
+        screenshot.addProperty("title", src.getFilename());
+        ScreenshotStore.Blob blob = src.getBlob();
+        if (blob != null) {
+            screenshot.addProperty("blob", blob.getDigest());
+        }
+        if (blob == null || sentBlobs.add(blob.getDigest())) {
+            try {
+                //the image is sent as stored, the WebP or png, or a png encoded once from the raw capture,
+                //instead of being decoded and compressed again
+                byte[] image = src.getImageBytes();
+                screenshot.addProperty("format", Screenshot.imageFormat(image));
+                screenshot.addProperty("bitmap_string", Base64.encodeToString(image, Base64.DEFAULT));
+            } catch (IOException e) {
+                Log.e("ReportEventSerializer", e.getMessage());
+            }
+        }
+        return screenshot;
+    }
+
+
     @Override
     public JsonElement serialize(ReportEvent src, Type typeOfSrc, JsonSerializationContext context) {
         JsonObject root = new JsonObject();
@@ -54,20 +101,44 @@ public class ReportEventSerializer implements JsonSerializer<ReportEvent> {
         root.addProperty("event_end_time", src.getStartTime() + src.getDuration());
 
         if (src.type == ReportEvent.TYPE_USER_EVENT) {
-            JsonObject screenshot = new JsonObject();
-            screenshot.addProperty("title", src.getScreenshot().getFilename());
-            ByteArrayOutputStream stream = new ByteArrayOutputStream();
-            src.getScreenshot().getBitmap().compress(Bitmap.CompressFormat.PNG, 100, stream);
-            screenshot.addProperty("bitmap_string", Base64.encodeToString(stream.toByteArray(), Base64.DEFAULT));
-            root.add("screenshot", screenshot);
+            //artifacts are attached by the CaptureDispatcher after the event was added, a session stopped before
+            //they were requested leaves the event without them
+            if (src.getScreenshot() != null) {
+                JsonObject screenshot = serializeScreenshot(src.getScreenshot());
+                addStaleness(screenshot, src.getScreenshotStaleness());
+                root.add("screenshot", screenshot);
+            }
+            if (src.getResultScreenshot() != null) {
+                root.add("result_screenshot", serializeScreenshot(src.getResultScreenshot()));
+            }
 
-            JsonObject hierarchy = new JsonObject();
-            hierarchy.addProperty("title", src.getHierarchy().getFilename());
-            hierarchy.addProperty("text", readFileToString(src.getHierarchy().getFilename()));
-            root.add("hierarchy", hierarchy);
+            HierarchyDump dump = src.getHierarchy();
+            if (dump != null) {
+                JsonObject hierarchy = new JsonObject();
+                hierarchy.addProperty("title", dump.getFilename());
+                dump.awaitCompletion(HierarchyDumpManager.CAPTURE_TIMEOUT);
+                //a dump shared by several events, e.g. reused while the screen did not change, is sent with the first
+                if (sentHierarchies.add(dump.getFilename())) {
+                    hierarchy.addProperty("text", readHierarchy(dump.getFilename()));
+                }
+                addStaleness(hierarchy, src.getHierarchyStaleness());
+                root.add("hierarchy", hierarchy);
+            }
+
+            List<String[]> skipped = src.getSkippedArtifacts();
+            if (!skipped.isEmpty()) {
+                JsonArray skippedList = new JsonArray();
+                for (String[] artifact : skipped) {
+                    JsonObject entry = new JsonObject();
+                    entry.addProperty("artifact", artifact[0]);
+                    entry.addProperty("reason", artifact[1]);
+                    skippedList.add(entry);
+                }
+                root.add("skipped_artifacts", skippedList);
+            }
 
             JsonArray inputList = new JsonArray();
-            SparseArray<ArrayList<int[]>> inputCoords = src.getInputCoordinates();
+            List<ArrayList<int[]>> inputCoords = src.getInputCoordinates();
             for (int i = 0; i < inputCoords.size(); ++i) {
                 JsonArray input = new JsonArray();
                 for (int[] coords : inputCoords.get(i)) {
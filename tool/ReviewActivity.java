@@ -8,11 +8,11 @@ import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Point;
 import android.graphics.drawable.Drawable;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentActivity;
 import android.util.Log;
-import android.util.SparseArray;
 import android.view.Surface;
 import android.view.View;
 import android.view.Window;
@@ -128,6 +128,7 @@ public class ReviewActivity extends FragmentActivity {
      */
     public static class UserEventFragment extends Fragment {
         public static final String ARG_POS = "position";
+        private float scale = 1;
 
         @Override
         public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
@@ -138,7 +139,6 @@ public class ReviewActivity extends FragmentActivity {
             View rootView = inflater.inflate(R.layout.user_event_fragment_layout, container, false);
             TextView eventDescription = (TextView) rootView.findViewById(R.id.userEventDescription);
             ImageView screenshot = (ImageView) rootView.findViewById(R.id.screenshot);
-            Bitmap screenBitmap;
 
             ReportEvent e = BugReport.getInstance().getEventAtIndex(pos);
             eventDescription.setText("(" + (pos + 1) + "/" + max + ") " + e.getEventDescription());
@@ -157,24 +157,49 @@ public class ReviewActivity extends FragmentActivity {
 
             /**
              * If we have a screencap we are going to get the bitmap version of it and draw scaled
-             * versions of our getEvent data onto it
+             * versions of our getEvent data onto it, off the UI thread as the capture may still be running
              */
-            else {
-                screenBitmap = e.getScreenshot().getBitmap();
+            else if (e.getScreenshot() != null) {
+                new LoadScreenshot(e, screenshot).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+            }
+
+            return rootView;
+        }
+
+        /**
+         * Loads the review bitmap of the event's screenshot and draws the slot traces onto it
+         */
+        class LoadScreenshot extends AsyncTask<Void, Void, Bitmap> {
+            private final ReportEvent e;
+            private final ImageView screenshot;
+
+            LoadScreenshot(ReportEvent e, ImageView screenshot) {
+                this.e = e;
+                this.screenshot = screenshot;
+            }
+
+            @Override
+            protected Bitmap doInBackground(Void... params) {
+                Bitmap screenBitmap = e.getScreenshot().getReviewBitmap();
+                if (screenBitmap == null) {
+                    return null;
+                }
                 // Rotate screenshot to match canvas; getevent does not map properly otherwise
                 if (screenBitmap.getWidth() > screenBitmap.getHeight()) {
                     Matrix matrix = new Matrix();
                     matrix.postRotate(e.getOrientation() * 90);
                     screenBitmap = Bitmap.createBitmap(screenBitmap, 0, 0, screenBitmap.getWidth(), screenBitmap.getHeight(), matrix, true);
                 }
+                //the review derivative or a downgraded screenshot is smaller than the screen
+                scale = (float) screenBitmap.getWidth() / (float) Globals.width;
                 Canvas c = new Canvas(screenBitmap);
                 Paint color = new Paint();
                 color.setStyle(Paint.Style.STROKE);
                 color.setStrokeWidth(5);
 
-                SparseArray<ArrayList<int[]>> traces = BugReport.getInstance().getEventAtIndex(pos).getInputCoordinates();
+                List<ArrayList<int[]>> traces = e.getInputCoordinates();
                 for (int trace = 0; trace < traces.size(); trace++) {
-                    ArrayList<int[]> coords = traces.valueAt(trace);
+                    ArrayList<int[]> coords = traces.get(trace);
                     color.setColor(BugReport.colors[trace % BugReport.colors.length]);
 
                     int x = scaleX(coords.get(0)[0]);
@@ -192,19 +217,27 @@ public class ReviewActivity extends FragmentActivity {
                     }
                 }
                 int scaledWidth = (int) (screenBitmap.getWidth() * ((float) Globals.availableHeightForImage / (float) screenBitmap.getHeight()));
-                Bitmap bScaled = Bitmap.createScaledBitmap(screenBitmap, scaledWidth, Globals.availableHeightForImage, true);
-                screenshot.setImageBitmap(bScaled);
+                return Bitmap.createScaledBitmap(screenBitmap, scaledWidth, Globals.availableHeightForImage, true);
             }
 
-            return rootView;
+            @Override
+            protected void onPostExecute(Bitmap bScaled) {
+                if (bScaled == null) {
+                    Log.e("ReviewActivity", "Could not load screenshot " + e.getScreenshot().getFilename());
+                    return;
+                }
+                screenshot.setImageBitmap(bScaled);
+            }
         }
 
         private int scaleX(int val) {
-            return (int) ((float) val * (float) Globals.width / (float) GetEventDeviceInfo.getInstance().getMaxX());
+            GetEventDeviceInfo info = GetEventDeviceInfo.getInstance();
+            return (int) ((float) (val - info.getMinX()) * (float) Globals.width * scale / (float) (info.getMaxX() - info.getMinX()));
         }
 
         private int scaleY(int val) {
-            return (int) ((float) val * (float) Globals.height / (float) GetEventDeviceInfo.getInstance().getMaxY());
+            GetEventDeviceInfo info = GetEventDeviceInfo.getInstance();
+            return (int) ((float) (val - info.getMinY()) * (float) Globals.height * scale / (float) (info.getMaxY() - info.getMinY()));
         }
 
     }
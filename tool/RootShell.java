@@ -0,0 +1,458 @@
+package semeru.odbr;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Broker for root shell commands. Spawning su and waiting for its prompt costs far more than most of the commands we
+ * run, so instead of one su process per component the broker keeps a small pool of long lived su sessions and hands
+ * each command to the next idle one.
+ *
+ * Every command is tagged with a request id and followed by an echo of that id and the command's exit status. The
+ * session reads stdout until this marker shows up, so the CommandFuture returned by exec() completes exactly when the
+ * command has finished, with its output and exit code. Callers can wait with a timeout and cancel a command, which
+ * kills the session running it; the session is respawned for the next command.
+ *
+ * Commands must not read stdin, it carries the next commands. Components that need a shell of their own, e.g. to keep
+ * file descriptors open between commands, get a dedicated session from openSession().
+ */
+public class RootShell {
+    private static final int POOL_SIZE = 3;
+    private static final String MARKER = ":ODBR-RC:";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static RootShell ourInstance = new RootShell();
+
+    private final AtomicLong nextId = new AtomicLong();
+    private final BlockingQueue<CommandFuture> poolQueue = new LinkedBlockingQueue<CommandFuture>();
+    private Session[] pool;
+
+    public static RootShell getInstance() {
+        return ourInstance;
+    }
+
+    private RootShell() {
+    }
+
+    /**
+     * Starts the pooled sessions so the su prompt latency is paid before the first command
+     */
+    public synchronized void warmUp() {
+        if (pool != null) {
+            return;
+        }
+        pool = new Session[POOL_SIZE];
+        for (int i = 0; i < POOL_SIZE; i++) {
+            pool[i] = new Session("RootShell-" + i, poolQueue);
+            pool[i].start();
+        }
+    }
+
+    /**
+     * Runs a command on the next idle pooled session
+     * @return future completing with the command's output and exit code once it finished
+     */
+    public CommandFuture exec(String command) {
+        return exec(command, null);
+    }
+
+    /**
+     * Runs a command on the next idle pooled session, streaming its stdout to the handler instead of buffering it,
+     * e.g. for binary output
+     */
+    public CommandFuture exec(String command, OutputHandler handler) {
+        warmUp();
+        CommandFuture future = new CommandFuture(nextId.incrementAndGet(), command, handler);
+        poolQueue.offer(future);
+        return future;
+    }
+
+    /**
+     * Runs a command and waits for it, cancelling it if it does not finish in time
+     * @throws IOException if the command failed to run, was cancelled or timed out
+     */
+    public Result run(String command, long timeoutMillis) throws IOException {
+        return exec(command).await(timeoutMillis);
+    }
+
+    /**
+     * @return a new su session used only by the caller, commands run in the order they are submitted. Close it when
+     * done
+     */
+    public Session openSession() {
+        Session session = new Session("RootShell-dedicated", new LinkedBlockingQueue<CommandFuture>());
+        session.start();
+        return session;
+    }
+
+
+    /**
+     * Receives the stdout of a command as it is read
+     */
+    public interface OutputHandler {
+        void onOutput(byte[] buffer, int offset, int length) throws IOException;
+    }
+
+    /**
+     * Exit code and, unless an OutputHandler consumed it, stdout of a finished command
+     */
+    public static class Result {
+        private final int exitCode;
+        private final byte[] output;
+
+        Result(int exitCode, byte[] output) {
+            this.exitCode = exitCode;
+            this.output = output;
+        }
+
+        public int getExitCode() {
+            return exitCode;
+        }
+
+        public boolean isSuccess() {
+            return exitCode == 0;
+        }
+
+        public byte[] getOutputBytes() {
+            return output;
+        }
+
+        public String getOutput() {
+            return new String(output);
+        }
+    }
+
+
+    /**
+     * Pending result of a command. Cancelling a command that already runs kills its su session. A session claims the
+     * command before running it and releases it after, under the same lock cancel() holds, so a cancelled command is
+     * never started and a session is only killed while it still runs the cancelled command
+     */
+    public class CommandFuture implements Future<Result> {
+        private final long id;
+        private final String command;
+        private final OutputHandler handler;
+        private final ByteArrayOutputStream buffer;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private Session runningOn;
+        private volatile boolean cancelled;
+        private volatile Result result;
+        private volatile Throwable failure;
+
+        CommandFuture(long id, String command, OutputHandler handler) {
+            this.id = id;
+            this.command = command;
+            this.handler = handler;
+            this.buffer = handler == null ? new ByteArrayOutputStream() : null;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getCommand() {
+            return command;
+        }
+
+        /**
+         * Waits for the command, cancelling it on timeout
+         * @throws IOException if the command failed to run, was cancelled or timed out
+         */
+        public Result await(long timeoutMillis) throws IOException {
+            try {
+                return get(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                cancel(true);
+                throw new IOException("Timed out after " + timeoutMillis + " ms: " + command);
+            } catch (InterruptedException e) {
+                cancel(true);
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted: " + command);
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            } catch (CancellationException e) {
+                throw new IOException("Cancelled: " + command);
+            }
+        }
+
+        @Override
+        public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+            if (isDone()) {
+                return false;
+            }
+            cancelled = true;
+            if (runningOn != null) {
+                runningOn.kill();
+            }
+            done.countDown();
+            return true;
+        }
+
+        /**
+         * @return false if the command was cancelled and must not run
+         */
+        synchronized boolean claim(Session session) {
+            if (cancelled) {
+                return false;
+            }
+            runningOn = session;
+            return true;
+        }
+
+        synchronized void release() {
+            runningOn = null;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        @Override
+        public Result get() throws InterruptedException, ExecutionException {
+            done.await();
+            return report();
+        }
+
+        @Override
+        public Result get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+                TimeoutException {
+            if (!done.await(timeout, unit)) {
+                throw new TimeoutException(command);
+            }
+            return report();
+        }
+
+        private Result report() throws ExecutionException {
+            if (cancelled) {
+                throw new CancellationException(command);
+            }
+            if (failure != null) {
+                throw new ExecutionException(failure);
+            }
+            return result;
+        }
+
+        void output(byte[] bytes, int offset, int length) throws IOException {
+            if (length <= 0) {
+                return;
+            }
+            if (handler != null) {
+                handler.onOutput(bytes, offset, length);
+            }
+            else {
+                buffer.write(bytes, offset, length);
+            }
+        }
+
+        void complete(int exitCode) {
+            result = new Result(exitCode, buffer == null ? new byte[0] : buffer.toByteArray());
+            done.countDown();
+        }
+
+        void fail(Throwable t) {
+            failure = t;
+            done.countDown();
+        }
+    }
+
+
+    /**
+     * One su process and the thread feeding it commands from a queue. The process is spawned on first use and again
+     * after it died or was killed
+     */
+    public class Session implements Runnable {
+        private final String name;
+        private final BlockingQueue<CommandFuture> queue;
+        private final byte[] window = new byte[BUFFER_SIZE];
+        private Process process;
+        private OutputStream stdin;
+        private InputStream stdout;
+        private volatile boolean closed;
+
+        Session(String name, BlockingQueue<CommandFuture> queue) {
+            this.name = name;
+            this.queue = queue;
+        }
+
+        void start() {
+            Thread worker = new Thread(this, name);
+            worker.setDaemon(true);
+            worker.start();
+        }
+
+        public CommandFuture exec(String command) {
+            return exec(command, null);
+        }
+
+        public CommandFuture exec(String command, OutputHandler handler) {
+            CommandFuture future = new CommandFuture(nextId.incrementAndGet(), command, handler);
+            if (closed) {
+                future.fail(new IOException("Session closed"));
+            }
+            else {
+                queue.offer(future);
+            }
+            return future;
+        }
+
+        /**
+         * Ends the session once the commands submitted so far have run
+         */
+        public void close() {
+            closed = true;
+            queue.offer(new CommandFuture(-1, "exit", null));
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    CommandFuture command = queue.take();
+                    if (command.id < 0) {
+                        break;
+                    }
+                    if (command.claim(this)) {
+                        execute(command);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            kill();
+        }
+
+        private void execute(CommandFuture command) {
+            try {
+                ensureProcess();
+                stdin.write((command.command + "\n__rc=$?; echo; echo " + MARKER + " " + command.id + " $__rc\n")
+                        .getBytes("UTF-8"));
+                stdin.flush();
+                command.complete(readUntilMarker(command));
+            } catch (IOException e) {
+                kill();
+                if (!command.isCancelled()) {
+                    Log.e("RootShell", "Command failed: " + command.command + " " + e.getMessage());
+                    command.fail(e);
+                }
+            } finally {
+                command.release();
+            }
+        }
+
+        /*
+         * Passes stdout on to the command until "\n<marker> <id> " followed by the exit code and a newline. Bytes
+         * that may still be the start of the marker are held back
+         */
+        private int readUntilMarker(CommandFuture command) throws IOException {
+            byte[] marker = ("\n" + MARKER + " " + command.id + " ").getBytes("UTF-8");
+            int held = 0;
+            while (true) {
+                int found = indexOf(window, 0, held, marker);
+                if (found >= 0) {
+                    int end = indexOf(window, found + marker.length, held, new byte[]{'\n'});
+                    if (end >= 0) {
+                        command.output(window, 0, found);
+                        return Integer.parseInt(new String(window, found + marker.length,
+                                end - found - marker.length, "UTF-8").trim());
+                    }
+                }
+                else if (held >= marker.length) {
+                    int safe = held - marker.length + 1;
+                    command.output(window, 0, safe);
+                    System.arraycopy(window, safe, window, 0, held - safe);
+                    held -= safe;
+                }
+                if (held == window.length) {
+                    throw new IOException("Malformed command status");
+                }
+                int n = stdout.read(window, held, window.length - held);
+                if (n < 0) {
+                    throw new EOFException("su exited");
+                }
+                held += n;
+            }
+        }
+
+        private synchronized void ensureProcess() throws IOException {
+            if (process != null) {
+                return;
+            }
+            process = Runtime.getRuntime().exec("su", null, null);
+            stdin = process.getOutputStream();
+            stdout = process.getInputStream();
+            drainErrors(process.getErrorStream());
+        }
+
+        /**
+         * Destroys the su process, a new one is spawned for the next command
+         */
+        synchronized void kill() {
+            if (process == null) {
+                return;
+            }
+            try {
+                stdout.close();
+                stdin.close();
+            } catch (IOException e) {
+                // the process goes away regardless
+            }
+            process.destroy();
+            process = null;
+        }
+
+        private void drainErrors(final InputStream stderr) {
+            Thread drain = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        BufferedReader reader = new BufferedReader(new InputStreamReader(stderr));
+                        String line;
+                        while ((line = reader.readLine()) != null) {
+                            Log.v("RootShell", name + ": " + line);
+                        }
+                    } catch (IOException e) {
+                        // session was killed
+                    }
+                }
+            }, name + "-stderr");
+            drain.setDaemon(true);
+            drain.start();
+        }
+    }
+
+
+    static int indexOf(byte[] bytes, int from, int to, byte[] pattern) {
+        outer:
+        for (int i = from; i <= to - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (bytes[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
@@ -4,40 +4,41 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.util.Log;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.OutputStream;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutorService;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.concurrent.Future;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Created by Richard Bonett on 4/23/16.
  *
  * The ScreenshotManager provides functionality for taking a screenshot. To take a screenshot,
- * simply call takeScreenshot() and receive a Screenshot Object (below)
+ * simply call takeScreenshot() and receive a Screenshot Object (below). The Screenshot carries the future of its
+ * capture, so consumers can wait until the image is completely written, and the time the screen was captured at
  */
 public class ScreenshotManager {
-    private ExecutorService service;
-    private Future currentTask;
+    static final long CAPTURE_TIMEOUT = 10000;
+    private static final long MAX_FRAME_AGE_MILLIS = 1000;
+    private static final long DEFAULT_DEADLINE_MILLIS = 500;
+
     private String directory;
-    private String filename;
-    private int screenshot_index;
-    private Process process;
-    private BlockingQueue<Runnable> taskQueue;
+    private CaptureScheduler scheduler;
+    private RawFrame.Writer rawWriter;
+    private FrameRing frameRing;
+    private volatile ProjectionCapture projection;
 
 
     public ScreenshotManager(String directory) {
-        screenshot_index = 0;
         this.directory = directory;
-        filename = "screenshot" + screenshot_index + ".png";
         File dir = new File(directory);
         if (dir.exists()) {
             for (File f : dir.listFiles()) {
                 f.delete();
             }
+            ScreenshotStore.getInstance().reset();
         }
         else {
             dir.mkdirs();
@@ -45,89 +46,360 @@ public class ScreenshotManager {
     }
 
 
+    /**
+     * Picks the capture backend: the in-process ProjectionCapture if the user consented to a projection, otherwise
+     * screencap through the root shell, which also remains the fallback should the projection stop
+     */
     public void initialize() {
-        taskQueue = new ArrayBlockingQueue<Runnable>(1);
-        service = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS, taskQueue);
-        try {
-            process = Runtime.getRuntime().exec("su", null, null);
-        } catch (Exception e) {Log.e("ScreenshotTask", "Could not start process! Check su permissions.");}
+        rawWriter = new RawFrame.Writer();
+        projection = Globals.projectionScreenshots ? ProjectionCapture.start() : null;
+        Log.i("ScreenshotManager", "Capturing screenshots with " + (projection != null ? "MediaProjection" : "screencap"));
+        scheduler = new CaptureScheduler("Screenshot", directory + "screenshot", ".png", new ScreenshotCapturer(),
+                CaptureMetrics.SCREENSHOT_TURNAROUND_MS, CaptureMetrics.SCREENSHOT_STALENESS_MS,
+                CaptureMetrics.SCREENSHOT_COALESCED);
+        scheduler.start();
+        RootShell.getInstance().warmUp();
+        if (Globals.preTouchFrames && Globals.rawScreenshots) {
+            frameRing = new FrameRing(Globals.preTouchFrameCount, Globals.preTouchFrameBudget, Globals.preTouchFrameInterval);
+            frameRing.start();
+        }
+    }
+
+
+    /**
+     * @return moving average of the screenshot capture time in milliseconds
+     */
+    public long getAverageTurnaround() {
+        return scheduler == null ? 0 : scheduler.getAverageMillis();
+    }
+
+    public long getBaselineTurnaround() {
+        return scheduler == null ? 0 : scheduler.getBaselineMillis();
     }
 
 
     public void destroy() {
-        try {
-            service.shutdown();
-            process.destroy();
-        } catch (Exception e) {Log.e("ScreenshotManager", "Could not destroy process: " + e.getMessage());}
+        scheduler.stop();
+        if (projection != null) {
+            projection.stop();
+            projection = null;
+        }
+        if (frameRing != null) {
+            frameRing.stop();
+        }
     }
 
     /**
-     * If already busy processing a Screenshot, returns a reference to the in process Screenshot.
-     * Otherwise, starts to process a new Screenshot, returning a reference to this new one.
-     * @return Most recently processed Screenshot object
+     * Takes a screenshot of the screen as it is now, see takeScreenshot(long)
+     * @return Screenshot of the current screen
      */
     public Screenshot takeScreenshot() {
-        if (taskQueue.isEmpty()) {
-            screenshot_index += 1;
-            filename = "screenshot" + screenshot_index + ".png";
-            currentTask = service.submit(new ScreenshotTask(directory + filename));
+        long now = System.currentTimeMillis();
+        return takeScreenshot(now, now + DEFAULT_DEADLINE_MILLIS);
+    }
+
+    /**
+     * Returns a screenshot of the screen as it was at the given time, one that should be taken within the default
+     * deadline, see takeScreenshot(long, long)
+     * @param timeMillis wall clock time, e.g. of the input event starting a gesture
+     */
+    public Screenshot takeScreenshot(long timeMillis) {
+        return takeScreenshot(timeMillis, Math.max(timeMillis, System.currentTimeMillis()) + DEFAULT_DEADLINE_MILLIS);
+    }
+
+    /**
+     * Returns a screenshot of the screen as it was at the given time. When the pre-touch FrameRing runs and holds a
+     * recent enough frame grabbed before that time, the frame is used without any capture. Otherwise the request is
+     * bound to a capture by the CaptureScheduler: it shares a capture that started after the time or is about to,
+     * and takes an earlier one only if no new capture could start before the deadline
+     * @param timeMillis wall clock time, e.g. of the input event starting a gesture
+     * @param deadlineMillis wall clock time the capture should start by
+     */
+    public Screenshot takeScreenshot(long timeMillis, long deadlineMillis) {
+        FrameRing.Frame frame = frameRing != null ? frameRing.newestBefore(timeMillis) : null;
+        if (frame != null && timeMillis - frame.getTimeMillis() <= MAX_FRAME_AGE_MILLIS) {
+            String ringFile = scheduler.nextFile();
+            try {
+                frame.writeTo(new File(Screenshot.rawFilename(ringFile)));
+                CaptureMetrics.getInstance().histogram(CaptureMetrics.SCREENSHOT_RING_AGE_MS).record(timeMillis - frame.getTimeMillis());
+                ScreenshotStore.getInstance().add(ringFile);
+                return new Screenshot(ringFile, frame.getTimeMillis());
+            } catch (IOException e) {
+                Log.e("ScreenshotManager", "Could not store ring frame: " + e.getMessage());
+            }
         }
-        return new Screenshot(directory + filename);
+        CaptureScheduler.Capture capture = scheduler.request(timeMillis, deadlineMillis);
+        return new Screenshot(capture.getFile(), capture);
+    }
 
+    /**
+     * @return a new, unique file name for a screenshot
+     */
+    String nextFile() {
+        return scheduler.nextFile();
     }
 
     /**
-     * Runnable task to actually start the screenshot process, stores it in png file
+     * @return the in-process capture backend, null if screenshots are taken with screencap
      */
-    class ScreenshotTask implements Runnable {
+    ProjectionCapture getProjection() {
+        return projection;
+    }
 
-        private String file;
-        private int MIN_INTERVAL = 300;
+    /**
+     * Takes the screenshot with the ProjectionCapture while it is active, otherwise runs screencap and stores the
+     * screenshot. In raw mode the frame is streamed from screencap's stdout into a RawFrame file, otherwise
+     * screencap writes a png. Either way the data goes to a temporary file which is renamed
+     * once it is complete, so the screenshot never exists half written, and the capture finishes when the root shell
+     * reports the command's exit status
+     */
+    class ScreenshotCapturer implements CaptureScheduler.Capturer {
 
-        public ScreenshotTask(String filename) {
-            this.file = filename;
+        @Override
+        public boolean capture(String file) throws IOException {
+            ProjectionCapture inProcess = projection;
+            boolean done = inProcess != null && inProcess.isActive() && inProcess.capture(file);
+            if (!done) {
+                done = Globals.rawScreenshots && RawFrame.isSupported() && captureRaw(file);
+            }
+            if (!done) {
+                String tmp = file + ".tmp";
+                done = RootShell.getInstance()
+                        .run("/system/bin/screencap -p " + tmp + " && mv " + tmp + " " + file, CAPTURE_TIMEOUT)
+                        .isSuccess();
+            }
+            if (done) {
+                ScreenshotStore.getInstance().add(file);
+            }
+            return done;
         }
 
-        @Override
-        public void run() {
-            OutputStream os = process.getOutputStream();
+        private boolean captureRaw(String file) {
+            File raw = new File(Screenshot.rawFilename(file));
+            File tmp = new File(raw.getPath() + ".tmp");
+            rawWriter.begin(tmp);
             try {
-                os.write(("/system/bin/screencap -p " + file + " & \n").getBytes("ASCII"));
-                os.flush();
-                do {
-                    Thread.sleep(MIN_INTERVAL);
+                RootShell.Result result = RootShell.getInstance().exec("/system/bin/screencap", rawWriter).await(CAPTURE_TIMEOUT);
+                if (result.isSuccess() && rawWriter.finish() && tmp.renameTo(raw)) {
+                    return true;
                 }
-                while (!(new File(file).exists()));
-            } catch (Exception e) {
-                Log.e("ScreenshotTask", "Error taking screenshot.");
+            } catch (IOException e) {
+                Log.e("ScreenshotManager", "Error taking raw screenshot: " + e.getMessage());
+            }
+            if (rawWriter.isRejected()) {
+                RawFrame.markUnsupported("unreadable frame from screencap");
             }
+            rawWriter.abort();
+            return false;
         }
 
     }
 }
 
 /**
- * A Screenshot object consists of a filename and functionality to access the image
+ * A Screenshot object consists of a filename and functionality to access the image. Screenshots still being captured
+ * hold the future of their capture, getBitmap() waits for it. The image is either the png at filename or, for raw
+ * captures, a RawFrame next to it that is only png encoded on request, until the ScreenshotTranscoder replaces either
+ * by a WebP. All are read through the ScreenshotStore, as a screenshot equal to an earlier one is stored by that
+ * one's files
  */
 class Screenshot {
     private String filename;
+    private transient Future<Boolean> completion;
+    private transient long captureTimeMillis;
 
     public Screenshot(String saveFile) {
+        this(saveFile, 0);
+    }
+
+    /**
+     * @param captureTimeMillis wall clock time the complete file was captured at, 0 if unknown
+     */
+    public Screenshot(String saveFile, long captureTimeMillis) {
+        filename = saveFile;
+        this.captureTimeMillis = captureTimeMillis;
+    }
+
+    /**
+     * @param capture scheduled capture of the file, completing with true once it is written
+     */
+    public Screenshot(String saveFile, CaptureScheduler.Capture capture) {
         filename = saveFile;
+        completion = capture;
+    }
+
+    /**
+     * @return the capture of this screenshot, null if it was complete when the object was created
+     */
+    public Future<Boolean> getCompletion() {
+        return completion;
+    }
+
+    /**
+     * @return wall clock time the screen was captured at, Long.MAX_VALUE while the capture has not started, 0 if
+     * unknown
+     */
+    public long getCaptureTimeMillis() {
+        if (completion instanceof CaptureScheduler.Capture) {
+            return ((CaptureScheduler.Capture) completion).getStartMillis();
+        }
+        return captureTimeMillis;
+    }
+
+    /**
+     * Waits until the capture of the file finished
+     * @return true if the file is completely written
+     */
+    public boolean awaitCompletion(long timeoutMillis) {
+        if (completion == null) {
+            return true;
+        }
+        try {
+            return completion.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (Exception e) {
+            Log.e("ScreenshotManager", "Screenshot " + filename + " not captured: " + e.getMessage());
+            return false;
+        }
     }
 
 
+    /**
+     * @return the file a raw capture of the png file is stored in
+     */
+    static String rawFilename(String png) {
+        return baseName(png) + ".raw";
+    }
+
+    /**
+     * @return the file the ScreenshotTranscoder stores the png file as
+     */
+    static String webpFilename(String png) {
+        return baseName(png) + ".webp";
+    }
+
+    /**
+     * @return the file the ScreenshotTranscoder stores the review derivative of the png file in
+     */
+    static String reviewFilename(String png) {
+        return baseName(png) + ".review.webp";
+    }
+
+    private static String baseName(String png) {
+        return png.endsWith(".png") ? png.substring(0, png.length() - 4) : png;
+    }
+
+    /**
+     * Waits until the screenshot is captured and stored
+     * @return the blob holding the image, null if there is none
+     */
+    public ScreenshotStore.Blob getBlob() {
+        if (!awaitCompletion(ScreenshotManager.CAPTURE_TIMEOUT)) {
+            return null;
+        }
+        return ScreenshotStore.getInstance().getBlob(filename, ScreenshotManager.CAPTURE_TIMEOUT);
+    }
+
+    /**
+     * @return the full resolution image, null if there is none
+     */
     public Bitmap getBitmap() {
-        File screenshotFile = new File(filename);
-        Log.d("ScreenshotManager", "File: " + filename + "|" + screenshotFile.exists());
-        if (!screenshotFile.exists()) {
+        ScreenshotStore.Blob blob = getBlob();
+        if (blob == null) {
             return null;
         }
+        ScreenshotTranscoder.getInstance().await(blob.getFilename(), ScreenshotManager.CAPTURE_TIMEOUT);
+        return decode(blob.getFilename());
+    }
+
+    /**
+     * Does not wait for the ScreenshotTranscoder, whichever file holds the image right now is decoded. May still wait
+     * for the capture, so it must not be called on the UI thread
+     * @return the review derivative of the image if the ScreenshotTranscoder made one, else the full image, null if
+     * there is none
+     */
+    public Bitmap getReviewBitmap() {
+        ScreenshotStore.Blob blob = getBlob();
+        String source = blob != null ? blob.getFilename() : ScreenshotStore.getInstance().resolve(filename);
+        File review = new File(reviewFilename(source));
+        return review.exists() ? decodeMutable(review) : decode(source);
+    }
+
+    /*
+     * Decodes whichever file holds the image: the WebP once transcoded, the png, or the raw capture
+     */
+    private static Bitmap decode(String filename) {
+        File webp = new File(webpFilename(filename));
+        File png = new File(filename);
+        Log.d("ScreenshotManager", "File: " + filename + "|" + webp.exists() + "|" + png.exists());
+        if (webp.exists()) {
+            return decodeMutable(webp);
+        }
+        if (png.exists()) {
+            return decodeMutable(png);
+        }
+        File raw = new File(rawFilename(filename));
+        try {
+            return raw.exists() ? RawFrame.decode(raw) : null;
+        } catch (IOException e) {
+            Log.e("ScreenshotManager", "Could not decode " + raw + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static Bitmap decodeMutable(File file) {
         BitmapFactory.Options options = new BitmapFactory.Options();
         options.inPreferredConfig = Bitmap.Config.ARGB_8888;
-        return BitmapFactory.decodeFile(screenshotFile.getAbsolutePath(), options).copy(Bitmap.Config.ARGB_8888, true);
+        Bitmap bitmap = BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+        return bitmap == null ? null : bitmap.copy(Bitmap.Config.ARGB_8888, true);
+    }
+
+
+    /**
+     * @return the image as stored for upload: the WebP once transcoded, else the png, encoding the raw capture first
+     * if there is no png yet
+     */
+    public byte[] getImageBytes() throws IOException {
+        ScreenshotStore.Blob blob = getBlob();
+        if (blob == null) {
+            throw new IOException("Screenshot " + filename + " was not captured");
+        }
+        String filename = blob.getFilename();
+        ScreenshotTranscoder.getInstance().await(filename, ScreenshotManager.CAPTURE_TIMEOUT);
+        File image = new File(webpFilename(filename));
+        if (!image.exists()) {
+            image = new File(filename);
+            if (!image.exists()) {
+                try {
+                    RawFrame.encodePng(new File(rawFilename(filename)), image).get();
+                } catch (Exception e) {
+                    throw new IOException("Could not encode " + filename + ": " + e.getMessage());
+                }
+            }
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) image.length());
+        InputStream in = new FileInputStream(image);
+        try {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                bytes.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return bytes.toByteArray();
     }
 
+    /**
+     * @return "webp" or "png", the format of image bytes returned by getImageBytes()
+     */
+    static String imageFormat(byte[] image) {
+        return image.length >= 4 && image[0] == 'R' && image[1] == 'I' && image[2] == 'F' && image[3] == 'F'
+                ? "webp" : "png";
+    }
 
     public String getFilename() {
         return filename;
@@ -0,0 +1,288 @@
+package semeru.odbr;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Content addressed store of the screenshots of a session. Tapping around a static screen produces many identical
+ * screenshots, so every captured screenshot is hashed on a low priority thread: a screenshot whose content is already
+ * stored is deleted and becomes an alias of the stored blob. With Globals.screenshotMergeDistance above 0, screenshots
+ * whose perceptual hash (dHash over a 9x8 luminance grid) is at most that many bits from a stored blob are merged into
+ * it as well.
+ *
+ * Screenshot resolves its file through the store, so a blob is decoded or png encoded only once, and the report
+ * serializer sends the image of a blob only with its first event. Aliases are journaled, so a restored session
+ * finds the blobs of deleted duplicates.
+ */
+public class ScreenshotStore {
+    private static final int HASH_COLS = 9;
+    private static final int HASH_ROWS = 8;
+
+    private static ScreenshotStore ourInstance = new ScreenshotStore();
+
+    private final ExecutorService hasher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "ScreenshotStore");
+            t.setPriority(Thread.MIN_PRIORITY);
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    private final HashMap<String, Blob> blobs = new HashMap<String, Blob>();
+    private final ArrayList<Blob> perceptual = new ArrayList<Blob>();
+    private final ConcurrentHashMap<String, Future<Blob>> files = new ConcurrentHashMap<String, Future<Blob>>();
+    private final ConcurrentHashMap<String, String> aliases = new ConcurrentHashMap<String, String>();
+
+    public static ScreenshotStore getInstance() {
+        return ourInstance;
+    }
+
+    private ScreenshotStore() {
+    }
+
+    /**
+     * Forgets all blobs, called when the report is cleared
+     */
+    public synchronized void reset() {
+        blobs.clear();
+        perceptual.clear();
+        files.clear();
+        aliases.clear();
+        ScreenshotTranscoder.getInstance().reset();
+    }
+
+    /**
+     * Hashes a completely written screenshot in the background and stores it, or turns it into an alias of an
+     * equal blob
+     * @param filename png file name of the screenshot, its content may be stored as png or RawFrame
+     * @return future of the blob holding the screenshot
+     */
+    public Future<Blob> add(final String filename) {
+        Future<Blob> blob = files.get(filename);
+        if (blob == null) {
+            blob = hasher.submit(new Callable<Blob>() {
+                @Override
+                public Blob call() throws IOException {
+                    return intern(filename);
+                }
+            });
+            Future<Blob> added = files.putIfAbsent(filename, blob);
+            blob = added != null ? added : blob;
+        }
+        return blob;
+    }
+
+    /**
+     * @return the blob holding the screenshot, adding the screenshot first if it was not added yet, or null if it
+     * cannot be read in time
+     */
+    public Blob getBlob(String filename, long timeoutMillis) {
+        try {
+            return add(resolve(filename)).get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            Log.e("ScreenshotStore", "Could not store " + filename + ": " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * @return the file name of the blob the screenshot is an alias of, or the screenshot's own file name
+     */
+    public String resolve(String filename) {
+        String blob = aliases.get(filename);
+        return blob != null ? blob : filename;
+    }
+
+    /**
+     * Records that the screenshot's content is stored by the blob, e.g. when restoring a journal
+     */
+    public void alias(String filename, String blobFilename) {
+        aliases.put(filename, blobFilename);
+    }
+
+    private Blob intern(String filename) throws IOException {
+        File stored = storedFile(filename);
+        if (stored == null) {
+            throw new IOException("No screenshot at " + filename);
+        }
+        String digest = digest(stored);
+        Blob blob;
+        synchronized (this) {
+            blob = blobs.get(digest);
+        }
+        if (blob == null && Globals.screenshotMergeDistance > 0) {
+            long hash = perceptualHash(stored);
+            synchronized (this) {
+                blob = nearest(hash, Globals.screenshotMergeDistance);
+                if (blob == null) {
+                    blob = new Blob(digest, filename, hash);
+                    perceptual.add(blob);
+                }
+                blobs.put(digest, blob);
+            }
+        }
+        else if (blob == null) {
+            synchronized (this) {
+                blob = new Blob(digest, filename, 0);
+                blobs.put(digest, blob);
+            }
+        }
+        if (!blob.filename.equals(filename)) {
+            aliases.put(filename, blob.filename);
+            BugReport.getInstance().recordScreenshotAlias(filename, blob.filename);
+            stored.delete();
+            blob.duplicates++;
+        }
+        else {
+            ScreenshotTranscoder.getInstance().transcode(filename);
+        }
+        return blob;
+    }
+
+    private Blob nearest(long hash, int maxDistance) {
+        Blob best = null;
+        int bestDistance = maxDistance + 1;
+        for (Blob blob : perceptual) {
+            int distance = Long.bitCount(blob.perceptualHash ^ hash);
+            if (distance < bestDistance) {
+                best = blob;
+                bestDistance = distance;
+            }
+        }
+        return best;
+    }
+
+    /*
+     * The png if it exists, else the raw capture next to it, else its WebP transcoding
+     */
+    private static File storedFile(String filename) {
+        File png = new File(filename);
+        if (png.exists()) {
+            return png;
+        }
+        File raw = new File(Screenshot.rawFilename(filename));
+        if (raw.exists()) {
+            return raw;
+        }
+        File webp = new File(Screenshot.webpFilename(filename));
+        return webp.exists() ? webp : null;
+    }
+
+    private static String digest(File file) throws IOException {
+        MessageDigest sha;
+        try {
+            sha = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.getMessage());
+        }
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                sha.update(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : sha.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /*
+     * dHash: one bit per horizontally adjacent pair of cells in a 9x8 luminance grid, set if the left one is brighter
+     */
+    private static long perceptualHash(File stored) throws IOException {
+        int[] grid;
+        if (stored.getName().endsWith(".raw")) {
+            grid = RawFrame.luminanceGrid(stored, HASH_COLS, HASH_ROWS);
+        }
+        else {
+            grid = bitmapLuminanceGrid(stored);
+        }
+        long hash = 0;
+        for (int row = 0; row < HASH_ROWS; row++) {
+            for (int col = 0; col < HASH_COLS - 1; col++) {
+                hash <<= 1;
+                if (grid[row * HASH_COLS + col] > grid[row * HASH_COLS + col + 1]) {
+                    hash |= 1;
+                }
+            }
+        }
+        return hash;
+    }
+
+    private static int[] bitmapLuminanceGrid(File image) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = 8;
+        Bitmap sampled = BitmapFactory.decodeFile(image.getAbsolutePath(), options);
+        if (sampled == null) {
+            throw new IOException("Could not decode " + image);
+        }
+        Bitmap small = Bitmap.createScaledBitmap(sampled, HASH_COLS, HASH_ROWS, true);
+        int[] grid = new int[HASH_COLS * HASH_ROWS];
+        small.getPixels(grid, 0, HASH_COLS, 0, 0, HASH_COLS, HASH_ROWS);
+        for (int i = 0; i < grid.length; i++) {
+            int c = grid[i];
+            grid[i] = (((c >> 16) & 0xff) * 77 + ((c >> 8) & 0xff) * 150 + (c & 0xff) * 29) >> 8;
+        }
+        sampled.recycle();
+        small.recycle();
+        return grid;
+    }
+
+
+    /**
+     * One stored image, identified by the SHA-1 of its stored file. filename is the screenshot that first had it
+     */
+    public static class Blob {
+        private final String digest;
+        private final String filename;
+        private final long perceptualHash;
+        private volatile int duplicates;
+
+        Blob(String digest, String filename, long perceptualHash) {
+            this.digest = digest;
+            this.filename = filename;
+            this.perceptualHash = perceptualHash;
+        }
+
+        public String getDigest() {
+            return digest;
+        }
+
+        public String getFilename() {
+            return filename;
+        }
+
+        /**
+         * @return number of later screenshots stored as aliases of this blob
+         */
+        public int getDuplicates() {
+            return duplicates;
+        }
+    }
+}
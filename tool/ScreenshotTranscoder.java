@@ -0,0 +1,232 @@
+package semeru.odbr;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Transcodes stored screenshots to WebP on a bounded pool of low priority threads, one less than the cores so capture
+ * always has one. Each new blob of the ScreenshotStore is decoded from its raw or png file and written as WebP
+ * (lossless where the platform supports it at Globals.screenshotWebpQuality 100), optionally with a smaller lossy
+ * review derivative, and its original file is deleted.
+ *
+ * The WebP files of a session are kept within Globals.screenshotBudgetBytes: once they exceed it, the oldest
+ * screenshots are downgraded first, re-encoded lossy at half resolution, until the session fits or everything has
+ * been downgraded. The footprint on the sdcard and the upload size of a session are thereby bounded, without any work
+ * on the capture thread.
+ */
+public class ScreenshotTranscoder {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int REVIEW_QUALITY = 80;
+
+    private static ScreenshotTranscoder ourInstance = new ScreenshotTranscoder();
+
+    private final ThreadPoolExecutor pool;
+    private final ConcurrentHashMap<String, Future<File>> pending = new ConcurrentHashMap<String, Future<File>>();
+    private final ArrayList<Entry> stored = new ArrayList<Entry>();
+    private long storedBytes;
+    private int oldestFull;
+    private final Object budgetLock = new Object();
+
+    public static ScreenshotTranscoder getInstance() {
+        return ourInstance;
+    }
+
+    private ScreenshotTranscoder() {
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "ScreenshotTranscoder-" + count.incrementAndGet());
+                        t.setPriority(Thread.MIN_PRIORITY);
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Forgets the screenshots of the previous session, called with ScreenshotStore.reset()
+     */
+    public void reset() {
+        pending.clear();
+        synchronized (budgetLock) {
+            stored.clear();
+            storedBytes = 0;
+            oldestFull = 0;
+        }
+    }
+
+    /**
+     * Queues the transcoding of a screenshot that was completely written
+     * @param filename png file name of the screenshot
+     */
+    public void transcode(final String filename) {
+        if (!Globals.transcodeScreenshots || pending.containsKey(filename)) {
+            return;
+        }
+        pending.put(filename, pool.submit(new Callable<File>() {
+            @Override
+            public File call() throws IOException {
+                try {
+                    return transcodeNow(filename);
+                } catch (IOException e) {
+                    Log.e("ScreenshotTranscoder", "Could not transcode " + filename + ": " + e.getMessage());
+                    throw e;
+                }
+            }
+        }));
+    }
+
+    /**
+     * Waits for a queued transcoding of the screenshot
+     * @return true unless the transcoding is still running after the timeout
+     */
+    public boolean await(String filename, long timeoutMillis) {
+        Future<File> webp = pending.get(filename);
+        if (webp == null) {
+            return true;
+        }
+        try {
+            webp.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (Exception e) {
+            return webp.isDone();
+        }
+    }
+
+    private File transcodeNow(String filename) throws IOException {
+        File webp = new File(Screenshot.webpFilename(filename));
+        File png = new File(filename);
+        File raw = new File(Screenshot.rawFilename(filename));
+        File source = png.exists() ? png : raw;
+        if (webp.exists() || !source.exists()) {
+            return webp;
+        }
+        Bitmap bitmap = source == raw ? RawFrame.decode(raw) : BitmapFactory.decodeFile(png.getAbsolutePath());
+        if (bitmap == null) {
+            throw new IOException("Could not decode " + source);
+        }
+        try {
+            if (Globals.screenshotReviewDerivative && bitmap.getWidth() > Globals.screenshotReviewWidth) {
+                int height = bitmap.getHeight() * Globals.screenshotReviewWidth / bitmap.getWidth();
+                Bitmap review = Bitmap.createScaledBitmap(bitmap, Globals.screenshotReviewWidth, height, true);
+                write(review, lossy(), REVIEW_QUALITY, new File(Screenshot.reviewFilename(filename)));
+                review.recycle();
+            }
+            write(bitmap, full(), Globals.screenshotWebpQuality, webp);
+        } finally {
+            bitmap.recycle();
+        }
+        source.delete();
+        account(new Entry(filename, webp.length()));
+        return webp;
+    }
+
+    /*
+     * Lossless WebP has its own format since R, before a quality of 100 gives lossless on Q and a near lossless lossy
+     * image earlier
+     */
+    @SuppressWarnings("deprecation")
+    private static Bitmap.CompressFormat full() {
+        if (Build.VERSION.SDK_INT >= 30 && Globals.screenshotWebpQuality >= 100) {
+            return Bitmap.CompressFormat.WEBP_LOSSLESS;
+        }
+        return Build.VERSION.SDK_INT >= 30 ? Bitmap.CompressFormat.WEBP_LOSSY : Bitmap.CompressFormat.WEBP;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static Bitmap.CompressFormat lossy() {
+        return Build.VERSION.SDK_INT >= 30 ? Bitmap.CompressFormat.WEBP_LOSSY : Bitmap.CompressFormat.WEBP;
+    }
+
+    private static void write(Bitmap bitmap, Bitmap.CompressFormat format, int quality, File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp), BUFFER_SIZE);
+        boolean written;
+        try {
+            written = bitmap.compress(format, quality, out);
+        } finally {
+            out.close();
+        }
+        if (!written || !tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Could not write " + file);
+        }
+    }
+
+    /*
+     * Adds a transcoded screenshot to the session and downgrades the oldest full quality screenshots while the
+     * session is over budget. Runs on one pool thread at a time
+     */
+    private void account(Entry entry) {
+        synchronized (budgetLock) {
+            stored.add(entry);
+            storedBytes += entry.bytes;
+            while (Globals.screenshotBudgetBytes > 0 && storedBytes > Globals.screenshotBudgetBytes
+                    && oldestFull < stored.size() - 1) {
+                Entry oldest = stored.get(oldestFull++);
+                try {
+                    long downgraded = downgrade(oldest.filename);
+                    storedBytes += downgraded - oldest.bytes;
+                    oldest.bytes = downgraded;
+                } catch (IOException e) {
+                    Log.e("ScreenshotTranscoder", "Could not downgrade " + oldest.filename + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private static long downgrade(String filename) throws IOException {
+        File webp = new File(Screenshot.webpFilename(filename));
+        Bitmap bitmap = BitmapFactory.decodeFile(webp.getAbsolutePath());
+        if (bitmap == null) {
+            throw new IOException("Could not decode " + webp);
+        }
+        Bitmap half = Bitmap.createScaledBitmap(bitmap, bitmap.getWidth() / 2, bitmap.getHeight() / 2, true);
+        try {
+            write(half, lossy(), Globals.screenshotDowngradeQuality, webp);
+        } finally {
+            bitmap.recycle();
+            half.recycle();
+        }
+        return webp.length();
+    }
+
+
+    /**
+     * A transcoded screenshot of the session and the bytes its WebP takes
+     */
+    static class Entry {
+        final String filename;
+        long bytes;
+
+        Entry(String filename, long bytes) {
+            this.filename = filename;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -16,7 +16,7 @@ import android.hardware.Sensor;
  */
 public class SensorDataManager implements SensorEventListener {
 
-    HashMap<Sensor, float[]> lastLoggedData = new HashMap<Sensor, float[]>();
+    HashMap<Sensor, SensorState> sensorStates = new HashMap<Sensor, SensorState>();
 
     public SensorDataManager(Context c) {
     }
@@ -26,8 +26,8 @@ public class SensorDataManager implements SensorEventListener {
      */
     public void startRecording() {
         for (Sensor s : Globals.sensors) {
+            sensorStates.put(s, new SensorState(s));
             Globals.sMgr.registerListener(this, s, (SensorManager.SENSOR_DELAY_NORMAL)*10);
-            lastLoggedData.put(s, new float[] {});
         }
     }
 
@@ -45,9 +45,14 @@ public class SensorDataManager implements SensorEventListener {
      */
     @Override
     public void onSensorChanged(SensorEvent event) {
-        if (!Arrays.equals(lastLoggedData.get(event.sensor), event.values)) {
+        SensorState state = sensorStates.get(event.sensor);
+        if (state == null) {
+            return;
+        }
+        state.samples.mark();
+        if (!Arrays.equals(state.lastLoggedData, event.values)) {
             BugReport.getInstance().addSensorData(event.sensor, event);
-            lastLoggedData.put(event.sensor, event.values.clone());
+            state.lastLoggedData = event.values.clone();
         }
     }
 
@@ -56,5 +61,15 @@ public class SensorDataManager implements SensorEventListener {
     public void onAccuracyChanged(Sensor sensor, int accuracy) {/* Nothing to do */}
 
 
+    /**
+     * The last values logged for a sensor and its sample rate metric, looked up once per sample
+     */
+    static class SensorState {
+        final CaptureMetrics.Rate samples;
+        float[] lastLoggedData = new float[] {};
 
+        SensorState(Sensor s) {
+            samples = CaptureMetrics.getInstance().rate(CaptureMetrics.named(CaptureMetrics.SENSOR_SAMPLES, s.getName()));
+        }
+    }
 }
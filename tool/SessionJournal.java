@@ -0,0 +1,676 @@
+package semeru.odbr;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The SessionJournal is an append-only log of the recording session, streamed to disk while the BugReport is being
+ * built so the session survives a crash, an OOM or the tool being killed. It holds the raw input records, sensor
+ * samples, orientation changes, finished events and references to their screenshots and hierarchy dumps.
+ *
+ * Nothing is written on the capture threads. Raw input records are copied by a background writer straight from the
+ * BugReport's InputEventLogs, and the other (infrequent) records are queued and written in the same batches through
+ * a FileChannel. The journal is read back with read(), which streams every record to a Visitor, and restore() uses
+ * that to rebuild a BugReport after a restart.
+ *
+ * Every record is a one byte tag, an int payload length and the payload. A record cut short by the process dying is
+ * ignored when reading.
+ */
+public class SessionJournal implements Runnable {
+    public static final int ARTIFACT_SCREENSHOT = 0;
+    public static final int ARTIFACT_HIERARCHY = 1;
+    public static final int ARTIFACT_RESULT_SCREENSHOT = 2;
+    public static final int SCREENSHOT_START = 0;
+    public static final int SCREENSHOT_END = 1;
+
+    static final byte TAG_META = 1;
+    static final byte TAG_DEVICE = 2;
+    static final byte TAG_INPUT = 3;
+    static final byte TAG_EVENT = 4;
+    static final byte TAG_ARTIFACT = 5;
+    static final byte TAG_SENSOR = 6;
+    static final byte TAG_ORIENTATION = 7;
+    static final byte TAG_START_ORIENTATION = 8;
+    static final byte TAG_SCREENSHOT = 9;
+    static final byte TAG_ALIAS = 10;
+
+    private static final int HEADER_BYTES = 5;
+    private static final int INPUT_BYTES = 16;
+    private static final int MAX_INPUTS_PER_RECORD = 1024;
+    private static final int BUFFER_BYTES = 64 * 1024;
+    private static final long FLUSH_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+    private static final long STOP_TIMEOUT_MILLIS = 5000;
+
+    private final File file;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+    private final ConcurrentLinkedQueue<byte[]> pending = new ConcurrentLinkedQueue<byte[]>();
+    private final HashMap<String, Integer> deviceIds = new HashMap<String, Integer>();
+    private final HashMap<InputEventLog, Integer> journaled = new HashMap<InputEventLog, Integer>();
+    private final HashMap<InputEventLog, Integer> batched = new HashMap<InputEventLog, Integer>();
+    private final ArrayList<byte[]> records = new ArrayList<byte[]>();
+    private final ArrayList<String> batchedDevices = new ArrayList<String>();
+    private volatile boolean running;
+    private Thread writer;
+
+    private SessionJournal(File file, boolean append) throws IOException {
+        this.file = file;
+        File dir = file.getParentFile();
+        if (dir != null && !dir.exists()) {
+            dir.mkdirs();
+        }
+        channel = new FileOutputStream(file, append).getChannel();
+    }
+
+    /**
+     * Starts a new journal, replacing any previous one at file
+     */
+    public static SessionJournal create(File file, String appName, String packageName) throws IOException {
+        SessionJournal journal = new SessionJournal(file, false);
+        RecordBuilder record = new RecordBuilder(TAG_META);
+        record.writeString(appName);
+        record.writeString(packageName);
+        journal.pending.offer(record.toRecord());
+        journal.start();
+        return journal;
+    }
+
+    /**
+     * Continues the journal at file after its contents were restored into report
+     */
+    public static SessionJournal resume(File file, BugReport report) throws IOException {
+        SessionJournal journal = new SessionJournal(file, true);
+        for (InputEventLog log : report.getInputLogs()) {
+            journal.journaled.put(log, log.size());
+        }
+        journal.start();
+        return journal;
+    }
+
+    public static boolean exists() {
+        return new File(Globals.sessionJournalFile).exists();
+    }
+
+    private void start() {
+        running = true;
+        writer = new Thread(this, "SessionJournal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Writes everything that is still pending and closes the file. The file is closed by the writer once its last
+     * batch is written, if that takes longer than STOP_TIMEOUT_MILLIS the writer is left to finish on its own
+     */
+    public void close() {
+        running = false;
+        if (writer == null) {
+            return;
+        }
+        LockSupport.unpark(writer);
+        try {
+            writer.join(STOP_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writer.isAlive()) {
+            Log.w("SessionJournal", "Journal writer still busy, it closes the journal when done");
+        }
+        writer = null;
+    }
+
+    /**
+     * Closes and deletes the journal, called once the report has been submitted or thrown away
+     */
+    public void discard() {
+        close();
+        file.delete();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            LockSupport.parkNanos(this, FLUSH_INTERVAL_NANOS);
+            tryWriteBatch();
+        }
+        tryWriteBatch();
+        try {
+            channel.force(false);
+            channel.close();
+        } catch (IOException e) {
+            Log.e("SessionJournal", "Could not close journal: " + e.getMessage());
+        }
+    }
+
+    private void tryWriteBatch() {
+        try {
+            writeBatch();
+        } catch (IOException e) {
+            Log.e("SessionJournal", "Could not write journal: " + e.getMessage());
+        } catch (RuntimeException e) {
+            Log.e("SessionJournal", "Could not write journal", e);
+        }
+    }
+
+    /*
+     * Writes one batch. The queued records are taken before the input logs are copied, so the input records an
+     * event refers to always come before the event in the file. A batch that fails is cut off the file again and
+     * its records are kept, to be written with the next batch
+     */
+    private void writeBatch() throws IOException {
+        byte[] record;
+        while ((record = pending.poll()) != null) {
+            records.add(record);
+        }
+        long committed = channel.size();
+        boolean written = false;
+        try {
+            for (InputEventLog log : BugReport.getInstance().getInputLogs()) {
+                writeInputs(log);
+            }
+            for (byte[] r : records) {
+                if (buffer.remaining() < r.length) {
+                    flush();
+                }
+                if (r.length > buffer.capacity()) {
+                    writeFully(ByteBuffer.wrap(r));
+                }
+                else {
+                    buffer.put(r);
+                }
+            }
+            flush();
+            written = true;
+        } finally {
+            buffer.clear();
+            if (written) {
+                journaled.putAll(batched);
+                records.clear();
+            }
+            else {
+                for (String device : batchedDevices) {
+                    deviceIds.remove(device);
+                }
+            }
+            batched.clear();
+            batchedDevices.clear();
+            if (!written) {
+                channel.truncate(committed);
+            }
+        }
+    }
+
+    private void writeInputs(InputEventLog log) throws IOException {
+        Integer done = journaled.get(log);
+        int from = done == null ? 0 : done;
+        int to = log.size();
+        if (from >= to) {
+            return;
+        }
+        int id = deviceId(log.getDevice());
+        while (from < to) {
+            int count = Math.min(to - from, MAX_INPUTS_PER_RECORD);
+            int length = 12 + count * INPUT_BYTES;
+            if (buffer.remaining() < HEADER_BYTES + length) {
+                flush();
+            }
+            buffer.put(TAG_INPUT);
+            buffer.putInt(length);
+            buffer.putInt(id);
+            buffer.putInt(from);
+            buffer.putInt(count);
+            for (int i = from; i < from + count; i++) {
+                buffer.putLong(log.getTimeMicros(i));
+                buffer.putShort(log.getType(i));
+                buffer.putShort(log.getCode(i));
+                buffer.putInt(log.getValue(i));
+            }
+            from += count;
+        }
+        batched.put(log, to);
+    }
+
+    private int deviceId(String device) throws IOException {
+        Integer id = deviceIds.get(device);
+        if (id == null) {
+            id = deviceIds.size();
+            deviceIds.put(device, id);
+            batchedDevices.add(device);
+            RecordBuilder record = new RecordBuilder(TAG_DEVICE);
+            record.writeInt(id);
+            record.writeString(device);
+            byte[] bytes = record.toRecord();
+            if (buffer.remaining() < bytes.length) {
+                flush();
+            }
+            buffer.put(bytes);
+        }
+        return id;
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        writeFully(buffer);
+        buffer.clear();
+    }
+
+    private void writeFully(ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+
+    private void enqueue(RecordBuilder record) {
+        try {
+            pending.offer(record.toRecord());
+        } catch (IOException e) {
+            Log.e("SessionJournal", "Could not build journal record: " + e.getMessage());
+        }
+    }
+
+    /* Producers, safe to call from any thread */
+
+    /**
+     * Journals a finished user event, its input records are copied from the InputEventLog by the writer
+     */
+    public void event(ReportEvent e) {
+        RecordBuilder record = new RecordBuilder(TAG_EVENT);
+        try {
+            record.writeLong(e.getSequence());
+            record.writeString(e.getDevice());
+            record.writeInt(e.getFirstInput());
+            record.writeInt(e.getFirstInput() + e.numInputEvents());
+            record.writeInt(e.getOrientation());
+        } catch (IOException ex) {
+            return;
+        }
+        enqueue(record);
+    }
+
+    /**
+     * Journals a screenshot or hierarchy dump attached to an event
+     * @param kind ARTIFACT_SCREENSHOT, ARTIFACT_HIERARCHY or ARTIFACT_RESULT_SCREENSHOT
+     */
+    public void artifact(ReportEvent e, int kind, String path) {
+        RecordBuilder record = new RecordBuilder(TAG_ARTIFACT);
+        try {
+            record.writeLong(e.getSequence());
+            record.writeByte(kind);
+            record.writeString(path);
+        } catch (IOException ex) {
+            return;
+        }
+        enqueue(record);
+    }
+
+    public void sensor(String name, int sensorType, long timestamp, float[] values) {
+        RecordBuilder record = new RecordBuilder(TAG_SENSOR);
+        try {
+            record.writeString(name);
+            record.writeInt(sensorType);
+            record.writeLong(timestamp);
+            record.writeInt(values.length);
+            for (float v : values) {
+                record.writeFloat(v);
+            }
+        } catch (IOException ex) {
+            return;
+        }
+        enqueue(record);
+    }
+
+    public void orientation(long time, int orientation) {
+        RecordBuilder record = new RecordBuilder(TAG_ORIENTATION);
+        try {
+            record.writeLong(time);
+            record.writeInt(orientation);
+        } catch (IOException ex) {
+            return;
+        }
+        enqueue(record);
+    }
+
+    public void startOrientation(int orientation) {
+        RecordBuilder record = new RecordBuilder(TAG_START_ORIENTATION);
+        try {
+            record.writeInt(orientation);
+        } catch (IOException ex) {
+            return;
+        }
+        enqueue(record);
+    }
+
+    /**
+     * @param which SCREENSHOT_START or SCREENSHOT_END
+     */
+    public void screenshot(int which, String path) {
+        RecordBuilder record = new RecordBuilder(TAG_SCREENSHOT);
+        try {
+            record.writeByte(which);
+            record.writeString(path);
+        } catch (IOException ex) {
+            return;
+        }
+        enqueue(record);
+    }
+
+    /**
+     * Journals that the screenshot at path is stored by the blob at blobPath, see ScreenshotStore
+     */
+    public void alias(String path, String blobPath) {
+        RecordBuilder record = new RecordBuilder(TAG_ALIAS);
+        try {
+            record.writeString(path);
+            record.writeString(blobPath);
+        } catch (IOException ex) {
+            return;
+        }
+        enqueue(record);
+    }
+
+
+    /**
+     * Streams every record of the journal at file to the visitor, without keeping them in memory
+     * @return the length of the journal up to the end of its last complete record
+     * @throws IOException if the file cannot be read
+     */
+    public static long read(File file, Visitor visitor) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_BYTES);
+        DataInputStream data = new DataInputStream(in);
+        HashMap<Integer, String> devices = new HashMap<Integer, String>();
+        byte[] payload = new byte[BUFFER_BYTES];
+        long complete = 0;
+        try {
+            int tag;
+            while ((tag = data.read()) >= 0) {
+                int length = data.readInt();
+                if (length < 0) {
+                    break;
+                }
+                if (length > payload.length) {
+                    payload = new byte[length];
+                }
+                data.readFully(payload, 0, length);
+                complete += HEADER_BYTES + length;
+                ByteBuffer record = ByteBuffer.wrap(payload, 0, length);
+                switch (tag) {
+                    case TAG_META:
+                        visitor.onMeta(readString(record), readString(record));
+                        break;
+                    case TAG_DEVICE:
+                        int id = record.getInt();
+                        devices.put(id, readString(record));
+                        break;
+                    case TAG_INPUT:
+                        String device = devices.get(record.getInt());
+                        record.getInt(); // index of the first record, implied by the order of the file
+                        int count = record.getInt();
+                        for (int i = 0; i < count; i++) {
+                            visitor.onInput(device, record.getLong(), record.getShort(), record.getShort(), record.getInt());
+                        }
+                        break;
+                    case TAG_EVENT:
+                        visitor.onEvent(record.getLong(), readString(record), record.getInt(), record.getInt(), record.getInt());
+                        break;
+                    case TAG_ARTIFACT:
+                        visitor.onArtifact(record.getLong(), record.get(), readString(record));
+                        break;
+                    case TAG_SENSOR:
+                        String name = readString(record);
+                        int sensorType = record.getInt();
+                        long timestamp = record.getLong();
+                        float[] values = new float[record.getInt()];
+                        for (int i = 0; i < values.length; i++) {
+                            values[i] = record.getFloat();
+                        }
+                        visitor.onSensor(name, sensorType, timestamp, values);
+                        break;
+                    case TAG_ORIENTATION:
+                        visitor.onOrientation(record.getLong(), record.getInt());
+                        break;
+                    case TAG_START_ORIENTATION:
+                        visitor.onStartOrientation(record.getInt());
+                        break;
+                    case TAG_SCREENSHOT:
+                        visitor.onScreenshot(record.get(), readString(record));
+                        break;
+                    case TAG_ALIAS:
+                        visitor.onAlias(readString(record), readString(record));
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } catch (EOFException e) {
+            Log.w("SessionJournal", "Journal ends with an incomplete record");
+        } finally {
+            data.close();
+        }
+        return complete;
+    }
+
+    private static String readString(ByteBuffer record) {
+        int length = record.getShort();
+        if (length < 0) {
+            return null;
+        }
+        String s = new String(record.array(), record.arrayOffset() + record.position(), length, RecordBuilder.UTF_8);
+        record.position(record.position() + length);
+        return s;
+    }
+
+    /**
+     * Rebuilds report from the journal at file, the report should be empty and not journaling. A record cut short at
+     * the end of the file is truncated, so the journal can be resumed behind the last complete record
+     * @throws IOException if the file cannot be read
+     */
+    public static void restore(File file, BugReport report) throws IOException {
+        JournalRestorer restorer = new JournalRestorer(report);
+        long complete = read(file, restorer);
+        restorer.finish();
+        if (complete < file.length()) {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(complete);
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+
+    /**
+     * Receives the records of a journal in the order they were written
+     */
+    public interface Visitor {
+        void onMeta(String appName, String packageName);
+        void onInput(String device, long timeMicros, short type, short code, int value);
+        void onEvent(long sequence, String device, int firstInput, int endInput, int orientation);
+        void onArtifact(long sequence, int kind, String path);
+        void onSensor(String name, int sensorType, long timestamp, float[] values);
+        void onOrientation(long time, int orientation);
+        void onStartOrientation(int orientation);
+        void onScreenshot(int which, String path);
+        void onAlias(String path, String blobPath);
+    }
+}
+
+
+/**
+ * Builds the bytes of one journal record: tag, payload length and payload
+ */
+class RecordBuilder extends DataOutputStream {
+    static final java.nio.charset.Charset UTF_8 = java.nio.charset.Charset.forName("UTF-8");
+    private final byte tag;
+
+    RecordBuilder(byte tag) {
+        super(new ByteArrayOutputStream());
+        this.tag = tag;
+    }
+
+    /**
+     * Writes a string as a short length and UTF-8 bytes, null is written as length -1
+     */
+    void writeString(String s) throws IOException {
+        if (s == null) {
+            writeShort(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(UTF_8);
+        writeShort(bytes.length);
+        write(bytes);
+    }
+
+    byte[] toRecord() throws IOException {
+        flush();
+        byte[] payload = ((ByteArrayOutputStream) out).toByteArray();
+        ByteBuffer record = ByteBuffer.allocate(5 + payload.length);
+        record.put(tag);
+        record.putInt(payload.length);
+        record.put(payload);
+        return record.array();
+    }
+}
+
+
+/**
+ * Visitor rebuilding a BugReport from a journal. Input records go straight into the report's InputEventLogs, events
+ * and their artifacts are put together once the whole journal has been read
+ */
+class JournalRestorer implements SessionJournal.Visitor {
+    private final BugReport report;
+    private final ArrayList<long[]> eventRanges = new ArrayList<long[]>();
+    private final ArrayList<String> eventDevices = new ArrayList<String>();
+    private final HashMap<Long, String> screenshots = new HashMap<Long, String>();
+    private final HashMap<Long, String> hierarchies = new HashMap<Long, String>();
+    private final HashMap<Long, String> results = new HashMap<Long, String>();
+
+    JournalRestorer(BugReport report) {
+        this.report = report;
+    }
+
+    @Override
+    public void onMeta(String appName, String packageName) {
+        report.setAppName(appName);
+        report.setPackageName(packageName);
+    }
+
+    @Override
+    public void onInput(String device, long timeMicros, short type, short code, int value) {
+        report.getInputLog(device).append(timeMicros / 1000000, timeMicros % 1000000, type, code, value);
+    }
+
+    @Override
+    public void onEvent(long sequence, String device, int firstInput, int endInput, int orientation) {
+        eventRanges.add(new long[] {sequence, firstInput, endInput, orientation});
+        eventDevices.add(device);
+    }
+
+    @Override
+    public void onArtifact(long sequence, int kind, String path) {
+        if (kind == SessionJournal.ARTIFACT_SCREENSHOT) {
+            screenshots.put(sequence, path);
+        }
+        else if (kind == SessionJournal.ARTIFACT_HIERARCHY) {
+            hierarchies.put(sequence, path);
+        }
+        else if (kind == SessionJournal.ARTIFACT_RESULT_SCREENSHOT) {
+            results.put(sequence, path);
+        }
+    }
+
+    @Override
+    public void onSensor(String name, int sensorType, long timestamp, float[] values) {
+        report.addSensorData(name, sensorType, timestamp, values);
+    }
+
+    @Override
+    public void onOrientation(long time, int orientation) {
+        report.addOrientationChange(time, orientation);
+    }
+
+    @Override
+    public void onStartOrientation(int orientation) {
+        report.setStartOrientation(orientation);
+    }
+
+    @Override
+    public void onScreenshot(int which, String path) {
+        if (which == SessionJournal.SCREENSHOT_START) {
+            report.setStartScreenshot(new Screenshot(path));
+        }
+        else {
+            report.setEndScreenshot(new Screenshot(path));
+        }
+    }
+
+    @Override
+    public void onAlias(String path, String blobPath) {
+        ScreenshotStore.getInstance().alias(path, blobPath);
+    }
+
+    /**
+     * Adds the journaled events whose input records made it to disk. The journal keys artifacts by the sequences of
+     * the process that wrote it, so the events of this process are numbered past all of them
+     */
+    void finish() {
+        long maxSequence = -1;
+        for (long[] range : eventRanges) {
+            maxSequence = Math.max(maxSequence, range[0]);
+        }
+        for (Long sequence : screenshots.keySet()) {
+            maxSequence = Math.max(maxSequence, sequence);
+        }
+        for (Long sequence : hierarchies.keySet()) {
+            maxSequence = Math.max(maxSequence, sequence);
+        }
+        for (Long sequence : results.keySet()) {
+            maxSequence = Math.max(maxSequence, sequence);
+        }
+        ReportEvent.skipSequencesTo(maxSequence + 1);
+        for (int i = 0; i < eventRanges.size(); i++) {
+            long[] range = eventRanges.get(i);
+            InputEventLog log = report.getInputLog(eventDevices.get(i));
+            int first = (int) range[1];
+            int end = (int) range[2];
+            if (first < 0 || end <= first || end > log.size()) {
+                continue;
+            }
+            ReportEvent event = new ReportEvent(eventDevices.get(i), log);
+            event.addInput(first);
+            event.addInput(end - 1);
+            event.setOrientation((int) range[3]);
+            String screenshot = screenshots.get(range[0]);
+            if (screenshot != null) {
+                event.setScreenshot(new Screenshot(screenshot));
+            }
+            String result = results.get(range[0]);
+            if (result != null) {
+                event.setResultScreenshot(new Screenshot(result));
+            }
+            String hierarchy = hierarchies.get(range[0]);
+            if (hierarchy != null) {
+                event.setHierarchyDump(new HierarchyDump(hierarchy));
+            }
+            report.addEvent(event);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package semeru.odbr;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Takes the "after" screenshot of a gesture: once the gesture ended, the screen is sampled every
+ * Globals.settleIntervalMillis as a low resolution luminance grid, and each sample is compared to the previous one
+ * block by block, stopping at the first block that changed. When Globals.settleStableSamples samples in a row did not
+ * change, or Globals.settleTimeoutMillis passed, or the next gesture started, the last sample is kept as the event's
+ * result screenshot.
+ *
+ * With the in-process ProjectionCapture a sample only reads a few thousand pixels of the frame we already hold, and no
+ * new frame at all means no change. Without a projection each sample is a full raw screencap, up to
+ * settleTimeoutMillis / settleIntervalMillis of them per gesture and outside the ArtifactPolicy budget, so that
+ * fallback only runs if Globals.settleWithScreencap is set. The last sample is then written out as the screenshot
+ * without capturing again.
+ */
+public class SettleDetector {
+    private static final int GRID_COLS = 12;
+    private static final int GRID_ROWS = 20;
+    private static final long CAPTURE_TIMEOUT = 5000;
+
+    private final ScreenshotManager sm;
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "SettleDetector");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    private final RawFrame.Writer writer = new RawFrame.Writer();
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private final CaptureMetrics.Histogram settleTime = CaptureMetrics.getInstance().histogram(CaptureMetrics.SETTLE_MS);
+    private final CaptureMetrics.Counter timeouts = CaptureMetrics.getInstance().counter(CaptureMetrics.SETTLE_TIMEOUTS);
+    private volatile long lastGestureStart;
+
+    public SettleDetector(ScreenshotManager sm) {
+        this.sm = sm;
+    }
+
+    /**
+     * Ends sampling for an earlier gesture, the screen it settled to is the one this gesture starts on
+     */
+    public void gestureStarted(long timeMillis) {
+        lastGestureStart = timeMillis;
+    }
+
+    /**
+     * Queues the detection of the settled screen after the gesture of the event ended
+     */
+    public void gestureEnded(final ReportEvent event, final long timeMillis) {
+        worker.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Screenshot result = settle(timeMillis);
+                    if (result != null) {
+                        event.setResultScreenshot(result);
+                        BugReport.getInstance().recordArtifact(event, SessionJournal.ARTIFACT_RESULT_SCREENSHOT,
+                                result.getFilename());
+                        BugReport.getInstance().setLastScreenshot(result);
+                    }
+                } catch (Exception e) {
+                    Log.e("SettleDetector", "Error taking result screenshot: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    public void stop() {
+        worker.shutdownNow();
+    }
+
+    private Screenshot settle(long endMillis) throws IOException, InterruptedException {
+        ProjectionCapture projection = sm.getProjection();
+        long start = System.currentTimeMillis();
+        long deadline = start + Globals.settleTimeoutMillis;
+        int[] previous = null;
+        long previousFrame = -1;
+        byte[] lastFrame = null;
+        long lastFrameMillis = 0;
+        int stable = 0;
+        while (true) {
+            boolean changed;
+            if (projection != null && projection.isActive()) {
+                //without a new frame from the virtual display the screen did not change
+                long frame = projection.getFrameCount();
+                int[] grid = frame == previousFrame ? previous : projection.luminanceGrid(GRID_COLS, GRID_ROWS);
+                if (grid == null) {
+                    return null;
+                }
+                changed = previous == null || (grid != previous && changed(previous, grid));
+                previous = grid;
+                previousFrame = frame;
+            }
+            else if (!Globals.settleWithScreencap) {
+                return null;
+            }
+            else {
+                lastFrame = grab();
+                if (lastFrame == null) {
+                    return null;
+                }
+                lastFrameMillis = writer.getFrameTimeMillis();
+                int[] grid = RawFrame.luminanceGrid(new ByteArrayInputStream(lastFrame), GRID_COLS, GRID_ROWS);
+                changed = previous == null || changed(previous, grid);
+                previous = grid;
+            }
+            stable = changed ? 0 : stable + 1;
+            long now = System.currentTimeMillis();
+            if (stable >= Globals.settleStableSamples || lastGestureStart > endMillis) {
+                break;
+            }
+            if (now >= deadline) {
+                timeouts.increment();
+                break;
+            }
+            Thread.sleep(Globals.settleIntervalMillis);
+        }
+        settleTime.record(System.currentTimeMillis() - start);
+        String file = sm.nextFile();
+        if (lastFrame != null) {
+            new FrameRing.Frame(lastFrameMillis, lastFrame).writeTo(new File(Screenshot.rawFilename(file)));
+        }
+        else if (projection.capture(file)) {
+            lastFrameMillis = System.currentTimeMillis();
+        }
+        else {
+            return null;
+        }
+        ScreenshotStore.getInstance().add(file);
+        return new Screenshot(file, lastFrameMillis);
+    }
+
+    /*
+     * Incremental comparison, stops at the first block whose mean luminance moved more than the threshold
+     */
+    private static boolean changed(int[] previous, int[] grid) {
+        for (int i = 0; i < grid.length; i++) {
+            if (Math.abs(grid[i] - previous[i]) > Globals.settleThreshold) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * One raw screencap frame in memory, in the RawFrame format
+     */
+    private byte[] grab() {
+        buffer.reset();
+        writer.begin(buffer);
+        try {
+            RootShell.Result result = RootShell.getInstance().exec("/system/bin/screencap", writer).await(CAPTURE_TIMEOUT);
+            if (result.isSuccess() && writer.finish()) {
+                return buffer.toByteArray();
+            }
+        } catch (IOException e) {
+            Log.v("SettleDetector", "Frame capture failed: " + e.getMessage());
+        }
+        writer.abort();
+        return null;
+    }
+}
@@ -0,0 +1,284 @@
+package semeru.odbr;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable, compiled form of the GetEventDeviceInfo data. The codes that matter for touch parsing are resolved once
+ * into primitive ints and a code to role lookup table, so classifying a getevent line is a couple of int comparisons
+ * instead of HashMap lookups and Integer unboxing. All fields are final, so a profile can be handed to every capture
+ * thread without further synchronization.
+ *
+ * The profile also creates the TouchTracker matching the device's protocol (single touch, multitouch A or B)
+ */
+public final class TouchProfile {
+    public static final int PROTOCOL_SINGLE_TOUCH = 0;
+    public static final int PROTOCOL_MULTI_TOUCH_A = 1;
+    public static final int PROTOCOL_MULTI_TOUCH_B = 2;
+
+    /* Roles a getevent line can play in a touch trace */
+    public static final int ROLE_NONE = 0;
+    public static final int ROLE_TRACKING_ID = 1;
+    public static final int ROLE_SLOT = 2;
+    public static final int ROLE_X = 3;
+    public static final int ROLE_Y = 4;
+    public static final int ROLE_TOUCH = 5;
+    public static final int ROLE_SYN_REPORT = 6;
+    public static final int ROLE_SYN_MT_REPORT = 7;
+
+    public static final int EV_SYN = 0;
+    public static final int EV_KEY = 1;
+    public static final int EV_ABS = 3;
+    public static final int SYN_REPORT = 0;
+    public static final int SYN_MT_REPORT = 2;
+    public static final int SYN_DROPPED = 3;
+    private static final int ABS_CNT = 0x40;
+
+    private final int protocol;
+    private final int trackingIdCode;
+    private final int slotCode;
+    private final int btnTouchCode;
+    private final byte[] absRoles = new byte[ABS_CNT];
+    private final List<String> devices;
+    private final Map<String, Integer> codes;
+    private final int maxX;
+    private final int maxY;
+
+    /**
+     * @param protocol one of the PROTOCOL_ constants
+     * @param codes map of ABS_ and KEY names to their codes, as found by GetEventDeviceInfo
+     * @param devices input devices reporting touches
+     */
+    public TouchProfile(int protocol, Map<String, Integer> codes, List<String> devices, int maxX, int maxY) {
+        this.protocol = protocol;
+        this.codes = Collections.unmodifiableMap(new HashMap<String, Integer>(codes));
+        this.devices = Collections.unmodifiableList(new ArrayList<String>(devices));
+        this.maxX = maxX;
+        this.maxY = maxY;
+        trackingIdCode = resolve("ABS_MT_TRACKING_ID");
+        slotCode = resolve("ABS_MT_SLOT");
+        btnTouchCode = resolve("BTN_TOUCH");
+        setAbsRole(trackingIdCode, ROLE_TRACKING_ID);
+        setAbsRole(slotCode, ROLE_SLOT);
+        setAbsRole(resolve("ABS_X"), ROLE_X);
+        setAbsRole(resolve("ABS_Y"), ROLE_Y);
+        setAbsRole(resolve("ABS_MT_POSITION_X"), ROLE_X);
+        setAbsRole(resolve("ABS_MT_POSITION_Y"), ROLE_Y);
+    }
+
+    /**
+     * @return a profile for a device that has not been probed, it classifies nothing
+     */
+    public static TouchProfile empty() {
+        return new TouchProfile(PROTOCOL_SINGLE_TOUCH, new HashMap<String, Integer>(), new ArrayList<String>(), 0, 0);
+    }
+
+    private int resolve(String name) {
+        Integer code = codes.get(name);
+        return code == null ? -1 : code;
+    }
+
+    private void setAbsRole(int code, int role) {
+        if (code >= 0 && code < ABS_CNT) {
+            absRoles[code] = (byte) role;
+        }
+    }
+
+    /**
+     * Classifies a getevent line
+     * @return one of the ROLE_ constants
+     */
+    public int role(int type, int code) {
+        if (type == EV_ABS) {
+            return code >= 0 && code < ABS_CNT ? absRoles[code] : ROLE_NONE;
+        }
+        if (type == EV_SYN) {
+            if (code == SYN_REPORT) {
+                return ROLE_SYN_REPORT;
+            }
+            return code == SYN_MT_REPORT ? ROLE_SYN_MT_REPORT : ROLE_NONE;
+        }
+        if (type == EV_KEY && code == btnTouchCode) {
+            return ROLE_TOUCH;
+        }
+        return ROLE_NONE;
+    }
+
+    /**
+     * @return true if the line marks the start of a touch trace: a new tracking id on devices reporting one, BTN_TOUCH
+     * going down only on devices without, so a finger never opens two traces
+     */
+    public boolean isDown(int type, int code, int value) {
+        int role = role(type, code);
+        if (hasTrackingId()) {
+            return role == ROLE_TRACKING_ID && value != -1;
+        }
+        return role == ROLE_TOUCH && value == 1;
+    }
+
+    /**
+     * @return a new state machine tracking the fingers on the screen, one per capture thread
+     */
+    public TouchTracker newTracker() {
+        if (protocol == PROTOCOL_MULTI_TOUCH_B) {
+            return new MultiTouchBTracker(this);
+        }
+        if (protocol == PROTOCOL_MULTI_TOUCH_A) {
+            return new MultiTouchATracker(this);
+        }
+        return new SingleTouchTracker(this);
+    }
+
+    public int getProtocol() {
+        return protocol;
+    }
+    public boolean hasTrackingId() {
+        return trackingIdCode >= 0;
+    }
+    public List<String> getDevices() {
+        return devices;
+    }
+    public Map<String, Integer> getCodes() {
+        return codes;
+    }
+    public int getMaxX() {
+        return maxX;
+    }
+    public int getMaxY() {
+        return maxY;
+    }
+}
+
+
+/**
+ * A TouchTracker follows the fingers on the screen for one input device and reports when a gesture starts (the first
+ * finger goes down) and ends (the last finger is lifted). Trackers keep state, so each capture thread uses its own
+ */
+abstract class TouchTracker {
+    static final int NONE = 0;
+    static final int GESTURE_STARTED = 1;
+    static final int GESTURE_ENDED = 2;
+
+    protected final TouchProfile profile;
+    protected int downCount;
+
+    TouchTracker(TouchProfile profile) {
+        this.profile = profile;
+    }
+
+    /**
+     * Feeds one getevent line to the state machine
+     * @return NONE, GESTURE_STARTED or GESTURE_ENDED
+     */
+    abstract int onEvent(int type, int code, int value);
+
+    int getDownCount() {
+        return downCount;
+    }
+
+    /*
+     * Shared finger accounting for devices reporting down / up through one line
+     */
+    protected int fingerDown() {
+        return downCount++ == 0 ? GESTURE_STARTED : NONE;
+    }
+
+    protected int fingerUp() {
+        if (downCount == 0) {
+            return NONE;
+        }
+        return --downCount == 0 ? GESTURE_ENDED : NONE;
+    }
+}
+
+
+/**
+ * Single touch devices report BTN_TOUCH 1 when the finger goes down and BTN_TOUCH 0 when it is lifted
+ */
+class SingleTouchTracker extends TouchTracker {
+
+    SingleTouchTracker(TouchProfile profile) {
+        super(profile);
+    }
+
+    @Override
+    int onEvent(int type, int code, int value) {
+        if (profile.role(type, code) != TouchProfile.ROLE_TOUCH) {
+            return NONE;
+        }
+        if (value == 1) {
+            return downCount == 0 ? fingerDown() : NONE;
+        }
+        return value == 0 ? fingerUp() : NONE;
+    }
+}
+
+
+/**
+ * Multitouch B devices assign a tracking id to each contact and report -1 when the contact is lifted
+ */
+class MultiTouchBTracker extends TouchTracker {
+
+    MultiTouchBTracker(TouchProfile profile) {
+        super(profile);
+    }
+
+    @Override
+    int onEvent(int type, int code, int value) {
+        if (profile.role(type, code) != TouchProfile.ROLE_TRACKING_ID) {
+            return NONE;
+        }
+        return value != -1 ? fingerDown() : fingerUp();
+    }
+}
+
+
+/**
+ * Multitouch A devices that report tracking ids are followed like B devices. Without tracking ids the contacts of
+ * each frame are counted: every contact ends with SYN_MT_REPORT and the frame with SYN_REPORT, so the gesture starts
+ * on the first frame with contacts and ends on the first frame without any
+ */
+class MultiTouchATracker extends TouchTracker {
+    private boolean contactData;
+    private int frameContacts;
+
+    MultiTouchATracker(TouchProfile profile) {
+        super(profile);
+    }
+
+    @Override
+    int onEvent(int type, int code, int value) {
+        int role = profile.role(type, code);
+        if (profile.hasTrackingId()) {
+            if (role != TouchProfile.ROLE_TRACKING_ID) {
+                return NONE;
+            }
+            return value != -1 ? fingerDown() : fingerUp();
+        }
+        if (role == TouchProfile.ROLE_X || role == TouchProfile.ROLE_Y) {
+            contactData = true;
+        }
+        else if (role == TouchProfile.ROLE_SYN_MT_REPORT) {
+            if (contactData) {
+                ++frameContacts;
+            }
+            contactData = false;
+        }
+        else if (role == TouchProfile.ROLE_SYN_REPORT) {
+            int previous = downCount;
+            downCount = frameContacts;
+            frameContacts = 0;
+            contactData = false;
+            if (previous == 0 && downCount > 0) {
+                return GESTURE_STARTED;
+            }
+            if (previous > 0 && downCount == 0) {
+                return GESTURE_ENDED;
+            }
+        }
+        return NONE;
+    }
+}
@@ -0,0 +1,110 @@
+package semeru.odbr;
+
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Replays raw input_event recordings (cat /dev/input/eventX > file) through the GestureSegmenter on a plain JVM, one
+ * segmenter thread per recording, and prints the gestures found, the throughput and the CaptureMetrics. Nothing on
+ * this path touches Android, so capture throughput can be benchmarked and regression tested on machines without a
+ * phone:
+ *
+ *   java -cp classes semeru.odbr.TraceReplay [-protocol a|b|single] [-code NAME=code ...] trace ...
+ *
+ * The codes default to the standard Linux ones for multitouch protocol B.
+ */
+public class TraceReplay implements GestureSegmenter.Sink, GestureSegmenter.OrientationSource {
+    private final Map<String, InputEventLog> logs = new HashMap<String, InputEventLog>();
+    private final AtomicInteger failures = new AtomicInteger();
+
+    public static void main(String[] args) throws Exception {
+        int protocol = TouchProfile.PROTOCOL_MULTI_TOUCH_B;
+        Map<String, Integer> codes = new HashMap<String, Integer>();
+        codes.put("ABS_MT_SLOT", 0x2f);
+        codes.put("ABS_MT_TRACKING_ID", 0x39);
+        codes.put("ABS_MT_POSITION_X", 0x35);
+        codes.put("ABS_MT_POSITION_Y", 0x36);
+        codes.put("BTN_TOUCH", 0x14a);
+        List<String> traces = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-protocol") && i + 1 < args.length) {
+                String name = args[++i];
+                protocol = name.equals("a") ? TouchProfile.PROTOCOL_MULTI_TOUCH_A
+                        : name.equals("single") ? TouchProfile.PROTOCOL_SINGLE_TOUCH
+                        : TouchProfile.PROTOCOL_MULTI_TOUCH_B;
+            }
+            else if (args[i].equals("-code") && i + 1 < args.length) {
+                String[] code = args[++i].split("=");
+                codes.put(code[0], Integer.decode(code[1]));
+            }
+            else {
+                traces.add(args[i]);
+            }
+        }
+        if (traces.isEmpty()) {
+            System.err.println("Usage: TraceReplay [-protocol a|b|single] [-code NAME=code ...] trace ...");
+            System.exit(2);
+        }
+        TouchProfile profile = new TouchProfile(protocol, codes, traces, 0, 0);
+        TraceReplay replay = new TraceReplay();
+        List<GestureSegmenter> segmenters = new ArrayList<GestureSegmenter>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (String trace : traces) {
+            GestureSegmenter segmenter = new GestureSegmenter(InputSource.file(trace, trace), profile, replay, replay,
+                    null);
+            segmenters.add(segmenter);
+            threads.add(new Thread(segmenter, "GestureSegmenter " + trace));
+        }
+        long start = System.nanoTime();
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        long elapsed = Math.max(1, System.nanoTime() - start);
+        long inputEvents = 0;
+        for (GestureSegmenter segmenter : segmenters) {
+            System.out.println(segmenter.getDevice() + ": " + segmenter.getEventCount() + " input events, "
+                    + segmenter.getGestureCount() + " gestures");
+            inputEvents += segmenter.getEventCount();
+        }
+        System.out.println(String.format("%d input events in %.1f ms, %.0f events/s", inputEvents, elapsed / 1e6,
+                inputEvents * 1e9 / elapsed));
+        CaptureMetrics.getInstance().dump(new OutputStreamWriter(System.out), "replay of " + traces);
+        System.exit(replay.failures.get() == 0 ? 0 : 1);
+    }
+
+    @Override
+    public synchronized InputEventLog getInputLog(String device) {
+        InputEventLog log = logs.get(device);
+        if (log == null) {
+            log = new InputEventLog(device);
+            logs.put(device, log);
+        }
+        return log;
+    }
+
+    @Override
+    public void onInput() {
+    }
+
+    @Override
+    public void addEvent(ReportEvent event) {
+    }
+
+    @Override
+    public void readFailed(String device, Exception e) {
+        failures.incrementAndGet();
+        System.err.println("Stopped reading " + device + ": " + e);
+    }
+
+    @Override
+    public int getCurrentOrientation() {
+        return 0;
+    }
+}
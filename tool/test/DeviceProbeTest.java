@@ -0,0 +1,158 @@
+package semeru.odbr;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs DeviceProbe over "getevent -p" fixtures in test/resources/getevent and checks the devices, ranges and touch
+ * roles the tool configures from them
+ */
+public class DeviceProbeTest {
+
+    private static List<DeviceProbe.InputDevice> parse(String fixture) throws IOException {
+        InputStream in = DeviceProbeTest.class.getResourceAsStream("/getevent/" + fixture);
+        assertNotNull(in);
+        try {
+            return DeviceProbe.parse(new InputStreamReader(in, "UTF-8"));
+        } finally {
+            in.close();
+        }
+    }
+
+    private static DeviceProbe.InputDevice device(List<DeviceProbe.InputDevice> devices, String path) {
+        for (DeviceProbe.InputDevice device : devices) {
+            if (device.getPath().equals(path)) {
+                return device;
+            }
+        }
+        throw new AssertionError("no device " + path);
+    }
+
+    @Test
+    public void singleTouch() throws IOException {
+        List<DeviceProbe.InputDevice> devices = parse("single_touch.txt");
+        assertEquals(2, devices.size());
+        assertFalse(device(devices, "/dev/input/event1").isTouchDevice());
+
+        DeviceProbe.InputDevice touch = device(devices, "/dev/input/event0");
+        assertEquals("ADS7846 Touchscreen", touch.getName());
+        assertTrue(touch.isTouchDevice());
+        assertTrue(touch.hasKey(DeviceProbe.BTN_TOUCH));
+        assertEquals(150, touch.getAxisMin(DeviceProbe.ABS_X));
+        assertEquals(3830, touch.getAxisMax(DeviceProbe.ABS_X));
+        assertEquals(190, touch.getAxisMin(DeviceProbe.ABS_Y));
+        assertEquals(3830, touch.getAxisMax(DeviceProbe.ABS_Y));
+
+        TouchProfile profile = GetEventDeviceInfo.compileProfile(devices);
+        assertEquals(TouchProfile.PROTOCOL_SINGLE_TOUCH, profile.getProtocol());
+        assertEquals(Collections.singletonList("/dev/input/event0"), profile.getDevices());
+        assertEquals(3830, profile.getMaxX());
+        assertEquals(3830, profile.getMaxY());
+        assertFalse(profile.hasTrackingId());
+        assertEquals(TouchProfile.ROLE_TOUCH, profile.role(TouchProfile.EV_KEY, DeviceProbe.BTN_TOUCH));
+        assertEquals(TouchProfile.ROLE_X, profile.role(TouchProfile.EV_ABS, DeviceProbe.ABS_X));
+        assertEquals(TouchProfile.ROLE_Y, profile.role(TouchProfile.EV_ABS, DeviceProbe.ABS_Y));
+        assertEquals(TouchProfile.ROLE_NONE, profile.role(TouchProfile.EV_ABS, 0x18));
+    }
+
+    @Test
+    public void multiTouchA() throws IOException {
+        List<DeviceProbe.InputDevice> devices = parse("multi_touch_a.txt");
+        assertEquals(2, devices.size());
+        assertFalse(device(devices, "/dev/input/event2").isTouchDevice());
+
+        DeviceProbe.InputDevice touch = device(devices, "/dev/input/event3");
+        assertTrue(touch.isTouchDevice());
+        assertFalse(touch.hasAxis(DeviceProbe.ABS_MT_TRACKING_ID));
+        assertFalse(touch.hasKey(DeviceProbe.BTN_TOUCH));
+        assertEquals(480, touch.getAxisMax(DeviceProbe.ABS_MT_POSITION_X));
+        assertEquals(800, touch.getAxisMax(DeviceProbe.ABS_MT_POSITION_Y));
+
+        TouchProfile profile = GetEventDeviceInfo.compileProfile(devices);
+        assertEquals(TouchProfile.PROTOCOL_MULTI_TOUCH_A, profile.getProtocol());
+        assertEquals(Collections.singletonList("/dev/input/event3"), profile.getDevices());
+        assertEquals(480, profile.getMaxX());
+        assertEquals(800, profile.getMaxY());
+        assertEquals(TouchProfile.ROLE_X, profile.role(TouchProfile.EV_ABS, DeviceProbe.ABS_MT_POSITION_X));
+        assertEquals(TouchProfile.ROLE_Y, profile.role(TouchProfile.EV_ABS, DeviceProbe.ABS_MT_POSITION_Y));
+        assertEquals(TouchProfile.ROLE_SYN_MT_REPORT, profile.role(TouchProfile.EV_SYN, TouchProfile.SYN_MT_REPORT));
+    }
+
+    @Test
+    public void multiTouchB() throws IOException {
+        List<DeviceProbe.InputDevice> devices = parse("multi_touch_b.txt");
+        assertEquals(3, devices.size());
+        assertFalse(device(devices, "/dev/input/event4").isTouchDevice());
+        assertFalse(device(devices, "/dev/input/event0").isTouchDevice());
+
+        DeviceProbe.InputDevice touch = device(devices, "/dev/input/event2");
+        assertEquals("synaptics_dsx", touch.getName());
+        assertTrue(touch.isTouchDevice());
+        assertEquals(9, touch.getAxisMax(0x2f));
+        assertEquals(65535, touch.getAxisMax(DeviceProbe.ABS_MT_TRACKING_ID));
+        assertEquals(1079, touch.getAxisMax(DeviceProbe.ABS_MT_POSITION_X));
+        assertEquals(1919, touch.getAxisMax(DeviceProbe.ABS_MT_POSITION_Y));
+
+        TouchProfile profile = GetEventDeviceInfo.compileProfile(devices);
+        assertEquals(TouchProfile.PROTOCOL_MULTI_TOUCH_B, profile.getProtocol());
+        assertEquals(Collections.singletonList("/dev/input/event2"), profile.getDevices());
+        assertEquals(1079, profile.getMaxX());
+        assertEquals(1919, profile.getMaxY());
+        assertTrue(profile.hasTrackingId());
+        assertEquals(TouchProfile.ROLE_SLOT, profile.role(TouchProfile.EV_ABS, 0x2f));
+        assertEquals(TouchProfile.ROLE_TRACKING_ID, profile.role(TouchProfile.EV_ABS, DeviceProbe.ABS_MT_TRACKING_ID));
+        assertEquals(TouchProfile.ROLE_X, profile.role(TouchProfile.EV_ABS, DeviceProbe.ABS_MT_POSITION_X));
+        assertEquals(TouchProfile.ROLE_Y, profile.role(TouchProfile.EV_ABS, DeviceProbe.ABS_MT_POSITION_Y));
+        assertEquals(TouchProfile.ROLE_NONE, profile.role(TouchProfile.EV_ABS, 0x3a));
+    }
+
+    @Test
+    public void nonTouchNodes() throws IOException {
+        List<DeviceProbe.InputDevice> devices = parse("non_touch.txt");
+        assertEquals(5, devices.size());
+        for (DeviceProbe.InputDevice device : devices) {
+            assertFalse(device.getName(), device.isTouchDevice());
+        }
+        DeviceProbe.InputDevice accelerometer = device(devices, "/dev/input/event5");
+        assertEquals(-512, accelerometer.getAxisMin(DeviceProbe.ABS_X));
+        assertEquals(511, accelerometer.getAxisMax(DeviceProbe.ABS_X));
+        DeviceProbe.InputDevice buttons = device(devices, "/dev/input/event3");
+        assertTrue(buttons.hasKey(0xe2));
+        assertTrue(buttons.hasKey(0x109));
+
+        TouchProfile profile = GetEventDeviceInfo.compileProfile(devices);
+        assertTrue(profile.getDevices().isEmpty());
+        assertEquals(TouchProfile.ROLE_NONE, profile.role(TouchProfile.EV_ABS, DeviceProbe.ABS_X));
+    }
+
+    @Test
+    public void touchDeviceRule() {
+        DeviceProbe.InputDevice trackingId = new DeviceProbe.InputDevice("/dev/input/event0");
+        trackingId.addAxis(DeviceProbe.ABS_MT_TRACKING_ID, 0, 65535);
+        assertTrue(trackingId.isTouchDevice());
+
+        DeviceProbe.InputDevice positionX = new DeviceProbe.InputDevice("/dev/input/event1");
+        positionX.addAxis(DeviceProbe.ABS_MT_POSITION_X, 0, 1079);
+        assertTrue(positionX.isTouchDevice());
+
+        DeviceProbe.InputDevice btnTouch = new DeviceProbe.InputDevice("/dev/input/event2");
+        btnTouch.addKey(DeviceProbe.BTN_TOUCH);
+        assertTrue(btnTouch.isTouchDevice());
+
+        DeviceProbe.InputDevice positionY = new DeviceProbe.InputDevice("/dev/input/event3");
+        positionY.addAxis(DeviceProbe.ABS_MT_POSITION_Y, 0, 1919);
+        positionY.addAxis(DeviceProbe.ABS_X, 0, 1079);
+        positionY.addKey(0x145);
+        assertFalse(positionY.isTouchDevice());
+    }
+}
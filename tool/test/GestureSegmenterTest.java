@@ -0,0 +1,105 @@
+package semeru.odbr;
+
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays the raw input_event traces in test/resources/traces through the GestureSegmenter and checks the gestures
+ * it cuts them into:
+ *  --multi_touch_b_64.bin, 64-bit records of a protocol B screen: three taps, a swipe, a two finger pinch and a tap
+ *  --single_touch_32.bin, 32-bit records of a single touch screen: a tap, a drag and a tap
+ */
+public class GestureSegmenterTest implements GestureSegmenter.Sink, GestureSegmenter.OrientationSource {
+    private final Map<String, InputEventLog> logs = new HashMap<String, InputEventLog>();
+    private final List<ReportEvent> events = new ArrayList<ReportEvent>();
+    private final List<Exception> failures = new ArrayList<Exception>();
+
+    private GestureSegmenter replay(String trace, TouchProfile profile) {
+        InputStream in = GestureSegmenterTest.class.getResourceAsStream("/traces/" + trace);
+        assertNotNull(in);
+        GestureSegmenter segmenter = new GestureSegmenter(InputSource.stream(trace, in), profile, this, this, null);
+        segmenter.run();
+        assertTrue(failures.toString(), failures.isEmpty());
+        return segmenter;
+    }
+
+    private void assertGestures(int[] inputsPerGesture) {
+        assertEquals(inputsPerGesture.length, events.size());
+        for (int i = 0; i < inputsPerGesture.length; i++) {
+            assertEquals("gesture " + i, inputsPerGesture[i], events.get(i).numInputEvents());
+        }
+    }
+
+    @Test
+    public void multiTouchB() {
+        Map<String, Integer> codes = new HashMap<String, Integer>();
+        codes.put("ABS_MT_SLOT", 0x2f);
+        codes.put("ABS_MT_TRACKING_ID", 0x39);
+        codes.put("ABS_MT_POSITION_X", 0x35);
+        codes.put("ABS_MT_POSITION_Y", 0x36);
+        codes.put("ABS_MT_PRESSURE", 0x3a);
+        List<String> devices = new ArrayList<String>();
+        devices.add("multi_touch_b_64.bin");
+        TouchProfile profile = new TouchProfile(TouchProfile.PROTOCOL_MULTI_TOUCH_B, codes, devices, 1079, 1919);
+
+        GestureSegmenter segmenter = replay("multi_touch_b_64.bin", profile);
+        assertEquals(172, segmenter.getEventCount());
+        assertEquals(6, segmenter.getGestureCount());
+        assertGestures(new int[] {10, 10, 10, 47, 85, 10});
+        assertEquals(172, getInputLog("multi_touch_b_64.bin").size());
+    }
+
+    @Test
+    public void singleTouch() {
+        Map<String, Integer> codes = new HashMap<String, Integer>();
+        codes.put("ABS_X", 0x00);
+        codes.put("ABS_Y", 0x01);
+        codes.put("BTN_TOUCH", 0x14a);
+        List<String> devices = new ArrayList<String>();
+        devices.add("single_touch_32.bin");
+        TouchProfile profile = new TouchProfile(TouchProfile.PROTOCOL_SINGLE_TOUCH, codes, devices, 3830, 3830);
+
+        GestureSegmenter segmenter = replay("single_touch_32.bin", profile);
+        assertEquals(60, segmenter.getEventCount());
+        assertEquals(3, segmenter.getGestureCount());
+        assertGestures(new int[] {6, 48, 6});
+    }
+
+    @Override
+    public synchronized InputEventLog getInputLog(String device) {
+        InputEventLog log = logs.get(device);
+        if (log == null) {
+            log = new InputEventLog(device);
+            logs.put(device, log);
+        }
+        return log;
+    }
+
+    @Override
+    public void onInput() {
+    }
+
+    @Override
+    public void addEvent(ReportEvent event) {
+        events.add(event);
+    }
+
+    @Override
+    public void readFailed(String device, Exception e) {
+        failures.add(e);
+    }
+
+    @Override
+    public int getCurrentOrientation() {
+        return 0;
+    }
+}